@@ -38,4 +38,14 @@
 
 -keep class com.bumptech.glide.load.data.ParcelFileDescriptorRewinder$InternalRewinder {
   *** rewind();
-}
\ No newline at end of file
+}
+# Strip remaining eager debug and verbose logs from release builds
+-assumenosideeffects class timber.log.Timber {
+    public static *** v(...);
+    public static *** d(...);
+}
+# Kotlin callers go through the companion object
+-assumenosideeffects class timber.log.Timber$Forest {
+    public *** v(...);
+    public *** d(...);
+}
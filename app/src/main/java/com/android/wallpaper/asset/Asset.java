@@ -31,6 +31,8 @@ import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import com.android.wallpaper.util.TaskRunner.Callback;
+import com.android.wallpaper.util.TaskRunner.Handle;
+import com.android.wallpaper.util.TaskRunner.Priority;
 
 import java.io.IOException;
 
@@ -77,8 +79,18 @@ public abstract class Asset {
      * @param targetHeight Height of target view in physical pixels.
      * @param receiver     Called with the decoded bitmap or null if there was an error decoding the
      *                     bitmap.
+     * @return Handle to cancel the decoding, the receiver won't be called once cancelled.
      */
-    public abstract void decodeBitmapAsync(int targetWidth, int targetHeight, Callback<Bitmap> receiver);
+    public Handle decodeBitmapAsync(int targetWidth, int targetHeight, Callback<Bitmap> receiver) {
+        return decodeBitmapAsync(targetWidth, targetHeight, Priority.VISIBLE, receiver);
+    }
+
+    /**
+     * @param priority Lane of the decode task, e.g. {@link Priority#BACKGROUND} for color extraction.
+     * @see #decodeBitmapAsync(int, int, Callback)
+     */
+    public abstract Handle decodeBitmapAsync(int targetWidth, int targetHeight, Priority priority,
+                                             Callback<Bitmap> receiver);
 
     @WorkerThread
     public abstract @NonNull Bitmap decodeBitmap(int targetWidth, int targetHeight) throws IOException;
@@ -92,21 +104,35 @@ public abstract class Asset {
      * @param targetHeight Height of target view in physical pixels.
      * @param receiver     Called with the decoded bitmap region or null if there was an error
      *                     decoding the bitmap region.
+     * @return Handle to cancel the decoding, the receiver won't be called once cancelled.
      */
-    public abstract void decodeBitmapRegionAsync(Rect rect, int targetWidth, int targetHeight, Callback<Bitmap> receiver);
+    public abstract Handle decodeBitmapRegionAsync(Rect rect, int targetWidth, int targetHeight, Callback<Bitmap> receiver);
 
     @WorkerThread
     public @NonNull abstract Bitmap decodeBitmapRegion(Rect rect, int targetWidth, int targetHeight)
             throws IOException, OutOfMemoryError;
 
+    /**
+     * Decodes the bitmap region a wallpaper is set from, unlike previews it is never sampled
+     * down below the target size to save memory.
+     *
+     * @see #decodeBitmapRegion(Rect, int, int)
+     */
+    @WorkerThread
+    public @NonNull Bitmap decodeFinalBitmapRegion(Rect rect, int targetWidth, int targetHeight)
+            throws IOException, OutOfMemoryError {
+        return decodeBitmapRegion(rect, targetWidth, targetHeight);
+    }
+
     /**
      * Calculates the raw dimensions of the asset at its original resolution off the main UI thread.
      * Avoids decoding the entire bitmap if possible to conserve memory.
      *
      * @param receiver Called with the decoded raw dimensions of the whole image or null if there
      *                 was an error decoding the dimensions.
+     * @return Handle to cancel the decoding, the receiver won't be called once cancelled.
      */
-    public abstract void decodeRawDimensionsAsync(DimensionsReceiver receiver);
+    public abstract Handle decodeRawDimensionsAsync(DimensionsReceiver receiver);
 
     public abstract @NonNull Point decodeRawDimensions() throws IOException;
 
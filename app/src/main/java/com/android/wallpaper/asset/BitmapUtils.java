@@ -19,6 +19,8 @@ import android.graphics.Bitmap;
 import android.graphics.Point;
 import android.graphics.Rect;
 
+import com.android.wallpaper.util.WallpaperMath;
+
 /**
  * Collection of static utility methods for decoding and processing Bitmaps.
  */
@@ -43,17 +45,7 @@ public final class BitmapUtils {
      */
     public static int calculateInSampleSize(
             int srcWidth, int srcHeight, int targetWidth, int targetHeight) {
-        int shift = 0;
-        int halfHeight = srcHeight / 2;
-        int halfWidth = srcWidth / 2;
-
-        // Calculate the largest inSampleSize value that is a power of 2 and keeps both the result
-        // bitmap's height and width at least as large as the target height and width.
-        while (((halfHeight >> shift) >= targetHeight) && ((halfWidth >> shift) >= targetWidth)) {
-            shift++;
-        }
-
-        return 1 << shift;
+        return WallpaperMath.calculateInSampleSize(srcWidth, srcHeight, targetWidth, targetHeight);
     }
 
     /**
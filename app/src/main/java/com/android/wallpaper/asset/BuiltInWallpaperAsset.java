@@ -27,6 +27,8 @@ import androidx.annotation.NonNull;
 
 import com.android.wallpaper.util.TaskRunner;
 import com.android.wallpaper.util.TaskRunner.Callback;
+import com.android.wallpaper.util.TaskRunner.Handle;
+import com.android.wallpaper.util.TaskRunner.Priority;
 
 import org.jetbrains.annotations.NotNull;
 
@@ -61,8 +63,8 @@ public final class BuiltInWallpaperAsset extends Asset {
     }
 
     @Override
-    public void decodeBitmapRegionAsync(Rect rect, int targetWidth, int targetHeight, Callback<Bitmap> receiver) {
-        TaskRunner.getINSTANCE().executeAsync(() -> decodeBitmapRegion(rect, targetWidth, targetHeight), receiver);
+    public Handle decodeBitmapRegionAsync(Rect rect, int targetWidth, int targetHeight, Callback<Bitmap> receiver) {
+        return TaskRunner.getINSTANCE().executeAsync(() -> decodeBitmapRegion(rect, targetWidth, targetHeight), receiver);
     }
 
     @NonNull
@@ -84,8 +86,8 @@ public final class BuiltInWallpaperAsset extends Asset {
     }
 
     @Override
-    public void decodeRawDimensionsAsync(DimensionsReceiver receiver) {
-        TaskRunner.getINSTANCE().executeAsync(this::decodeRawDimensions, new Callback<Point>() {
+    public Handle decodeRawDimensionsAsync(DimensionsReceiver receiver) {
+        return TaskRunner.getINSTANCE().executeAsync(this::decodeRawDimensions, new Callback<Point>() {
             @Override
             public void onComplete(Point dimensions) {
                 receiver.onDimensionsDecoded(dimensions);
@@ -99,8 +101,10 @@ public final class BuiltInWallpaperAsset extends Asset {
     }
 
     @Override
-    public void decodeBitmapAsync(int targetWidth, int targetHeight, Callback<Bitmap> receiver) {
-        TaskRunner.getINSTANCE().executeAsync(() -> decodeBitmap(targetWidth, targetHeight), receiver);
+    public Handle decodeBitmapAsync(int targetWidth, int targetHeight, Priority priority,
+                                    Callback<Bitmap> receiver) {
+        // built-in wallpaper is decoded by the serial thread, lanes don't apply
+        return TaskRunner.getINSTANCE().executeAsync(() -> decodeBitmap(targetWidth, targetHeight), receiver);
     }
 
     @NonNull
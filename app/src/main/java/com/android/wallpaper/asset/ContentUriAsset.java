@@ -24,14 +24,13 @@ import android.net.Uri;
 
 import com.android.wallpaper.util.TaskRunner;
 import com.android.wallpaper.util.TaskRunner.Callback;
+import com.android.wallpaper.util.TaskRunner.Handle;
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.Callable;
 
 import timber.log.Timber;
 
@@ -66,39 +65,18 @@ public class ContentUriAsset extends StreamableAsset {
     }
 
     @Override
-    public void decodeBitmapRegionAsync(final Rect rect, int targetWidth, int targetHeight,
-                                   final Callback<Bitmap> receiver) {
+    public Handle decodeBitmapRegionAsync(final Rect rect, int targetWidth, int targetHeight,
+                                          final Callback<Bitmap> receiver) {
         // BitmapRegionDecoder only supports images encoded in either JPEG or PNG, so if the content
         // URI asset is encoded with another format (for example, GIF), then fall back to cropping a
         // bitmap region from the full-sized bitmap.
         if (isJpeg() || isPng()) {
-            super.decodeBitmapRegionAsync(rect, targetWidth, targetHeight, receiver);
-            return;
+            return super.decodeBitmapRegionAsync(rect, targetWidth, targetHeight, receiver);
         }
 
-        decodeRawDimensionsAsync(new DimensionsReceiver() {
-            @Override
-            public void onDimensionsDecoded(@NonNull Point dimensions) {
-
-                decodeBitmapAsync(dimensions.x, dimensions.y, new Callback<Bitmap>() {
-                    @Override
-                    public void onComplete(Bitmap fullBitmap) {
-                        BitmapCropTask task = new BitmapCropTask(fullBitmap, rect);
-                        TaskRunner.getINSTANCE().executeIOAsync(task, receiver);
-                    }
-
-                    @Override
-                    public void onError(Exception e) {
-                        receiver.onError(e);
-                    }
-                });
-            }
-
-            @Override
-            public void onError(@Nullable Exception e) {
-                receiver.onError(e);
-            }
-        });
+        // one task, the full bitmap must not be sampled down between decode and crop
+        return TaskRunner.getINSTANCE().executeIOAsync(() -> decodeFullBitmapRegion(rect),
+                recycleDiscarded(receiver));
     }
 
     @Override
@@ -108,9 +86,32 @@ public class ContentUriAsset extends StreamableAsset {
         if (isJpeg() || isPng()) {
             return super.decodeBitmapRegion(rect, targetWidth, targetHeight);
         }
+        return decodeFullBitmapRegion(rect);
+    }
+
+    @Override
+    @WorkerThread
+    public @NonNull Bitmap decodeFinalBitmapRegion(Rect rect, int targetWidth, int targetHeight)
+            throws IOException, OutOfMemoryError {
+        if (isJpeg() || isPng()) {
+            return super.decodeFinalBitmapRegion(rect, targetWidth, targetHeight);
+        }
+        return decodeFullBitmapRegion(rect);
+    }
+
+    /**
+     * Crop the region out of the whole image, for formats a region decoder can't read.
+     */
+    @WorkerThread
+    private Bitmap decodeFullBitmapRegion(Rect rect) throws IOException {
         Point dimensions = decodeRawDimensions();
-        Bitmap fullBitmap = StreamableAsset.DecodeBitmapAsyncTask.decode(this, dimensions.x, dimensions.y);
-        return Bitmap.createBitmap(fullBitmap, rect.left, rect.top, rect.width(), rect.height());
+        // rect is in raw pixels, a sampled down bitmap can't be cropped with it
+        Bitmap fullBitmap = StreamableAsset.DecodeBitmapAsyncTask.decode(this, dimensions.x,
+                dimensions.y, false);
+        Bitmap bitmap = Bitmap.createBitmap(fullBitmap, rect.left, rect.top, rect.width(),
+                rect.height());
+        if (bitmap != fullBitmap) fullBitmap.recycle();
+        return bitmap;
     }
 
     /**
@@ -186,27 +187,4 @@ public class ContentUriAsset extends StreamableAsset {
     public int hashCode() {
         return mUri.hashCode();
     }
-
-    /**
-     * Custom Callable which crops a bitmap region from a larger bitmap.
-     */
-    private final static class BitmapCropTask implements Callable<Bitmap> {
-        private final Bitmap mFromBitmap;
-        private final Rect mCropRect;
-
-        public BitmapCropTask(@NonNull Bitmap fromBitmap, Rect cropRect) {
-            mFromBitmap = fromBitmap;
-            mCropRect = cropRect;
-        }
-
-        @Override
-        public Bitmap call(){
-            Bitmap bitmap = Bitmap.createBitmap(
-                    mFromBitmap, mCropRect.left, mCropRect.top, mCropRect.width(),
-                    mCropRect.height());
-
-            mFromBitmap.recycle();
-            return bitmap;
-        }
-    }
 }
\ No newline at end of file
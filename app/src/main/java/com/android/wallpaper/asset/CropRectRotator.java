@@ -17,7 +17,8 @@ package com.android.wallpaper.asset;
 
 import android.graphics.Point;
 import android.graphics.Rect;
-import android.media.ExifInterface;
+
+import com.android.wallpaper.util.WallpaperMath;
 
 import timber.log.Timber;
 
@@ -32,21 +33,14 @@ public final class CropRectRotator {
     public static Rect rotateCropRectForExifOrientation(Point dimensions, Rect srcRect,
                                                         int exifOrientation) {
 
-        switch (exifOrientation) {
-            case ExifInterface.ORIENTATION_NORMAL:
-                return new Rect(srcRect);
-            case ExifInterface.ORIENTATION_ROTATE_90:
-                return new Rect(srcRect.top, dimensions.x - srcRect.right, srcRect.bottom,
-                        dimensions.x - srcRect.left);
-            case ExifInterface.ORIENTATION_ROTATE_180:
-                return new Rect(dimensions.x - srcRect.right, dimensions.y - srcRect.bottom,
-                        dimensions.x - srcRect.left, dimensions.y - srcRect.top);
-            case ExifInterface.ORIENTATION_ROTATE_270:
-                return new Rect(dimensions.y - srcRect.bottom, srcRect.left, dimensions.y - srcRect.top,
-                        srcRect.right);
-            default:
-                Timber.w("Unsupported EXIF orientation %s", exifOrientation);
-                return new Rect(srcRect);
+        WallpaperMath.Bounds rotated = WallpaperMath.rotateCropRectForExifOrientation(
+                new WallpaperMath.Size(dimensions.x, dimensions.y),
+                new WallpaperMath.Bounds(srcRect.left, srcRect.top, srcRect.right, srcRect.bottom),
+                exifOrientation);
+        if (rotated == null) {
+            Timber.w("Unsupported EXIF orientation %s", exifOrientation);
+            return new Rect(srcRect);
         }
+        return new Rect(rotated.left, rotated.top, rotated.right, rotated.bottom);
     }
 }
\ No newline at end of file
@@ -23,6 +23,8 @@ import androidx.annotation.NonNull;
 
 import com.android.wallpaper.util.TaskRunner;
 import com.android.wallpaper.util.TaskRunner.Callback;
+import com.android.wallpaper.util.TaskRunner.Handle;
+import com.android.wallpaper.util.TaskRunner.Priority;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -59,16 +61,19 @@ public final class FileAsset extends StreamableAsset {
         // align start (left-most home screen)
         Rect rect = new Rect(0, 0, measuredWidth, rawDimensions.y);
         Bitmap decoded = DecodeBitmapRegionAsyncTask.decode(this, rect, mTargetWidth, mTargetHeight);
-        return Bitmap.createScaledBitmap(decoded,
+        Bitmap scaled = Bitmap.createScaledBitmap(decoded,
                 Math.round(measuredWidth * scale),
                 Math.round(rawDimensions.y * scale),
                 true);
+        if (scaled != decoded) recycleBitmap(decoded);
+        return scaled;
     }
 
     @Override
-    public void decodeBitmapAsync(int targetWidth, int targetHeight, Callback<Bitmap> receiver) {
+    public Handle decodeBitmapAsync(int targetWidth, int targetHeight, Priority priority,
+                                    Callback<Bitmap> receiver) {
         DecodeBitmapTask task = new DecodeBitmapTask(this, targetWidth, targetHeight);
-        TaskRunner.getINSTANCE().executeIOAsync(task, receiver);
+        return TaskRunner.getINSTANCE().executeIOAsync(priority, task, recycleDiscarded(receiver));
     }
 
     @Override
@@ -28,7 +28,10 @@ import android.net.Uri;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.android.wallpaper.util.TaskRunner;
 import com.android.wallpaper.util.TaskRunner.Callback;
+import com.android.wallpaper.util.TaskRunner.Handle;
+import com.android.wallpaper.util.TaskRunner.Priority;
 
 import java.io.IOException;
 import java.util.Objects;
@@ -61,7 +64,8 @@ public class LiveWallpaperThumbAsset extends Asset {
     }
 
     @Override
-    public void decodeBitmapAsync(int targetWidth, int targetHeight, Callback<Bitmap> receiver) {
+    public Handle decodeBitmapAsync(int targetWidth, int targetHeight, Priority priority,
+                                    Callback<Bitmap> receiver) {
         throw new UnsupportedOperationException();
     }
 
@@ -77,13 +81,14 @@ public class LiveWallpaperThumbAsset extends Asset {
     }
 
     @Override
-    public void decodeBitmapRegionAsync(Rect rect, int targetWidth, int targetHeight,
-                                        Callback<Bitmap> receiver) {
+    public Handle decodeBitmapRegionAsync(Rect rect, int targetWidth, int targetHeight,
+                                          Callback<Bitmap> receiver) {
         receiver.onError(new UnsupportedOperationException());
+        return TaskRunner.COMPLETED;
     }
 
     @Override
-    public void decodeRawDimensionsAsync(DimensionsReceiver receiver) {
+    public Handle decodeRawDimensionsAsync(DimensionsReceiver receiver) {
         throw new UnsupportedOperationException();
     }
 
@@ -0,0 +1,44 @@
+package com.android.wallpaper.asset;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.load.Options;
+import com.bumptech.glide.load.ResourceDecoder;
+import com.bumptech.glide.load.engine.Resource;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.load.resource.bitmap.BitmapResource;
+
+/**
+ * Hands bitmaps of our model loaders to Glide as owned resources, so Glide returns them to the
+ * pool once the view releases them. The default
+ * {@link com.bumptech.glide.load.resource.bitmap.UnitBitmapDecoder} treats them as not owned
+ * and drops them.
+ *
+ * Only mutable bitmaps are handled, those are fresh decodes of {@link StreamableAsset} nobody
+ * else holds. Immutable ones, e.g. built-in wallpapers of {@code WallpaperManager}, are left
+ * to the default decoder.
+ */
+final class PooledBitmapDecoder implements ResourceDecoder<Bitmap, Bitmap> {
+
+    private final BitmapPool mPool;
+
+    PooledBitmapDecoder(BitmapPool pool) {
+        mPool = pool;
+    }
+
+    @Override
+    public boolean handles(@NonNull Bitmap source, @NonNull Options options) {
+        return source.isMutable() && source.getConfig() != Config.HARDWARE;
+    }
+
+    @Nullable
+    @Override
+    public Resource<Bitmap> decode(@NonNull Bitmap source, int width, int height,
+                                   @NonNull Options options) {
+        return BitmapResource.obtain(source, mPool);
+    }
+}
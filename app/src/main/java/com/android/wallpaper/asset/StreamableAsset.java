@@ -28,13 +28,18 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
+import com.android.wallpaper.util.DecodeBudget;
 import com.android.wallpaper.util.TaskRunner;
 import com.android.wallpaper.util.TaskRunner.Callback;
+import com.android.wallpaper.util.TaskRunner.Handle;
+import com.android.wallpaper.util.TaskRunner.Priority;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Objects;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 
 import timber.log.Timber;
 
@@ -51,9 +56,31 @@ import timber.log.Timber;
 @SuppressWarnings("Exifinterface")
 public abstract class StreamableAsset extends Asset {
 
+    /**
+     * Pool of Glide, candidates of {@link BitmapFactory.Options#inBitmap} for region decodes.
+     * {@code null} until Glide is initialized.
+     */
+    @Nullable
+    private static volatile BitmapPool sBitmapPool;
+
+    /**
+     * Guards the region decoder, which is shared by all region decodes of this asset.
+     */
+    private final Object mDecoderLock = new Object();
+
     @Nullable
     private BitmapRegionDecoder mBitmapRegionDecoder;
 
+    /**
+     * Region decodes currently using {@link #mBitmapRegionDecoder}.
+     */
+    private int mDecoderUsers;
+
+    /**
+     * {@link #recycle()} was called while the decoder was in use, last user recycles it.
+     */
+    private boolean mRecyclePending;
+
     @Nullable
     protected Point mDimensions;
 
@@ -77,9 +104,9 @@ public abstract class StreamableAsset extends Asset {
     }
 
     @Override
-    public void decodeRawDimensionsAsync(DimensionsReceiver receiver) {
+    public Handle decodeRawDimensionsAsync(DimensionsReceiver receiver) {
         DecodeDimensionsAsyncTask task = new DecodeDimensionsAsyncTask(this);
-        TaskRunner.getINSTANCE().executeIOAsync(task, new Callback<Point>() {
+        return TaskRunner.getINSTANCE().executeIOAsync(task, new Callback<Point>() {
             @Override
             public void onComplete(Point dimensions) {
                 receiver.onDimensionsDecoded(dimensions);
@@ -93,9 +120,10 @@ public abstract class StreamableAsset extends Asset {
     }
 
     @Override
-    public void decodeBitmapAsync(int targetWidth, int targetHeight, Callback<Bitmap> receiver) {
+    public Handle decodeBitmapAsync(int targetWidth, int targetHeight, Priority priority,
+                                    Callback<Bitmap> receiver) {
         DecodeBitmapAsyncTask task = new DecodeBitmapAsyncTask(this, targetWidth, targetHeight);
-        TaskRunner.getINSTANCE().executeIOAsync(task, receiver);
+        return TaskRunner.getINSTANCE().executeIOAsync(priority, task, recycleDiscarded(receiver));
     }
 
     @NonNull
@@ -105,10 +133,10 @@ public abstract class StreamableAsset extends Asset {
     }
 
     @Override
-    public void decodeBitmapRegionAsync(Rect rect, int targetWidth, int targetHeight,
-                                   Callback<Bitmap> receiver) {
+    public Handle decodeBitmapRegionAsync(Rect rect, int targetWidth, int targetHeight,
+                                          Callback<Bitmap> receiver) {
         DecodeBitmapRegionAsyncTask task = new DecodeBitmapRegionAsyncTask(this, rect, targetWidth, targetHeight);
-        TaskRunner.getINSTANCE().executeIOAsync(task, receiver);
+        return TaskRunner.getINSTANCE().executeIOAsync(task, recycleDiscarded(receiver));
     }
 
     @Override
@@ -118,12 +146,21 @@ public abstract class StreamableAsset extends Asset {
         return DecodeBitmapRegionAsyncTask.decode(this, rect, targetWidth, targetHeight);
     }
 
+    @Override
+    @WorkerThread
+    public @NonNull Bitmap decodeFinalBitmapRegion(Rect rect, int targetWidth, int targetHeight)
+            throws IOException, OutOfMemoryError {
+        return DecodeBitmapRegionAsyncTask.decode(this, rect, targetWidth, targetHeight, false);
+    }
+
     /**
      * Fetches an input stream of bytes for the wallpaper image asset and provides the stream
-     * asynchronously back to a {@link Callback}.
+     * asynchronously back to a {@link Callback}. The stream is used to set a wallpaper, so
+     * the task is never dropped by preview work.
      */
     public void fetchInputStream(final Callback<InputStream> streamReceiver) {
-        TaskRunner.getINSTANCE().executeIOAsync(new FetchInputStreamAsyncTask(this), streamReceiver);
+        TaskRunner.getINSTANCE().executeUnboundedIOAsync(Priority.VISIBLE,
+                new FetchInputStreamAsyncTask(this), streamReceiver);
     }
 
     /**
@@ -216,12 +253,131 @@ public abstract class StreamableAsset extends Asset {
         }
     }
 
+    /**
+     * Rotate output bitmap if necessary because of EXIF orientation, checks cancellation
+     * before and after the rotation and recycles the bitmaps of a cancelled task.
+     */
+    @WorkerThread
+    private static Bitmap rotateIfNeeded(@NonNull Bitmap bitmap, int exifOrientation) {
+        int matrixRotation = getDegreesRotationForExifOrientation(exifOrientation);
+        Bitmap rotated = bitmap;
+        try {
+            TaskRunner.throwIfCancelled();
+            if (matrixRotation > 0) {
+                Matrix rotateMatrix = new Matrix();
+                rotateMatrix.setRotate(matrixRotation);
+                rotated = Bitmap.createBitmap(
+                        bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), rotateMatrix, false);
+                TaskRunner.throwIfCancelled();
+            }
+            Objects.requireNonNull(rotated);
+        } catch (CancellationException e) {
+            if (rotated != bitmap) recycleBitmap(rotated);
+            recycleBitmap(bitmap);
+            throw e;
+        }
+        // source is a copy nobody else holds
+        if (rotated != bitmap) recycleBitmap(bitmap);
+        return rotated;
+    }
+
+    static void setBitmapPool(@Nullable BitmapPool pool) {
+        sBitmapPool = pool;
+    }
+
+    /**
+     * Return a decoded bitmap nobody uses anymore to the pool, so the next region decode
+     * can reuse it. Bitmaps that can't be reused are recycled.
+     */
+    public static void recycleBitmap(@NonNull Bitmap bitmap) {
+        BitmapPool pool = sBitmapPool;
+        if (pool != null && bitmap.isMutable() && bitmap.getConfig() != Config.HARDWARE) {
+            pool.put(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Open the shared region decoder if needed and count a user of it, every successful call
+     * must be paired with {@link #releaseRegionDecoder()}.
+     *
+     * @return The decoder, {@code null} if it failed to open.
+     */
+    @WorkerThread
+    @Nullable
+    private BitmapRegionDecoder acquireRegionDecoder() {
+        synchronized (mDecoderLock) {
+            if (mBitmapRegionDecoder != null) {
+                mDecoderUsers++;
+                return mBitmapRegionDecoder;
+            }
+        }
+
+        // open outside of the lock, recycle() may be called from main thread
+        BitmapRegionDecoder opened = openBitmapRegionDecoder();
+        if (opened == null) return null;
+        BitmapRegionDecoder decoder;
+        synchronized (mDecoderLock) {
+            if (mBitmapRegionDecoder == null) mBitmapRegionDecoder = opened;
+            decoder = mBitmapRegionDecoder;
+            mDecoderUsers++;
+        }
+        // another task opened one at the same time
+        if (decoder != opened) opened.recycle();
+        return decoder;
+    }
+
+    private void releaseRegionDecoder() {
+        BitmapRegionDecoder decoder = null;
+        synchronized (mDecoderLock) {
+            mDecoderUsers--;
+            if (mDecoderUsers == 0 && mRecyclePending) {
+                mRecyclePending = false;
+                decoder = mBitmapRegionDecoder;
+                mBitmapRegionDecoder = null;
+            }
+        }
+        if (decoder != null) decoder.recycle();
+    }
+
+    /**
+     * Wrap the receiver of a decode, so a bitmap decoded for a cancelled handle goes back
+     * to the pool instead of being dropped.
+     */
+    protected static Callback<Bitmap> recycleDiscarded(Callback<Bitmap> receiver) {
+        return new Callback<Bitmap>() {
+            @Override
+            public void onComplete(Bitmap result) {
+                receiver.onComplete(result);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                receiver.onError(e);
+            }
+
+            @Override
+            public void onDiscarded(Bitmap result) {
+                recycleBitmap(result);
+            }
+        };
+    }
+
+    /**
+     * Release the region decoder now, or after the last running region decode finished.
+     */
     public void recycle() {
-        BitmapRegionDecoder decoder = mBitmapRegionDecoder;
-        if (decoder != null && !decoder.isRecycled()) {
+        BitmapRegionDecoder decoder;
+        synchronized (mDecoderLock) {
+            if (mDecoderUsers > 0) {
+                mRecyclePending = true;
+                return;
+            }
+            decoder = mBitmapRegionDecoder;
             mBitmapRegionDecoder = null;
-            decoder.recycle();
         }
+        if (decoder != null && !decoder.isRecycled()) decoder.recycle();
     }
 
     /**
@@ -241,6 +397,17 @@ public abstract class StreamableAsset extends Asset {
 
         @WorkerThread
         protected static Bitmap decode(StreamableAsset mAsset, int mTargetWidth, int mTargetHeight) throws IOException {
+            return decode(mAsset, mTargetWidth, mTargetHeight, true);
+        }
+
+        /**
+         * @param allowDownsample {@code false} to never sample down below the target size when
+         *                        the decode budget is tight.
+         * @see DecodeBudget#acquire(int, int, int, boolean)
+         */
+        @WorkerThread
+        protected static Bitmap decode(StreamableAsset mAsset, int mTargetWidth, int mTargetHeight,
+                                       boolean allowDownsample) throws IOException {
             int exifOrientation = mAsset.getExifOrientation();
             // Switch target height and width if image is rotated 90 or 270 degrees.
             if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90
@@ -253,30 +420,29 @@ public abstract class StreamableAsset extends Asset {
             BitmapFactory.Options options = new BitmapFactory.Options();
 
             Point rawDimensions = mAsset.decodeRawDimensions();
+            TaskRunner.throwIfCancelled();
 
-            options.inSampleSize = BitmapUtils.calculateInSampleSize(
+            int sampleSize = BitmapUtils.calculateInSampleSize(
                     rawDimensions.x, rawDimensions.y, mTargetWidth, mTargetHeight);
             options.inPreferredConfig = Config.HARDWARE;
 
-            InputStream inputStream = mAsset.openInputStream();
-            if (inputStream == null) {
-                throw new IOException("Failed to open inputStream.");
-            }
-            Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+            // hold the permit until rotated, rotation allocates a second bitmap
+            try (DecodeBudget.Permit permit = DecodeBudget.getInstance()
+                    .acquire(rawDimensions.x, rawDimensions.y, sampleSize, allowDownsample)) {
+                options.inSampleSize = permit.sampleSize;
 
-            closeInputStream(
-                    inputStream, "Error closing the input stream used to decode the full bitmap");
-            if (bitmap == null) throw new IOException("Failed to decode bitmap");
+                InputStream inputStream = mAsset.openInputStream();
+                if (inputStream == null) {
+                    throw new IOException("Failed to open inputStream.");
+                }
+                Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, options);
 
-            // Rotate output bitmap if necessary because of EXIF orientation tag.
-            int matrixRotation = getDegreesRotationForExifOrientation(exifOrientation);
-            if (matrixRotation > 0) {
-                Matrix rotateMatrix = new Matrix();
-                rotateMatrix.setRotate(matrixRotation);
-                bitmap = Bitmap.createBitmap(
-                        bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), rotateMatrix, false);
+                closeInputStream(
+                        inputStream, "Error closing the input stream used to decode the full bitmap");
+                if (bitmap == null) throw new IOException("Failed to decode bitmap");
+
+                return rotateIfNeeded(bitmap, exifOrientation);
             }
-            return Objects.requireNonNull(bitmap);
         }
 
         @Override
@@ -304,6 +470,18 @@ public abstract class StreamableAsset extends Asset {
         @WorkerThread
         protected static Bitmap decode(StreamableAsset mAsset, Rect mCropRect, int mTargetWidth,
                                        int mTargetHeight) throws OutOfMemoryError, IOException {
+            return decode(mAsset, mCropRect, mTargetWidth, mTargetHeight, true);
+        }
+
+        /**
+         * @param allowDownsample {@code false} to never sample down below the target size when
+         *                        the decode budget is tight.
+         * @see DecodeBudget#acquire(int, int, int, boolean)
+         */
+        @WorkerThread
+        protected static Bitmap decode(StreamableAsset mAsset, Rect mCropRect, int mTargetWidth,
+                                       int mTargetHeight, boolean allowDownsample)
+                throws OutOfMemoryError, IOException {
             int exifOrientation = mAsset.getExifOrientation();
             // Switch target height and width if image is rotated 90 or 270 degrees.
             if (exifOrientation == ExifInterface.ORIENTATION_ROTATE_90
@@ -316,33 +494,69 @@ public abstract class StreamableAsset extends Asset {
             // Rotate crop rect if image is rotated more than 0 degrees.
             mCropRect = CropRectRotator.rotateCropRectForExifOrientation(
                     mAsset.decodeRawDimensions(), mCropRect, exifOrientation);
+            TaskRunner.throwIfCancelled();
 
             BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inSampleSize = BitmapUtils.calculateInSampleSize(
+            int sampleSize = BitmapUtils.calculateInSampleSize(
                     mCropRect.width(), mCropRect.height(), mTargetWidth, mTargetHeight);
 
-            if (mAsset.mBitmapRegionDecoder == null) {
-                mAsset.mBitmapRegionDecoder = mAsset.openBitmapRegionDecoder();
-            }
-
             // Bitmap region decoder may have failed to open if there was a problem with the underlying
             // InputStream.
-            if (mAsset.mBitmapRegionDecoder != null) {
-                Bitmap bitmap = mAsset.mBitmapRegionDecoder.decodeRegion(mCropRect, options);
-                // Rotate output bitmap if necessary because of EXIF orientation.
-                int matrixRotation = getDegreesRotationForExifOrientation(exifOrientation);
-                if (matrixRotation > 0) {
-                    Matrix rotateMatrix = new Matrix();
-                    rotateMatrix.setRotate(matrixRotation);
-                    bitmap = Bitmap.createBitmap(
-                            bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), rotateMatrix, false);
+            BitmapRegionDecoder decoder = mAsset.acquireRegionDecoder();
+            if (decoder != null) {
+                Bitmap bitmap;
+                try (DecodeBudget.Permit permit = DecodeBudget.getInstance()
+                        .acquire(mCropRect.width(), mCropRect.height(), sampleSize, allowDownsample)) {
+                    options.inSampleSize = permit.sampleSize;
+                    options.inMutable = true;
+                    BitmapPool pool = sBitmapPool;
+                    if (pool != null) {
+                        // same dimensions as the decoder scales the region
+                        options.inBitmap = pool.get(
+                                Math.max(1, mCropRect.width() / permit.sampleSize),
+                                Math.max(1, mCropRect.height() / permit.sampleSize),
+                                Config.ARGB_8888);
+                    }
+                    try {
+                        TaskRunner.throwIfCancelled();
+                        bitmap = decodeRegion(decoder, mCropRect, options);
+                    } catch (CancellationException e) {
+                        // other tasks may still use the decoder, its owner recycles the asset
+                        if (options.inBitmap != null) recycleBitmap(options.inBitmap);
+                        throw e;
+                    }
+                    return rotateIfNeeded(bitmap, exifOrientation);
+                } finally {
+                    mAsset.releaseRegionDecoder();
                 }
-                return bitmap;
             } else {
                 throw new IOException("Unable to open BitmapRegionDecoder");
             }
         }
 
+        /**
+         * Decode into {@link BitmapFactory.Options#inBitmap}, or a new bitmap if it can't be reused.
+         */
+        private static Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect rect,
+                                           BitmapFactory.Options options) throws IOException {
+            Bitmap bitmap;
+            try {
+                bitmap = decoder.decodeRegion(rect, options);
+            } catch (IllegalArgumentException e) {
+                if (options.inBitmap == null) throw e;
+                Timber.d(e, "Unable to reuse bitmap");
+                recycleBitmap(options.inBitmap);
+                options.inBitmap = null;
+                bitmap = decoder.decodeRegion(rect, options);
+            }
+            // decoder may allocate a new one instead
+            if (options.inBitmap != null && bitmap != options.inBitmap) {
+                recycleBitmap(options.inBitmap);
+            }
+            if (bitmap == null) throw new IOException("Failed to decode region " + rect);
+            return bitmap;
+        }
+
         @Override
         public Bitmap call() throws IOException {
             return decode(mAsset, mCropRect, mTargetWidth, mTargetHeight);
@@ -13,6 +13,9 @@ import com.bumptech.glide.GlideBuilder;
 import com.bumptech.glide.Registry;
 import com.bumptech.glide.annotation.GlideModule;
 import com.bumptech.glide.load.DecodeFormat;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool;
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPoolAdapter;
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool;
 import com.bumptech.glide.load.engine.cache.InternalCacheDiskCacheFactory;
 import com.bumptech.glide.load.engine.cache.MemorySizeCalculator;
 import com.bumptech.glide.module.AppGlideModule;
@@ -47,12 +50,22 @@ public final class WallpaperGlideModule extends AppGlideModule {
                 .setMemoryCacheScreens(1.2f)
                 .build();
         builder.setMemorySizeCalculator(calculator);
+
+        // Share the pool with region decodes of StreamableAsset
+        BitmapPool pool = calculator.getBitmapPoolSize() > 0
+                ? new LruBitmapPool(calculator.getBitmapPoolSize())
+                : new BitmapPoolAdapter();
+        builder.setBitmapPool(pool);
+        StreamableAsset.setBitmapPool(pool);
         builder.setDefaultRequestOptions(
                 new RequestOptions().format(DecodeFormat.PREFER_ARGB_8888));
     }
 
     @Override
     public void registerComponents(@NonNull Context context,@NonNull Glide glide, Registry registry) {
+        // Released previews go back to the pool shared with region decodes
+        registry.prepend(Registry.BUCKET_BITMAP, Bitmap.class, Bitmap.class,
+                new PooledBitmapDecoder(glide.getBitmapPool()));
         registry.append(FileAsset.class, Bitmap.class, new FileAssetLoader.FileDescriptorAssetLoaderFactory())
                 .append(LiveWallpaperThumbAsset.class, Drawable.class, new LiveWallpaperThumbAssetLoaderFactory())
                 .append(CurrentWallpaperAssetVN.class, InputStream.class, new CurrentWallpaperAssetVNLoaderFactory())
@@ -23,6 +23,7 @@ import androidx.annotation.NonNull;
 import com.android.wallpaper.asset.Asset;
 import com.android.wallpaper.asset.StreamableAsset;
 import com.android.wallpaper.util.TaskRunner;
+import com.android.wallpaper.util.TaskRunner.Priority;
 
 import java.util.concurrent.Callable;
 
@@ -54,7 +55,10 @@ public final class BitmapCropper {
                 Math.round((float) cropRect.right / scale),
                 Math.round((float) cropRect.bottom / scale));
 
-        asset.decodeBitmapRegionAsync(scaledCropRect, cropRect.width(), cropRect.height(), new TaskRunner.Callback<Bitmap>() {
+        // User is waiting for the wallpaper to be set, never let preview work drop these steps
+        Callable<Bitmap> decodeTask = () -> asset.decodeFinalBitmapRegion(scaledCropRect,
+                cropRect.width(), cropRect.height());
+        TaskRunner.getINSTANCE().executeUnboundedIOAsync(Priority.VISIBLE, decodeTask, new TaskRunner.Callback<Bitmap>() {
             @Override
             public void onComplete(@NonNull Bitmap bitmap) {
                 // UI won't decode it anymore, it's useless now
@@ -64,8 +68,9 @@ public final class BitmapCropper {
                 }
                 // Asset provides a bitmap which is appropriate for the target width & height, but since
                 // it does not guarantee an exact size we need to fit the bitmap to the cropRect.
-                ScaleBitmapTask task = new ScaleBitmapTask(bitmap, cropRect);
-                TaskRunner.getINSTANCE().executeIOAsync(task, new TaskRunner.Callback<Bitmap>() {
+                ScaleBitmapTask task = new ScaleBitmapTask(bitmap, cropRect,
+                        asset instanceof StreamableAsset);
+                TaskRunner.getINSTANCE().executeUnboundedIOAsync(Priority.VISIBLE, task, new TaskRunner.Callback<Bitmap>() {
                     @Override
                     public void onComplete(Bitmap croppedBitmap) {
                         callback.onBitmapCropped(croppedBitmap);
@@ -95,20 +100,28 @@ public final class BitmapCropper {
 
         private final Bitmap mBitmap;
 
-        public ScaleBitmapTask(@NonNull Bitmap bitmap, Rect cropRect) {
+        /**
+         * Source bitmap is decoded for this task only, return it to the pool once scaled.
+         */
+        private final boolean mRecycleSource;
+
+        public ScaleBitmapTask(@NonNull Bitmap bitmap, Rect cropRect, boolean recycleSource) {
             super();
             mBitmap = bitmap;
             mCropRect = cropRect;
+            mRecycleSource = recycleSource;
         }
 
         @Override
         public Bitmap call() throws OutOfMemoryError {
             // Fit bitmap to exact dimensions of crop rect.
-            return Bitmap.createScaledBitmap(
+            Bitmap scaled = Bitmap.createScaledBitmap(
                     mBitmap,
                     mCropRect.width(),
                     mCropRect.height(),
                     FILTER_SCALED_BITMAP);
+            if (mRecycleSource && scaled != mBitmap) StreamableAsset.recycleBitmap(mBitmap);
+            return scaled;
         }
     }
 }
\ No newline at end of file
@@ -32,6 +32,7 @@ import com.android.wallpaper.asset.StreamableAsset;
 import com.android.wallpaper.module.BitmapCropper.Callback;
 import com.android.wallpaper.util.BitmapTransformer;
 import com.android.wallpaper.util.TaskRunner;
+import com.android.wallpaper.util.TaskRunner.Priority;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -95,7 +96,7 @@ public final class WallpaperPersister {
             @Override
             public void onBitmapCropped(@NonNull Bitmap croppedBitmap) {
                 PersistWallpaperTask task = new PersistWallpaperTask(parent, croppedBitmap);
-                TaskRunner.getINSTANCE().executeIOAsync(task, new TaskRunner.Callback<String>() {
+                TaskRunner.getINSTANCE().executeUnboundedIOAsync(Priority.VISIBLE, task, new TaskRunner.Callback<String>() {
                     @Override
                     public void onComplete(String id) {
                         callback.onSuccess(id);
@@ -2,7 +2,6 @@ package com.android.wallpaper.module;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
-import android.app.IWallpaperManager;
 import android.app.ProgressDialog;
 import android.app.WallpaperManager;
 import android.content.Context;
@@ -24,11 +23,11 @@ import com.android.wallpaper.picker.SetWallpaperDialogFragment.Listener;
 import com.bumptech.glide.Glide;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Optional;
 
 import me.ranko.autodark.R;
 import me.ranko.autodark.core.ShizukuApi;
+import me.ranko.autodark.core.ShizukuTransaction;
 import me.ranko.autodark.model.DarkWallpaperInfo;
 import timber.log.Timber;
 
@@ -143,29 +142,34 @@ public final class WallpaperSetter {
     }
 
     public void setCurrentLiveWallpaper(LiveWallpaperInfo wallpaper, @Nullable SetWallpaperCallback callback) {
-        try {
-            WallpaperManager mManager = mWallpaperPersister.mWallpaperManager;
-            IWallpaperManager iWallpaperManager = ShizukuApi.INSTANCE.getIWallpaperManager();
-            iWallpaperManager.setWallpaperComponent(wallpaper.getWallpaperComponentName());
-
+        WallpaperManager mManager = mWallpaperPersister.mWallpaperManager;
+        // keep the lock wallpaper if the live wallpaper is not set
+        ShizukuTransaction.Result result = ShizukuApi.INSTANCE.beginTransaction()
+                .setWallpaperComponent(wallpaper.getWallpaperComponentName())
+                .clearLockWallpaper(mManager)
+                .abortOnFailure()
+                .commit();
+
+        ShizukuTransaction.OpResult setResult = result.getResult(ShizukuTransaction.OP_WALLPAPER_COMPONENT);
+        if (setResult != null && setResult.isSuccess()) {
             if (callback != null) {
                 String id = String.valueOf(mManager.getWallpaperId(WallpaperManager.FLAG_SYSTEM));
                 callback.onSuccess(id);
             }
-
-            if (mManager.getWallpaperId(WallpaperManager.FLAG_LOCK) != -1 ||
-                    mManager.getWallpaperFile(WallpaperManager.FLAG_LOCK) != null) {
-                mManager.clear(WallpaperManager.FLAG_LOCK);
-            }
-        } catch (IOException e) {
-            Timber.e(e);
-        } catch (RuntimeException e) {
+        } else {
+            Exception error = setResult == null
+                    ? new IllegalStateException("No result for component op")
+                    : setResult.getError();
             if (callback != null) {
-                callback.onError(e);
+                callback.onError(error);
             } else {
-                Timber.e(e, "Failed setting liveWallpaper: %s.", wallpaper.getWallpaperId());
+                Timber.e(error, "Failed setting liveWallpaper: %s.", wallpaper.getWallpaperId());
             }
         }
+
+        if (!result.isSuccess()) {
+            Timber.w("Live wallpaper transaction incomplete: %s", result.getResults());
+        }
     }
 
     /**
@@ -41,6 +41,7 @@ import androidx.core.widget.ContentLoadingProgressBar;
 import androidx.interpolator.view.animation.FastOutSlowInInterpolator;
 
 import com.android.wallpaper.asset.Asset;
+import com.android.wallpaper.asset.StreamableAsset;
 import com.android.wallpaper.model.WallpaperInfo;
 import com.android.wallpaper.module.WallpaperPersister;
 import com.android.wallpaper.module.WallpaperSetter;
@@ -92,12 +93,18 @@ public final class ImagePreviewFragment extends PreviewFragment
     private SubsamplingScaleImageView mFullResImageView;
 
     private Point mRawWallpaperSize; // Native size of wallpaper image.
+    @Nullable
+    private Bitmap mPageBitmap; // Owned by this fragment, the view only borrows it.
     private TouchForwardingLayout mTouchForwardingLayout;
     private ConstraintLayout mContainer;
     private FrameLayout mWallpaperSurface;
     private LockScreenPreviewer mLockScreenPreviewer;
     private ViewGroup mLockPreviewContainer;
 
+    /** Dimensions decode followed by the page bitmap decode. */
+    private final TaskRunner.ChainedHandle mDecodeHandle = new TaskRunner.ChainedHandle();
+    private TaskRunner.Handle mColorsHandle = TaskRunner.COMPLETED;
+
     /**
      * Creates and returns new instance of {@link ImagePreviewFragment} with the provided wallpaper
      * set as an argument.
@@ -193,7 +200,7 @@ public final class ImagePreviewFragment extends PreviewFragment
     @Override
     public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
-        WallpaperColorsLoader.getWallpaperColors(getContext(),
+        mColorsHandle = WallpaperColorsLoader.getWallpaperColors(getContext(),
                 mWallpaper.getThumbAsset(getContext()),
                 mLockScreenPreviewer::setColor);
     }
@@ -205,10 +212,16 @@ public final class ImagePreviewFragment extends PreviewFragment
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mDecodeHandle.cancel();
+        mColorsHandle.cancel();
         if (mLoadingProgressBar != null) {
             mLoadingProgressBar.hide();
         }
         mFullResImageView.recycle();
+        if (mPageBitmap != null) {
+            StreamableAsset.recycleBitmap(mPageBitmap);
+            mPageBitmap = null;
+        }
         mWallpaperSetter.cleanUp();
         mWallpaperSetter = null;
     }
@@ -248,7 +261,7 @@ public final class ImagePreviewFragment extends PreviewFragment
         bottomActionBar.show();
 
         bottomActionBar.disableActions();
-        mWallpaper.getAsset(requireContext()).decodeRawDimensionsAsync(new Asset.DimensionsReceiver() {
+        mDecodeHandle.set(mWallpaper.getAsset(requireContext()).decodeRawDimensionsAsync(new Asset.DimensionsReceiver() {
             @Override
             public void onDimensionsDecoded(@NonNull Point dimensions) {
                 // Don't continue loading the wallpaper if the Fragment is detached.
@@ -263,7 +276,7 @@ public final class ImagePreviewFragment extends PreviewFragment
             public void onError(@Nullable Exception e) {
                 showLoadWallpaperErrorDialog(e);
             }
-        });
+        }));
     }
 
     /**
@@ -280,11 +293,14 @@ public final class ImagePreviewFragment extends PreviewFragment
         // Then set a fallback "page bitmap" to cover the whole MosaicView, which is an actual
         // (lower res) version of the image to be displayed.
         Point targetPageBitmapSize = new Point(mRawWallpaperSize);
-        mWallpaper.getAsset(requireContext()).decodeBitmapAsync(targetPageBitmapSize.x, targetPageBitmapSize.y, new TaskRunner.Callback<Bitmap>() {
+        mDecodeHandle.set(mWallpaper.getAsset(requireContext()).decodeBitmapAsync(targetPageBitmapSize.x, targetPageBitmapSize.y, new TaskRunner.Callback<Bitmap>() {
             @Override
             public void onComplete(@NonNull Bitmap pageBitmap) {
                 // Check that the activity is still around since the decoding task started.
-                if (getActivity() == null) return;
+                if (getActivity() == null) {
+                    StreamableAsset.recycleBitmap(pageBitmap);
+                    return;
+                }
 
                 // Some of these may be null depending on if the Fragment is paused, stopped,
                 // or destroyed.
@@ -293,11 +309,14 @@ public final class ImagePreviewFragment extends PreviewFragment
                 }
 
                 if (mFullResImageView != null) {
-                    // Set page bitmap.
-                    mFullResImageView.setImage(ImageSource.bitmap(pageBitmap));
+                    // Set page bitmap, cached so the view won't recycle it and it can be pooled.
+                    mPageBitmap = pageBitmap;
+                    mFullResImageView.setImage(ImageSource.cachedBitmap(pageBitmap));
 
                     setDefaultWallpaperZoomAndScroll();
                     crossFadeInMosaicView();
+                } else {
+                    StreamableAsset.recycleBitmap(pageBitmap);
                 }
                 getActivity().invalidateOptionsMenu();
             }
@@ -306,7 +325,7 @@ public final class ImagePreviewFragment extends PreviewFragment
             public void onError(Exception e) {
                 showLoadWallpaperErrorDialog(e);
             }
-        });
+        }));
     }
 
     /**
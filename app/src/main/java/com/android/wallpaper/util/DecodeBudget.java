@@ -0,0 +1,193 @@
+package com.android.wallpaper.util;
+
+import android.app.ActivityManager;
+import android.content.Context;
+
+import androidx.annotation.WorkerThread;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+
+import timber.log.Timber;
+
+/**
+ * Bounds the memory of bitmap decodes running at the same time.
+ *
+ * Each decode estimates its output from the raw dimensions and sample size and asks for a
+ * {@link Permit} before allocating. A decode bigger than the whole budget is sampled down
+ * until it fits, a decode bigger than the free budget waits for running ones. Once it waited
+ * {@link #QUEUE_TIMEOUT_MILLIS} it is sampled down further instead of waiting longer.
+ *
+ * Decodes that must keep their quality, e.g. the crop a wallpaper is set from, are never
+ * sampled down and wait for the free budget instead.
+ *
+ * Waiting decodes are admitted in arrival order, so a big decode is not starved by smaller
+ * ones that keep fitting into the budget it waits for.
+ *
+ * Only in-flight decodes are counted, bitmaps held by views and Glide are not. The budget is
+ * sized from the Java heap class but estimates every decode at {@link #BYTES_PER_PIXEL}, also
+ * {@link android.graphics.Bitmap.Config#HARDWARE} ones whose result lives in graphics memory.
+ * They are counted anyway since the decoder stages the full pixels in native memory before
+ * the upload, so the estimate bounds the transient peak rather than the heap used afterwards.
+ */
+public final class DecodeBudget {
+
+    /**
+     * Share of the app heap given to decodes in flight.
+     */
+    private static final int HEAP_DIVISOR = 4;
+
+    private static final long QUEUE_TIMEOUT_MILLIS = 1000L;
+
+    /**
+     * Interval to check cancellation while waiting.
+     */
+    private static final long WAIT_SLICE_MILLIS = 100L;
+
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private static volatile DecodeBudget INSTANCE;
+
+    private final long mBudget;
+
+    private long mInUse;
+
+    /**
+     * Tickets of waiting decodes in arrival order, only the head may be admitted.
+     */
+    private final ArrayDeque<Object> mWaiters = new ArrayDeque<>();
+
+    /**
+     * Admitted decode, close it once the decode finished or failed.
+     */
+    public final class Permit implements AutoCloseable {
+        /**
+         * Sample size to decode with, may be bigger than the requested one.
+         */
+        public final int sampleSize;
+
+        private final long bytes;
+
+        private boolean closed;
+
+        private Permit(int sampleSize, long bytes) {
+            this.sampleSize = sampleSize;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            synchronized (DecodeBudget.this) {
+                if (closed) return;
+                closed = true;
+                mInUse -= bytes;
+                DecodeBudget.this.notifyAll();
+            }
+        }
+    }
+
+    private DecodeBudget(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Derive the budget from {@link ActivityManager#getMemoryClass()}, call it once the
+     * application created. Falls back to the runtime max memory if never called.
+     */
+    public static void init(Context context) {
+        if (INSTANCE != null) return;
+        synchronized (DecodeBudget.class) {
+            if (INSTANCE != null) return;
+            ActivityManager manager = context.getSystemService(ActivityManager.class);
+            long heap = manager.getMemoryClass() * 1024L * 1024L;
+            INSTANCE = new DecodeBudget(heap / HEAP_DIVISOR);
+        }
+    }
+
+    public static DecodeBudget getInstance() {
+        if (INSTANCE == null) {
+            synchronized (DecodeBudget.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new DecodeBudget(Runtime.getRuntime().maxMemory() / HEAP_DIVISOR);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * @return Estimated bytes of the bitmap decoded with the sample size.
+     */
+    public static long estimateBytes(int width, int height, int sampleSize) {
+        long sampledWidth = (width + sampleSize - 1) / sampleSize;
+        long sampledHeight = (height + sampleSize - 1) / sampleSize;
+        return sampledWidth * sampledHeight * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * Block until the decode is admitted, sample it down if the budget is tight.
+     *
+     * @see #acquire(int, int, int, boolean)
+     */
+    @WorkerThread
+    public Permit acquire(int width, int height, int sampleSize) throws InterruptedIOException {
+        return acquire(width, height, sampleSize, true);
+    }
+
+    /**
+     * Block until the decode is admitted.
+     *
+     * @param width           Width of the source or the region to decode.
+     * @param height          Height of the source or the region to decode.
+     * @param sampleSize      Preferred sample size, a power of 2.
+     * @param allowDownsample {@code false} to always decode with the preferred sample size,
+     *                        wait as long as needed instead.
+     * @throws InterruptedIOException if interrupted while waiting.
+     * @throws java.util.concurrent.CancellationException if the running task is cancelled.
+     */
+    @WorkerThread
+    public synchronized Permit acquire(int width, int height, int sampleSize,
+                                       boolean allowDownsample) throws InterruptedIOException {
+        int sample = Math.max(sampleSize, 1);
+        while (allowDownsample && estimateBytes(width, height, sample) > mBudget
+                && sample < (1 << 16)) {
+            sample <<= 1;
+        }
+
+        long deadline = System.currentTimeMillis() + QUEUE_TIMEOUT_MILLIS;
+        long bytes = estimateBytes(width, height, sample);
+        Object ticket = new Object();
+        mWaiters.addLast(ticket);
+        try {
+            // always admit when idle, only a decode that can't be sampled down exceeds the budget
+            while (mWaiters.peekFirst() != ticket || (mInUse > 0 && mInUse + bytes > mBudget)) {
+                TaskRunner.throwIfCancelled();
+                long remain = deadline - System.currentTimeMillis();
+                if (allowDownsample && remain <= 0 && sample < (1 << 16)) {
+                    // budget is tight, trade quality for progress
+                    sample <<= 1;
+                    bytes = estimateBytes(width, height, sample);
+                    deadline = System.currentTimeMillis() + QUEUE_TIMEOUT_MILLIS;
+                    continue;
+                }
+                long slice = allowDownsample ? Math.min(remain, WAIT_SLICE_MILLIS) : WAIT_SLICE_MILLIS;
+                try {
+                    wait(Math.max(1L, slice));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting decode budget");
+                }
+            }
+        } finally {
+            // admitted or gave up, either way the next one may go
+            mWaiters.remove(ticket);
+            notifyAll();
+        }
+
+        if (sample != sampleSize) {
+            Timber.d("Decode %sx%s sampled down %s -> %s", width, height, sampleSize, sample);
+        }
+        mInUse += bytes;
+        return new Permit(sample, bytes);
+    }
+}
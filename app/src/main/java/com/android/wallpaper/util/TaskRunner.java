@@ -3,29 +3,162 @@ package com.android.wallpaper.util;
 import android.os.Handler;
 import android.os.Looper;
 
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import kotlinx.coroutines.CoroutineDispatcher;
+import kotlinx.coroutines.ExecutorsKt;
 
+/**
+ * Runs tasks off the main thread and posts results back to it.
+ *
+ * IO tasks are queued into priority lanes, a higher lane always runs first and tasks in
+ * the same lane run in FIFO order. Each lane holds at most {@link #LANE_CAPACITY} waiting
+ * tasks, the oldest waiting task of a full lane is dropped with a
+ * {@link RejectedExecutionException} since newer requests are the ones on screen. Work that
+ * must complete whatever the user does next, e.g. saving a wallpaper, is submitted with
+ * {@link #executeUnboundedIOAsync} and waits outside of the lane instead.
+ *
+ * Every submitted task returns a {@link Handle}, once cancelled a waiting task is removed
+ * and the callback of a running task will never be called.
+ *
+ * Threads time out when idle, so there is nothing to shut down.
+ */
 public final class TaskRunner {
 
-    private static TaskRunner INSTANCE;
+    /**
+     * Lanes of IO tasks, in order of priority.
+     */
+    public enum Priority {
+        /** Work the user is waiting for, e.g. a visible preview. */
+        VISIBLE,
+        /** Work needed soon but not on screen yet. */
+        PREFETCH,
+        /** Work nobody waits for, e.g. color extraction. */
+        BACKGROUND
+    }
+
+    public interface Callback<R> {
+        void onComplete(R result);
+
+        void onError(Exception e);
+
+        /**
+         * Called instead of {@link #onComplete} when the task finished but was cancelled
+         * meanwhile, to release a result nobody receives.
+         */
+        default void onDiscarded(R result) {
+        }
+    }
+
+    /**
+     * Cancellable handle of a submitted task.
+     */
+    public interface Handle {
+        /**
+         * Remove the task if still waiting, and never deliver its result.
+         */
+        void cancel();
+
+        boolean isCancelled();
+    }
+
+    /**
+     * Handle of finished or never started work, cancelling it does nothing.
+     */
+    public static final Handle COMPLETED = new Handle() {
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    /**
+     * Handle of a chain of tasks, where each step is submitted after the previous one finished.
+     */
+    public static final class ChainedHandle implements Handle {
+        private volatile boolean cancelled;
+        private volatile Handle current = COMPLETED;
+
+        /**
+         * Track the running step, it is cancelled at once if the chain is cancelled.
+         *
+         * @return the step handle
+         */
+        public Handle set(Handle step) {
+            current = step;
+            if (cancelled) step.cancel();
+            return step;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            current.cancel();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Task running on current thread, to check cancellation from inside the work
+     */
+    private static final ThreadLocal<Handle> sCurrentTask = new ThreadLocal<>();
+
+    private static final int IO_THREADS = 4;
+
+    private static final int LANE_CAPACITY = 16;
+
+    private static final long KEEP_ALIVE_SECONDS = 30L;
+
+    private static volatile TaskRunner INSTANCE;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<>());
+
+    private final ThreadPoolExecutor ioExecutor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<>());
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    /**
+     * Waiting callback tasks of each lane, oldest first
+     */
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<Task<?>>[] lanes = new ArrayDeque[Priority.values().length];
 
-    private final ExecutorService ioExecutor = new ThreadPoolExecutor(
-            2,
-            6,
-            60L,
-            TimeUnit.SECONDS,
-            new SynchronousQueue<>());
+    private final Executor[] laneExecutors = new Executor[Priority.values().length];
+
+    private final CoroutineDispatcher[] dispatchers = new CoroutineDispatcher[Priority.values().length];
+
+    private final AtomicLong sequence = new AtomicLong();
 
     private final Handler handler = new Handler(Looper.getMainLooper());
 
     private TaskRunner() {
+        executor.allowCoreThreadTimeOut(true);
+        ioExecutor.allowCoreThreadTimeOut(true);
+        for (Priority priority : Priority.values()) {
+            lanes[priority.ordinal()] = new ArrayDeque<>(LANE_CAPACITY);
+            // Runnables of coroutines are never dropped, a dropped continuation hangs forever
+            laneExecutors[priority.ordinal()] = command ->
+                    ioExecutor.execute(new Task<>(priority, command));
+            dispatchers[priority.ordinal()] = ExecutorsKt.from(laneExecutors[priority.ordinal()]);
+        }
     }
 
     public static TaskRunner getINSTANCE() {
@@ -37,40 +170,162 @@ public final class TaskRunner {
         return INSTANCE;
     }
 
-    public interface Callback<R> {
-        void onComplete(R result);
+    /**
+     * Runs an IO task in the {@link Priority#VISIBLE} lane.
+     */
+    public <R> Handle executeIOAsync(Callable<R> callable, Callback<R> callback) {
+        return executeIOAsync(Priority.VISIBLE, callable, callback);
+    }
 
-        void onError(Exception e);
+    public <R> Handle executeIOAsync(Priority priority, Callable<R> callable, Callback<R> callback) {
+        Task<R> task = new Task<>(priority, callable, callback);
+        Task<?> dropped = null;
+        ArrayDeque<Task<?>> lane = lanes[priority.ordinal()];
+        task.lane = lane;
+        synchronized (lane) {
+            if (lane.size() >= LANE_CAPACITY) {
+                dropped = lane.pollFirst();
+            }
+            lane.addLast(task);
+        }
+        if (dropped != null && ioExecutor.remove(dropped)) {
+            dropped.lane = null;
+            dropped.reject(new RejectedExecutionException("Dropped by newer task in " + priority));
+        }
+        ioExecutor.execute(task);
+        return task;
     }
 
-    public <R> void executeIOAsync(Callable<R> callable, Callback<R> callback) {
-        _executeAsync(ioExecutor, callable, callback);
+    /**
+     * Runs an IO task that is never dropped by newer tasks. It still runs in the order of
+     * its priority, but does not take a place in the lane.
+     */
+    public <R> Handle executeUnboundedIOAsync(Priority priority, Callable<R> callable,
+                                              Callback<R> callback) {
+        Task<R> task = new Task<>(priority, callable, callback);
+        ioExecutor.execute(task);
+        return task;
     }
 
-    public <R> void executeAsync(Callable<R> callable, Callback<R> callback) {
-        _executeAsync(executor, callable, callback);
+    /**
+     * Runs a task on the single serial thread, for work that must not run concurrently.
+     */
+    public <R> Handle executeAsync(Callable<R> callable, Callback<R> callback) {
+        Task<R> task = new Task<>(Priority.VISIBLE, callable, callback);
+        executor.execute(task);
+        return task;
     }
 
-    private <R> void _executeAsync(ExecutorService executor, Callable<R> callable, Callback<R> callback) {
-        if (executor.isShutdown()) {
-            throw new IllegalStateException();
+    /**
+     * Checkpoint between expensive steps of a task, does nothing outside of a task.
+     *
+     * @throws CancellationException if the task running on current thread is cancelled.
+     */
+    public static void throwIfCancelled() {
+        Handle task = sCurrentTask.get();
+        if (task != null && task.isCancelled()) {
+            throw new CancellationException();
         }
+    }
+
+    /**
+     * @return Executor of the IO lane, tasks submitted to it are never dropped.
+     */
+    public Executor getExecutor(Priority priority) {
+        return laneExecutors[priority.ordinal()];
+    }
+
+    /**
+     * @return Coroutine dispatcher bridged to the IO lane.
+     */
+    public CoroutineDispatcher getDispatcher(Priority priority) {
+        return dispatchers[priority.ordinal()];
+    }
+
+    private final class Task<R> implements Runnable, Comparable<Task<?>>, Handle {
+        private final Priority priority;
+        private final long order = sequence.getAndIncrement();
+        private final Callable<R> callable;
+        private final Callback<R> callback;
+        private volatile boolean cancelled;
+
+        /**
+         * Lane holding this task while waiting, {@code null} for unbounded tasks
+         */
+        private ArrayDeque<Task<?>> lane;
 
-        executor.execute(() -> {
+        Task(Priority priority, Callable<R> callable, Callback<R> callback) {
+            this.priority = priority;
+            this.callable = callable;
+            this.callback = callback;
+        }
+
+        /**
+         * Plain runnable without callback, e.g. from a coroutine dispatcher
+         */
+        Task(Priority priority, Runnable runnable) {
+            this(priority, () -> {
+                runnable.run();
+                return null;
+            }, null);
+        }
+
+        @Override
+        public void run() {
+            leaveLane();
+            if (cancelled) return;
+
+            sCurrentTask.set(this);
             try {
                 R result = callable.call();
-                handler.post(() -> callback.onComplete(result));
+                if (callback != null) {
+                    handler.post(() -> {
+                        if (cancelled) {
+                            callback.onDiscarded(result);
+                        } else {
+                            callback.onComplete(result);
+                        }
+                    });
+                }
             } catch (Exception e) {
-                handler.post(() -> callback.onError(e));
+                if (callback == null) {
+                    throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+                }
+                reject(e);
+            } finally {
+                sCurrentTask.remove();
             }
-        });
-    }
+        }
+
+        void reject(Exception e) {
+            handler.post(() -> {
+                if (!cancelled) callback.onError(e);
+            });
+        }
+
+        private void leaveLane() {
+            if (lane == null) return;
+            synchronized (lane) {
+                lane.remove(this);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            // removed task never runs, leave the lane now
+            if (executor.remove(this) || ioExecutor.remove(this)) leaveLane();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
 
-    public static void shutdown() {
-        if (INSTANCE != null) {
-            INSTANCE.executor.shutdown();
-            INSTANCE.ioExecutor.shutdown();
-            INSTANCE = null;
+        @Override
+        public int compareTo(@NonNull Task<?> o) {
+            int result = priority.compareTo(o.priority);
+            return result != 0 ? result : Long.compare(order, o.order);
         }
     }
-}
\ No newline at end of file
+}
@@ -42,18 +42,7 @@ public final class WallpaperCropUtils {
      * @param inner the size of inner rectangle as a Point (x,y).
      */
     public static Rect calculateVisibleRect(Point outer, Point inner) {
-        PointF visibleRectCenter = new PointF(outer.x / 2f, outer.y / 2f);
-        if (inner.x / (float) inner.y > outer.x / (float) outer.y) {
-            float minZoom = inner.x / (float) outer.x;
-            float visibleRectHeight = inner.y / minZoom;
-            return new Rect(0, (int) (visibleRectCenter.y - visibleRectHeight / 2),
-                    outer.x, (int) (visibleRectCenter.y + visibleRectHeight / 2));
-        } else {
-            float minZoom = inner.y / (float) outer.y;
-            float visibleRectWidth = inner.x / minZoom;
-            return new Rect((int) (visibleRectCenter.x - visibleRectWidth / 2),
-                    0, (int) (visibleRectCenter.x + visibleRectWidth / 2), outer.y);
-        }
+        return toRect(WallpaperMath.calculateVisibleRect(toSize(outer), toSize(inner)));
     }
 
     /**
@@ -111,13 +100,7 @@ public final class WallpaperCropUtils {
      * @param inner Size of inner rectangle as a Point (x,y).
      */
     public static float calculateMinZoom(Point outer, Point inner) {
-        float minZoom;
-        if (inner.x / (float) inner.y > outer.x / (float) outer.y) {
-            minZoom = inner.x / (float) outer.x;
-        } else {
-            minZoom = inner.y / (float) outer.y;
-        }
-        return minZoom;
+        return WallpaperMath.calculateMinZoom(toSize(outer), toSize(inner));
     }
 
     /**
@@ -181,42 +164,11 @@ public final class WallpaperCropUtils {
      */
     public static Rect calculateCropRect(Context context, float wallpaperZoom, Point wallpaperSize,
                                          Point defaultCropSurfaceSize, Point targetHostSize, int scrollX, int scrollY) {
-        // Calculate Rect of wallpaper in physical pixel terms (i.e., scaled to current zoom).
-        int scaledWallpaperWidth = (int) (wallpaperSize.x * wallpaperZoom);
-        int scaledWallpaperHeight = (int) (wallpaperSize.y * wallpaperZoom);
-        Rect rect = new Rect();
-        rect.set(0, 0, scaledWallpaperWidth, scaledWallpaperHeight);
-
-        // Crop rect should start off as the visible screen and then include extra width and height
+        // Crop rect starts off as the visible screen and then includes extra width and height
         // if available within wallpaper at the current zoom.
-        Rect cropRect = new Rect(scrollX, scrollY, scrollX + targetHostSize.x,
-                scrollY + targetHostSize.y);
-
-        int extraWidth = defaultCropSurfaceSize.x - targetHostSize.x;
-        int extraHeightTopAndBottom = (int) ((defaultCropSurfaceSize.y - targetHostSize.y) / 2f);
-
-        // Try to increase size of screenRect to include extra width depending on the layout
-        // direction.
-        if (isRtl(context)) {
-            cropRect.left = Math.max(cropRect.left - extraWidth, rect.left);
-        } else {
-            cropRect.right = Math.min(cropRect.right + extraWidth, rect.right);
-        }
-
-        // Try to increase the size of the cropRect to to include extra height.
-        int availableExtraHeightTop = cropRect.top - Math.max(
-                rect.top,
-                cropRect.top - extraHeightTopAndBottom);
-        int availableExtraHeightBottom = Math.min(
-                rect.bottom,
-                cropRect.bottom + extraHeightTopAndBottom) - cropRect.bottom;
-
-        int availableExtraHeightTopAndBottom =
-                Math.min(availableExtraHeightTop, availableExtraHeightBottom);
-        cropRect.top -= availableExtraHeightTopAndBottom;
-        cropRect.bottom += availableExtraHeightTopAndBottom;
-
-        return cropRect;
+        return toRect(WallpaperMath.calculateCropRect(wallpaperZoom, toSize(wallpaperSize),
+                toSize(defaultCropSurfaceSize), toSize(targetHostSize), scrollX, scrollY,
+                isRtl(context)));
     }
 
     /**
@@ -248,6 +200,14 @@ public final class WallpaperCropUtils {
                         /* defPackage= */ "android"));
     }
 
+    private static WallpaperMath.Size toSize(Point point) {
+        return new WallpaperMath.Size(point.x, point.y);
+    }
+
+    private static Rect toRect(WallpaperMath.Bounds bounds) {
+        return new Rect(bounds.left, bounds.top, bounds.right, bounds.bottom);
+    }
+
     /**
      * Returns whether layout direction is RTL (or false for LTR). Since native RTL layout support
      * was added in API 17, returns false for versions lower than 17.
@@ -0,0 +1,206 @@
+package com.android.wallpaper.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Pure crop and sampling math on plain value types, free of Android framework classes so it
+ * can be verified and benchmarked on a plain JVM.
+ *
+ * @see WallpaperCropUtils
+ * @see com.android.wallpaper.asset.BitmapUtils
+ * @see com.android.wallpaper.asset.CropRectRotator
+ */
+public final class WallpaperMath {
+
+    /**
+     * Same values as {@code ExifInterface.ORIENTATION_*}.
+     */
+    public static final int EXIF_ORIENTATION_NORMAL = 1;
+    public static final int EXIF_ORIENTATION_ROTATE_180 = 3;
+    public static final int EXIF_ORIENTATION_ROTATE_90 = 6;
+    public static final int EXIF_ORIENTATION_ROTATE_270 = 8;
+
+    /**
+     * Immutable width and height.
+     */
+    public static final class Size {
+        public final int width;
+        public final int height;
+
+        public Size(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Size)) return false;
+            Size size = (Size) o;
+            return width == size.width && height == size.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * width + height;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Size(" + width + ", " + height + ")";
+        }
+    }
+
+    /**
+     * Immutable rectangle with the same edge semantics as {@code Rect}.
+     */
+    public static final class Bounds {
+        public final int left;
+        public final int top;
+        public final int right;
+        public final int bottom;
+
+        public Bounds(int left, int top, int right, int bottom) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Bounds)) return false;
+            Bounds bounds = (Bounds) o;
+            return left == bounds.left && top == bounds.top && right == bounds.right
+                    && bottom == bounds.bottom;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * (31 * left + top) + right) + bottom;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "Bounds(" + left + ", " + top + " - " + right + ", " + bottom + ")";
+        }
+    }
+
+    // Suppress default constructor for noninstantiability.
+    private WallpaperMath() {
+        throw new AssertionError();
+    }
+
+    /**
+     * @return Highest power of 2 subsampling factor that keeps both sides of the source at least as
+     * large as the target.
+     * @see com.android.wallpaper.asset.BitmapUtils#calculateInSampleSize(int, int, int, int)
+     */
+    public static int calculateInSampleSize(
+            int srcWidth, int srcHeight, int targetWidth, int targetHeight) {
+        int shift = 0;
+        int halfHeight = srcHeight / 2;
+        int halfWidth = srcWidth / 2;
+
+        while (((halfHeight >> shift) >= targetHeight) && ((halfWidth >> shift) >= targetWidth)) {
+            shift++;
+        }
+
+        return 1 << shift;
+    }
+
+    /**
+     * @see WallpaperCropUtils#calculateMinZoom
+     */
+    public static float calculateMinZoom(Size outer, Size inner) {
+        if (inner.width / (float) inner.height > outer.width / (float) outer.height) {
+            return inner.width / (float) outer.width;
+        } else {
+            return inner.height / (float) outer.height;
+        }
+    }
+
+    /**
+     * @see WallpaperCropUtils#calculateVisibleRect
+     */
+    public static Bounds calculateVisibleRect(Size outer, Size inner) {
+        float centerX = outer.width / 2f;
+        float centerY = outer.height / 2f;
+        if (inner.width / (float) inner.height > outer.width / (float) outer.height) {
+            float minZoom = inner.width / (float) outer.width;
+            float visibleHeight = inner.height / minZoom;
+            return new Bounds(0, (int) (centerY - visibleHeight / 2),
+                    outer.width, (int) (centerY + visibleHeight / 2));
+        } else {
+            float minZoom = inner.height / (float) outer.height;
+            float visibleWidth = inner.width / minZoom;
+            return new Bounds((int) (centerX - visibleWidth / 2), 0,
+                    (int) (centerX + visibleWidth / 2), outer.height);
+        }
+    }
+
+    /**
+     * @param rtl Extra width goes to the left if the layout direction is RTL.
+     * @see WallpaperCropUtils#calculateCropRect(android.content.Context, float, android.graphics.Point,
+     * android.graphics.Point, android.graphics.Point, int, int)
+     */
+    public static Bounds calculateCropRect(float wallpaperZoom, Size wallpaperSize,
+                                           Size defaultCropSurfaceSize, Size targetHostSize,
+                                           int scrollX, int scrollY, boolean rtl) {
+        // Wallpaper in physical pixel terms (i.e., scaled to current zoom).
+        int scaledWidth = (int) (wallpaperSize.width * wallpaperZoom);
+        int scaledHeight = (int) (wallpaperSize.height * wallpaperZoom);
+
+        // Crop rect starts off as the visible screen
+        int left = scrollX;
+        int top = scrollY;
+        int right = scrollX + targetHostSize.width;
+        int bottom = scrollY + targetHostSize.height;
+
+        int extraWidth = defaultCropSurfaceSize.width - targetHostSize.width;
+        int extraHeightTopAndBottom =
+                (int) ((defaultCropSurfaceSize.height - targetHostSize.height) / 2f);
+
+        if (rtl) {
+            left = Math.max(left - extraWidth, 0);
+        } else {
+            right = Math.min(right + extraWidth, scaledWidth);
+        }
+
+        int availableExtraHeightTop = top - Math.max(0, top - extraHeightTopAndBottom);
+        int availableExtraHeightBottom =
+                Math.min(scaledHeight, bottom + extraHeightTopAndBottom) - bottom;
+        int availableExtraHeight = Math.min(availableExtraHeightTop, availableExtraHeightBottom);
+
+        return new Bounds(left, top - availableExtraHeight, right, bottom + availableExtraHeight);
+    }
+
+    /**
+     * @return Crop bounds adjusted for the EXIF orientation, {@code null} if the orientation is
+     * not supported.
+     * @see com.android.wallpaper.asset.CropRectRotator#rotateCropRectForExifOrientation
+     */
+    @Nullable
+    public static Bounds rotateCropRectForExifOrientation(Size dimensions, Bounds src,
+                                                          int exifOrientation) {
+        switch (exifOrientation) {
+            case EXIF_ORIENTATION_NORMAL:
+                return src;
+            case EXIF_ORIENTATION_ROTATE_90:
+                return new Bounds(src.top, dimensions.width - src.right, src.bottom,
+                        dimensions.width - src.left);
+            case EXIF_ORIENTATION_ROTATE_180:
+                return new Bounds(dimensions.width - src.right, dimensions.height - src.bottom,
+                        dimensions.width - src.left, dimensions.height - src.top);
+            case EXIF_ORIENTATION_ROTATE_270:
+                return new Bounds(dimensions.height - src.bottom, src.left,
+                        dimensions.height - src.top, src.right);
+            default:
+                return null;
+        }
+    }
+}
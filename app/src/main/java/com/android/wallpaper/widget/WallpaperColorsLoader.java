@@ -29,6 +29,7 @@ import androidx.annotation.Nullable;
 
 import com.android.wallpaper.asset.Asset;
 import com.android.wallpaper.asset.LiveWallpaperThumbAsset;
+import com.android.wallpaper.asset.StreamableAsset;
 import com.android.wallpaper.util.ScreenSizeCalculator;
 import com.android.wallpaper.util.TaskRunner;
 
@@ -47,13 +48,17 @@ public final class WallpaperColorsLoader {
     // different.
     private static final LruCache<Asset, WallpaperColors> sCache = new LruCache<>(/* maxSize= */ 8);
 
-    /** Gets the {@link WallpaperColors} from the wallpaper {@link Asset}. */
-    public static void getWallpaperColors(Context context, @NonNull Asset asset,
-                                          @NonNull Callback callback) {
+    /**
+     * Gets the {@link WallpaperColors} from the wallpaper {@link Asset}.
+     *
+     * @return Handle to cancel the loading, the callback won't be called once cancelled.
+     */
+    public static TaskRunner.Handle getWallpaperColors(Context context, @NonNull Asset asset,
+                                                       @NonNull Callback callback) {
         WallpaperColors cached = sCache.get(asset);
         if (cached != null) {
             callback.onLoaded(cached);
-            return;
+            return TaskRunner.COMPLETED;
         }
 
         if (asset instanceof LiveWallpaperThumbAsset) {
@@ -66,24 +71,28 @@ public final class WallpaperColorsLoader {
                 sCache.put(asset, colors);
                 callback.onLoaded(colors);
             }
-            return;
+            return TaskRunner.COMPLETED;
         }
 
         Display display = context.getSystemService(WindowManager.class).getDefaultDisplay();
         Point screen = ScreenSizeCalculator.getInstance().getScreenSize(display);
-        asset.decodeBitmapAsync(screen.y / 2, screen.x / 2, new TaskRunner.Callback<Bitmap>() {
+        return asset.decodeBitmapAsync(screen.y / 2, screen.x / 2, TaskRunner.Priority.BACKGROUND,
+                new TaskRunner.Callback<Bitmap>() {
             @Override
             public void onComplete(@NonNull Bitmap bitmap) {
-                boolean shouldRecycle = false;
+                Bitmap software = bitmap;
                 if (bitmap.getConfig() == Bitmap.Config.HARDWARE) {
-                    bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
-                    shouldRecycle = true;
+                    software = bitmap.copy(Bitmap.Config.ARGB_8888, false);
                 }
-                WallpaperColors colors = WallpaperColors.fromBitmap(bitmap);
+                WallpaperColors colors = WallpaperColors.fromBitmap(software);
                 sCache.put(asset, colors);
                 callback.onLoaded(colors);
-                if (shouldRecycle) {
-                    bitmap.recycle();
+                if (software != bitmap) {
+                    software.recycle();
+                }
+                // decoded for colors only, nobody else holds it
+                if (asset instanceof StreamableAsset) {
+                    StreamableAsset.recycleBitmap(bitmap);
                 }
             }
 
@@ -10,10 +10,15 @@ import android.Manifest;
 
 import androidx.core.content.ContextCompat;
 
+import com.android.wallpaper.util.DecodeBudget;
+import com.android.wallpaper.util.TaskRunner;
+
 import org.lsposed.hiddenapibypass.HiddenApiBypass;
 
 import me.ranko.autodark.core.DebugTree;
 import me.ranko.autodark.core.ReleaseTree;
+import me.ranko.autodark.core.SettingsStore;
+import me.ranko.autodark.core.StartupTracer;
 import me.ranko.autodark.services.DarkModeTileService;
 import rikka.sui.Sui;
 import timber.log.Timber;
@@ -30,6 +35,7 @@ public final class AutoDarkApplication extends Application {
 
     @Override
     public void onCreate() {
+        long start = StartupTracer.begin("Application.onCreate");
         super.onCreate();
         if (BuildConfig.DEBUG) {
             Timber.plant(new DebugTree());
@@ -37,7 +43,13 @@ public final class AutoDarkApplication extends Application {
             Timber.plant(ReleaseTree.INSTANCE);
         }
 
-        DarkModeTileService.setUp(this);
+        // load settings in background before anyone reads it
+        SettingsStore.getInstance(this);
+        DecodeBudget.init(this);
+        // package manager queries, not needed by first frame
+        TaskRunner.getINSTANCE().getExecutor(TaskRunner.Priority.BACKGROUND)
+                .execute(() -> DarkModeTileService.setUp(this));
+        StartupTracer.end("Application.onCreate", start);
     }
 
     public static boolean isOnePlus() {
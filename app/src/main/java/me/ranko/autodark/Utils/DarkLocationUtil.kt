@@ -1,18 +1,23 @@
 package me.ranko.autodark.Utils
 
 import android.content.Context
+import android.content.SharedPreferences
 import android.location.Location
-import android.location.LocationListener
 import android.location.LocationManager
-import android.os.Bundle
 import androidx.annotation.RequiresPermission
 import androidx.core.location.LocationManagerCompat
-import kotlinx.coroutines.delay
+import androidx.core.os.CancellationSignal
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withTimeoutOrNull
 import timber.log.Timber
+import kotlin.coroutines.resume
 
 /**
  * Simple location util
  *
+ * Prefers free location sources: last known locations and a cached geohash.
+ * Falls back to one coarse single-shot request only when none of them is available.
+ *
  * @author  0ranko0p
  * */
 class DarkLocationUtil private constructor(context: Context) {
@@ -20,24 +25,24 @@ class DarkLocationUtil private constructor(context: Context) {
     private var mManager: LocationManager =
         context.getSystemService(Context.LOCATION_SERVICE) as LocationManager
 
-    private val mListener = object : LocationListener {
-        override fun onStatusChanged(provider: String, status: Int, extras: Bundle) {
+    private val sp: SharedPreferences = context.getSharedPreferences(PREFS_FILE_NAME, Context.MODE_PRIVATE)
 
-        }
+    companion object {
+        private const val PREFS_FILE_NAME = "location"
 
-        override fun onProviderEnabled(provider: String) {
-        }
+        private const val KEY_GEOHASH = "geohash"
 
-        override fun onProviderDisabled(provider: String) {
+        /**
+         * 6 chars geohash, about 1.2km x 0.6km
+         * */
+        private const val GEOHASH_PRECISION = 6
 
-        }
+        private const val GEOHASH_PROVIDER = "geohash"
 
-        override fun onLocationChanged(location: Location) {
+        private const val SINGLE_SHOT_TIMEOUT = 10000L
 
-        }
-    }
+        private const val BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz"
 
-    companion object {
         @Volatile
         private var INSTANCE: DarkLocationUtil? = null
 
@@ -45,39 +50,104 @@ class DarkLocationUtil private constructor(context: Context) {
         fun getInstance(context: Context): DarkLocationUtil {
             if (INSTANCE == null) {
                 synchronized(DarkLocationUtil::class.java) {
-                    if (INSTANCE == null) INSTANCE = DarkLocationUtil(context)
+                    if (INSTANCE == null) INSTANCE = DarkLocationUtil(context.applicationContext)
                 }
             }
             return INSTANCE!!
         }
+
+        @JvmStatic
+        fun encodeGeohash(latitude: Double, longitude: Double, precision: Int = GEOHASH_PRECISION): String {
+            val latRange = doubleArrayOf(-90.0, 90.0)
+            val lonRange = doubleArrayOf(-180.0, 180.0)
+            val hash = StringBuilder(precision)
+            var isLon = true
+            var bit = 0
+            var ch = 0
+            while (hash.length < precision) {
+                val range = if (isLon) lonRange else latRange
+                val value = if (isLon) longitude else latitude
+                val mid = (range[0] + range[1]) / 2
+                ch = ch shl 1
+                if (value >= mid) {
+                    ch = ch or 1
+                    range[0] = mid
+                } else {
+                    range[1] = mid
+                }
+                isLon = isLon.not()
+                if (++bit == 5) {
+                    hash.append(BASE32[ch])
+                    bit = 0
+                    ch = 0
+                }
+            }
+            return hash.toString()
+        }
+
+        /**
+         * @return  Center of the geohash cell, **Null** if hash is invalid
+         * */
+        @JvmStatic
+        fun decodeGeohash(hash: String): Location? {
+            val latRange = doubleArrayOf(-90.0, 90.0)
+            val lonRange = doubleArrayOf(-180.0, 180.0)
+            var isLon = true
+            for (c in hash) {
+                val ch = BASE32.indexOf(c)
+                if (ch == -1) return null
+                for (shift in 4 downTo 0) {
+                    val range = if (isLon) lonRange else latRange
+                    val mid = (range[0] + range[1]) / 2
+                    if (ch.shr(shift).and(1) == 1) range[0] = mid else range[1] = mid
+                    isLon = isLon.not()
+                }
+            }
+            return Location(GEOHASH_PROVIDER).apply {
+                latitude = (latRange[0] + latRange[1]) / 2
+                longitude = (lonRange[0] + lonRange[1]) / 2
+            }
+        }
     }
 
     fun isEnabled(): Boolean = LocationManagerCompat.isLocationEnabled(mManager)
 
     /**
-     * Returns best last know location. Will request update for all available location
-     * providers if last know location is unknown
+     * Returns best last know location. Fallback to cached geohash, then
+     * request one coarse location fix if both are unknown.
      *
      * @return  last know location, **Nullable**
      * */
     @RequiresPermission(allOf = [android.Manifest.permission.ACCESS_FINE_LOCATION, android.Manifest.permission.ACCESS_COARSE_LOCATION])
     suspend fun getLastLocation(): Location? {
-        if (!isEnabled()) return null
+        if (!isEnabled()) return getCachedLocation()
 
-        val location = getBestLastLocation()
+        val location = getBestLastLocation() ?: getCachedLocation()
         if (location == null) {
             // no last know location, update now
             Timber.d("Lastknowlocation is unavailable, requesting update")
-            updateLocation()
-            return getBestLastLocation()
+            return requestSingleLocation()?.also { cacheLocation(it) }
         } else {
+            if (location.provider != GEOHASH_PROVIDER) cacheLocation(location)
             return location
         }
     }
 
+    /**
+     * Returns location from passive provider without any power cost.
+     * */
+    @RequiresPermission(android.Manifest.permission.ACCESS_COARSE_LOCATION)
+    fun getPassiveLocation(): Location? {
+        return try {
+            mManager.getLastKnownLocation(LocationManager.PASSIVE_PROVIDER)
+        } catch (e: SecurityException) {
+            null
+        }
+    }
+
     @RequiresPermission(allOf = [android.Manifest.permission.ACCESS_FINE_LOCATION, android.Manifest.permission.ACCESS_COARSE_LOCATION])
     private fun getBestLastLocation(): Location? {
-        var location: Location? = null
+        var location: Location? = getPassiveLocation()
         for (provider in mManager.getProviders(true)) {
             mManager.getLastKnownLocation(provider)?.run {
                 if (location == null || accuracy < location!!.accuracy)
@@ -87,18 +157,37 @@ class DarkLocationUtil private constructor(context: Context) {
         return location
     }
 
+    fun getCachedLocation(): Location? = sp.getString(KEY_GEOHASH, null)?.let { decodeGeohash(it) }
+
+    private fun cacheLocation(location: Location) {
+        val hash = encodeGeohash(location.latitude, location.longitude)
+        if (sp.getString(KEY_GEOHASH, null) != hash) sp.edit().putString(KEY_GEOHASH, hash).apply()
+    }
+
     /**
-     * Request location update for all available providers
+     * Request one coarse location fix, returns as soon as the fix arrives
      *
-     * @see     LocationManager.getProviders
-     * @see     LocationManager.requestLocationUpdates
+     * @see     LocationManagerCompat.getCurrentLocation
      * */
     @RequiresPermission(allOf = [android.Manifest.permission.ACCESS_FINE_LOCATION, android.Manifest.permission.ACCESS_COARSE_LOCATION])
-    private suspend fun updateLocation() {
-        mManager.getProviders(true).forEach {
-            mManager.requestLocationUpdates(it, 50L, 0f, mListener)
+    private suspend fun requestSingleLocation(): Location? {
+        val provider = when {
+            mManager.isProviderEnabled(LocationManager.NETWORK_PROVIDER) -> LocationManager.NETWORK_PROVIDER
+            mManager.isProviderEnabled(LocationManager.GPS_PROVIDER) -> LocationManager.GPS_PROVIDER
+            else -> return null
+        }
+
+        val start = System.currentTimeMillis()
+        val location = withTimeoutOrNull(SINGLE_SHOT_TIMEOUT) {
+            suspendCancellableCoroutine<Location?> { continuation ->
+                val signal = CancellationSignal()
+                continuation.invokeOnCancellation { signal.cancel() }
+                LocationManagerCompat.getCurrentLocation(mManager, provider, signal, { it.run() }) {
+                    continuation.resume(it)
+                }
+            }
         }
-        delay(3000L)
-        mManager.removeUpdates(mListener)
+        Timber.d("Single location from %s: %s, time cost: %sms", provider, location != null, System.currentTimeMillis() - start)
+        return location
     }
-}
\ No newline at end of file
+}
@@ -6,6 +6,7 @@ import java.time.LocalDate
 import java.time.LocalDateTime
 import java.time.LocalTime
 import java.time.ZoneId
+import java.time.ZonedDateTime
 import java.time.format.DateTimeFormatter
 import java.util.*
 
@@ -50,15 +51,12 @@ object DarkTimeUtil {
      * @return  epochMilli of param time for set an alarm
      *          If the param time has been passed, return
      *          time of next day.
+     *
+     * @see     nextOccurrence
      * */
     @JvmStatic
     fun getTodayOrNextDay(time: LocalTime): Long {
-        val now = LocalTime.now()
-        return if (isNextDay(now, time)) {
-            toAlarmMillis(time).plus(DURATION_DAY_MILLIS)
-        } else {
-            toAlarmMillis(time)
-        }
+        return nextOccurrence(time, ZonedDateTime.now()).toInstant().toEpochMilli()
     }
 
     @JvmStatic
@@ -67,40 +65,53 @@ object DarkTimeUtil {
     }
 
     /**
-     * Check current time is in start to end range include the wee hour condition.
+     * @return  The first occurrence of wall clock time strictly after **now**. Days are
+     *          added on the local date, so the result stays on the same wall clock time
+     *          across DST changes, a time inside a DST gap is shifted forward.
      * */
     @JvmStatic
-    fun isInTime(start: LocalTime, end: LocalTime, now: LocalTime): Boolean {
-        val sDate = LocalDateTime.of(LocalDate.now(), start).atZone(ZoneId.systemDefault())
-        var eDate = LocalDateTime.of(LocalDate.now(), end).atZone(ZoneId.systemDefault())
-        var nDate = LocalDateTime.of(LocalDate.now(), now).atZone(ZoneId.systemDefault())
-
-        val endAtNextDay = isNextDay(start, end)
-
-        if (endAtNextDay) {
-            eDate = eDate.plusDays(1)
-        }
+    fun nextOccurrence(time: LocalTime, now: ZonedDateTime): ZonedDateTime {
+        val today = ZonedDateTime.of(now.toLocalDate(), time, now.zone)
+        return if (today.isAfter(now)) today else ZonedDateTime.of(now.toLocalDate().plusDays(1), time, now.zone)
+    }
 
-        // Check is in yesterday endTime
-        if (endAtNextDay && isNextDay(start, now)) {
-            nDate = nDate.plusDays(1)
-        }
+    /**
+     * Check current time is in start to end range include the wee hour condition.
+     *
+     * Compares wall clock time of day, both bounds are exclusive.
+     *
+     * @see     TimeWindow.isInTime
+     * */
+    @JvmStatic
+    fun isInTime(start: LocalTime, end: LocalTime, now: LocalTime): Boolean = TimeWindow.isInTime(start, end, now)
 
-        return nDate.isAfter(sDate) && nDate.isBefore(eDate)
+    /**
+     * Minute-of-day version of [isInTime], each param is in range of 0 until 1440.
+     * */
+    @JvmStatic
+    fun isInTime(startMinute: Int, endMinute: Int, nowMinute: Int): Boolean {
+        return TimeWindow.isInTime(startMinute, endMinute, nowMinute)
     }
 
+    /**
+     * Same as [isInTime] but times inside the DST gap of the **date** are shifted
+     * forward, like the times resolved on the date by [ZonedDateTime].
+     * */
+    @JvmStatic
+    fun isInTime(start: LocalTime, end: LocalTime, now: LocalTime, date: LocalDate, zone: ZoneId): Boolean {
+        return TimeWindow.isInTime(start, end, now, date, zone)
+    }
 
     /**
      * @return  **True** if **endTime** at next day or not include wee hour.
      *
      *          E.g start at 10pm end at 2am next day, returns true.
      * */
-    fun isNextDay(start: LocalTime, end: LocalTime): Boolean {
-        if (start.isAfter(end)) {
-            return true
-        }
-        return !start.isBefore(end)
-    }
+    @JvmStatic
+    fun isNextDay(start: LocalTime, end: LocalTime): Boolean = TimeWindow.isNextDay(start, end)
+
+    @JvmStatic
+    fun toMinuteOfDay(time: LocalTime): Int = TimeWindow.toMinuteOfDay(time)
 
     /**
      * Use [SunriseSunsetCalculator] to calculate dark mode time
@@ -111,12 +122,18 @@ object DarkTimeUtil {
      * @see     SunriseSunsetCalculator.getOfficialSunsetForDate
      * */
     fun getDarkTimeString(location: Location): Pair<String, String> {
-        val calendar = Calendar.getInstance()
+        return getDarkTimeString(location.latitude, location.longitude, Calendar.getInstance())
+    }
+
+    /**
+     * Plain value version of [getDarkTimeString], free of Android framework types.
+     *
+     * @param   calendar Date and time zone to calculate.
+     * */
+    @JvmStatic
+    fun getDarkTimeString(latitude: Double, longitude: Double, calendar: Calendar): Pair<String, String> {
         val calculator = SunriseSunsetCalculator(
-            com.luckycatlabs.sunrisesunset.dto.Location(
-                location.latitude,
-                location.longitude
-            ), calendar.timeZone
+            com.luckycatlabs.sunrisesunset.dto.Location(latitude, longitude), calendar.timeZone
         )
         val sunrise = calculator.getOfficialSunriseForDate(calendar)
         val sunset = calculator.getOfficialSunsetForDate(calendar)
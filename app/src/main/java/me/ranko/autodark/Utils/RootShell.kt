@@ -0,0 +1,222 @@
+package me.ranko.autodark.Utils
+
+import androidx.annotation.WorkerThread
+import kotlinx.coroutines.*
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import me.ranko.autodark.Exception.CommandExecuteError
+import timber.log.Timber
+import java.io.*
+import java.util.*
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Long-lived root shell session.
+ *
+ * Forking `su` asks the root manager for authorization every time, so commands are
+ * pipelined into one `su` process instead. Each command is framed by a sentinel line
+ * carrying its exit code, the session is respawned automatically once the process dies.
+ *
+ * @see     ShellJobUtil.runSudoJob
+ * @author  0ranko0P
+ * */
+object RootShell {
+
+    /**
+     * Kill the session if a command doesn't finish in time
+     * */
+    const val COMMAND_TIMEOUT = 30_000L
+
+    /**
+     * @param output Stdout lines of the command
+     * @param error  Stderr lines of the command
+     * */
+    class Result(val exitCode: Int, val output: List<String>, val error: List<String>) {
+        fun isSuccess(): Boolean = exitCode == 0
+
+        fun getOutputString(): String = output.joinToString("\n")
+
+        fun getErrorString(): String = error.joinToString("\n")
+    }
+
+    private class Session(val process: Process) {
+        val sentinel = "__AUTODARK_" + UUID.randomUUID().toString().replace("-", "") + "__"
+
+        val stdin = BufferedWriter(OutputStreamWriter(process.outputStream))
+
+        val stdout = BufferedReader(InputStreamReader(process.inputStream))
+
+        /**
+         * Stderr lines drained by a daemon thread, so a verbose stderr never blocks stdout
+         * */
+        val stderr = LinkedBlockingQueue<String>()
+
+        @Volatile
+        var timedOut = false
+
+        fun isAlive(): Boolean = process.isAlive
+
+        fun destroy() {
+            try {
+                stdin.close()
+            } catch (ignored: IOException) {
+            }
+            // blocking reads get EOF once the process is gone
+            process.destroyForcibly()
+        }
+    }
+
+    private val mLock = Mutex()
+
+    @Volatile
+    private var mSession: Session? = null
+
+    /**
+     * @return  **True** if a root session is running, commands won't spawn `su` then.
+     * */
+    fun isAlive(): Boolean = mSession?.isAlive() == true
+
+    /**
+     * Execute the command in root session.
+     *
+     * The command is retried in a new session only if it never reached the shell. Once
+     * written it runs at most once, a broken session, timeout or cancellation kills the
+     * session and the next command spawns a new one.
+     *
+     * @param   timeoutMillis Kill the session when exceeded.
+     *
+     * @throws  CommandExecuteError When failed to start or communicate with root shell,
+     *          or timed out.
+     * */
+    @WorkerThread
+    @Throws(CommandExecuteError::class)
+    suspend fun exec(command: String, timeoutMillis: Long = COMMAND_TIMEOUT): Result = withContext(Dispatchers.IO) {
+        mLock.withLock {
+            val start = System.currentTimeMillis()
+            val session = try {
+                writeLocked(command)
+            } catch (e: IOException) {
+                // shell died before the command reached it, respawn once
+                Timber.d("Root session broken: %s, respawning", e.localizedMessage)
+                closeLocked()
+                try {
+                    writeLocked(command)
+                } catch (e: IOException) {
+                    closeLocked()
+                    throw CommandExecuteError(e)
+                }
+            }
+
+            try {
+                val result = coroutineScope {
+                    val finished = AtomicBoolean(false)
+                    val watchdog = launch {
+                        try {
+                            delay(timeoutMillis)
+                            session.timedOut = true
+                        } finally {
+                            // blocking reads ignore cancellation, kill session to unblock them
+                            if (finished.get().not()) session.destroy()
+                        }
+                    }
+                    try {
+                        readLocked(session, timeoutMillis)
+                    } finally {
+                        finished.set(true)
+                        watchdog.cancel()
+                    }
+                }
+                Timber.v("Root command exit: %s, time cost: %sms", result.exitCode, System.currentTimeMillis() - start)
+                return@withContext result
+            } catch (e: IOException) {
+                closeLocked()
+                ensureActive()
+                if (session.timedOut) throw CommandExecuteError("Timed out after ${timeoutMillis}ms", e)
+                throw CommandExecuteError(e)
+            }
+        }
+    }
+
+    @Throws(IOException::class)
+    private fun writeLocked(command: String): Session {
+        val session = obtainSessionLocked()
+        with(session.stdin) {
+            write("{ ")
+            write(command)
+            write("\n} </dev/null; __ad_code=\$?; ")
+            write("printf '\\n%s\\n' ${session.sentinel} >&2; ")
+            write("printf '\\n%s %s\\n' ${session.sentinel} \$__ad_code\n")
+            flush()
+        }
+        return session
+    }
+
+    @Throws(IOException::class)
+    private fun readLocked(session: Session, timeoutMillis: Long): Result {
+        // one deadline for both streams, stdout may already have used most of it
+        val deadline = System.currentTimeMillis() + timeoutMillis
+        val output = LinkedList<String>()
+        var exitCode = -1
+        while (true) {
+            val line = session.stdout.readLine() ?: throw EOFException("Root shell exited")
+            if (line.startsWith(session.sentinel)) {
+                exitCode = line.substring(session.sentinel.length).trim().toIntOrNull() ?: -1
+                break
+            }
+            output.add(line)
+        }
+        // drop the line break printed before sentinel
+        if (output.isNotEmpty() && output.last.isEmpty()) output.removeLast()
+
+        // stderr sentinel is printed first, it's already on the way
+        val error = LinkedList<String>()
+        while (true) {
+            val remain = deadline - System.currentTimeMillis()
+            val line = session.stderr.poll(remain.coerceAtLeast(0L), TimeUnit.MILLISECONDS)
+            if (line == null) {
+                // closed stderr never delivers, so this is the deadline too
+                session.timedOut = true
+                throw EOFException("Root shell stderr closed or timed out")
+            }
+            if (line == session.sentinel) break
+            error.add(line)
+        }
+        if (error.isNotEmpty() && error.last.isEmpty()) error.removeLast()
+        return Result(exitCode, output, error)
+    }
+
+    @Throws(IOException::class)
+    private fun obtainSessionLocked(): Session {
+        val current = mSession
+        if (current != null && current.isAlive()) return current
+
+        current?.destroy()
+        val start = System.currentTimeMillis()
+        val process = ProcessBuilder("su").start()
+        val session = Session(process)
+        Thread({
+            try {
+                BufferedReader(InputStreamReader(process.errorStream)).use { reader ->
+                    while (true) session.stderr.add(reader.readLine() ?: break)
+                }
+            } catch (ignored: IOException) {
+            }
+        }, "RootShell-stderr").apply { isDaemon = true }.start()
+
+        mSession = session
+        Timber.d("Root session spawned, time cost: %sms", System.currentTimeMillis() - start)
+        return session
+    }
+
+    private fun closeLocked() {
+        mSession?.destroy()
+        mSession = null
+    }
+
+    /**
+     * Close current root session, next [exec] will spawn a new one.
+     * */
+    suspend fun close() = mLock.withLock { closeLocked() }
+}
@@ -1,10 +1,16 @@
 package me.ranko.autodark.Utils
 
 import androidx.annotation.WorkerThread
-import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.withContext
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.SendChannel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.flowOn
 import me.ranko.autodark.Exception.CommandExecuteError
+import timber.log.Timber
 import java.io.*
+import java.util.*
 
 /**
  * Job util to execute command
@@ -13,108 +19,179 @@ import java.io.*
  * */
 @SuppressWarnings("unused")
 object ShellJobUtil {
-    private const val MAX_BUFFER_LINE = 3000L
 
+    /**
+     * Maximum lines buffered between the process and the collector,
+     * readers suspend once it's full.
+     * */
+    private const val STREAM_BUFFER_LINE = 64
+
+    /**
+     * Stderr lines kept as error message of [CommandExecuteError]
+     * */
+    private const val ERROR_TAIL_LINE = 32
+
+    const val NO_TIMEOUT = 0L
+
+    /**
+     * One line of command output
+     *
+     * @param isError **True** if this line comes from stderr
+     * */
+    data class OutputLine(val line: String, val isError: Boolean)
+
+    /**
+     * Execute command in the persistent [RootShell] session, stderr becomes message
+     * of the [CommandExecuteError]
+     *
+     * @throws  CommandExecuteError
+     *          When root shell is unavailable or command exited exceptionally
+     * */
     @JvmStatic
     @WorkerThread
+    @Throws(CommandExecuteError::class)
     suspend fun runSudoJob(command: String) {
-        return runJob("su", "-c", command)
+        val result = RootShell.exec(command)
+        if (result.isSuccess().not()) throw CommandExecuteError(result.getErrorString())
     }
 
+    /**
+     * @return  Stdout of the command
+     * */
     @JvmStatic
     @WorkerThread
+    @Throws(CommandExecuteError::class)
     suspend fun runSudoJobForValue(command: String): String? {
-        return runJobForValue("su", "-c", command)
+        val result = RootShell.exec(command)
+        if (result.isSuccess().not()) throw CommandExecuteError(result.getErrorString())
+        return result.getOutputString()
     }
 
     /**
-     * Execute command with result
+     * Execute command and stream its output line by line.
      *
-     * @return  Stdout put of subprocess
+     * Stdout and stderr are drained concurrently into a bounded buffer, so a verbose
+     * stream never blocks the other one. Cancelling the collector destroys the process.
      *
-     * @throws  CommandExecuteError
-     *          When error occurred while execute command
-     *          Or process ended exceptionally
+     * @param   timeoutMillis Destroy the process when exceeded, [NO_TIMEOUT] to wait forever.
      *
-     * @see     Runtime.exec
+     * @throws  CommandExecuteError
+     *          When failed to start the process, timed out or it ended exceptionally
      * */
     @JvmStatic
-    @WorkerThread
-    @Throws(CommandExecuteError::class)
-    suspend fun runJobForValue(vararg commands: String): String? = withContext(Dispatchers.IO) {
-        var process: Process? = null
+    fun streamJob(vararg commands: String, timeoutMillis: Long = NO_TIMEOUT): Flow<OutputLine> = channelFlow {
+        val start = System.currentTimeMillis()
+        val process = try {
+            Runtime.getRuntime().exec(commands)
+        } catch (e: IOException) {
+            throw CommandExecuteError(e)
+        }
+
         try {
-            process = Runtime.getRuntime().exec(commands)
-            val result = readStdout(process.inputStream, true)
+            process.outputStream.close()
+            val errorTail = LinkedList<String>()
+            val job: suspend CoroutineScope.() -> Int = {
+                coroutineScope {
+                    // blocking reads ignore cancellation, destroy process to unblock them
+                    val watchdog = launch {
+                        try {
+                            awaitCancellation()
+                        } finally {
+                            process.destroy()
+                        }
+                    }
+                    joinAll(
+                        launch { readLines(process.inputStream, false, channel, null) },
+                        launch { readLines(process.errorStream, true, channel, errorTail) }
+                    )
+                    val exitCode = runInterruptible { process.waitFor() }
+                    watchdog.cancel()
+                    exitCode
+                }
+            }
 
-            if (process.waitFor() != 0)
-                throw CommandExecuteError(readStdout(process.errorStream, false))
+            val exitCode = if (timeoutMillis > NO_TIMEOUT) {
+                withTimeoutOrNull(timeoutMillis, job) ?: throw CommandExecuteError("Timed out after ${timeoutMillis}ms")
+            } else {
+                job()
+            }
 
-            return@withContext result
-        } catch (e: Exception) {
-            throw CommandExecuteError(e)
+            Timber.v("Streamed command finished, time cost: %sms", System.currentTimeMillis() - start)
+            if (exitCode != 0) {
+                throw CommandExecuteError(synchronized(errorTail) { errorTail.joinToString("\n") })
+            }
         } finally {
-            process?.destroy()
+            if (process.isAlive) process.destroyForcibly()
+        }
+    }.buffer(STREAM_BUFFER_LINE).flowOn(Dispatchers.IO)
+
+    private suspend fun readLines(ins: InputStream, isError: Boolean, channel: SendChannel<OutputLine>, tail: LinkedList<String>?) {
+        try {
+            BufferedReader(InputStreamReader(ins)).use { reader ->
+                while (true) {
+                    val line = reader.readLine() ?: break
+                    if (tail != null) synchronized(tail) {
+                        tail.add(line)
+                        if (tail.size > ERROR_TAIL_LINE) tail.removeFirst()
+                    }
+                    channel.send(OutputLine(line, isError))
+                }
+            }
+        } catch (e: IOException) {
+            // stream closed by destroyed process, exit code tells the rest
+            Timber.v("Stop reading %s: %s", if (isError) "stderr" else "stdout", e.localizedMessage)
         }
     }
 
     /**
-     * Execute non result command
+     * Execute command with result
+     *
+     * @return  Stdout put of subprocess
      *
-     * @see     Runtime.exec
+     * @throws  CommandExecuteError
+     *          When error occurred while execute command
+     *          Or process ended exceptionally
+     *
+     * @see     streamJob
      * */
-    @WorkerThread
     @JvmStatic
-    suspend fun runJob(vararg commands: String) = withContext(Dispatchers.IO) {
-        var process: Process? = null
+    @WorkerThread
+    @Throws(CommandExecuteError::class)
+    suspend fun runJobForValue(vararg commands: String): String? {
+        val sb = StringBuilder()
         try {
-            process = Runtime.getRuntime().exec(commands)
-            BufferedOutputStream(process.outputStream).use {
-                it.write("exit\n".toByteArray())
-                it.flush()
+            streamJob(*commands).collect { output ->
+                if (output.isError.not()) sb.append(output.line).append('\n')
             }
-
-            if (process.waitFor() != 0)
-                throw CommandExecuteError(readStdout(process.errorStream, false))
+        } catch (e: CommandExecuteError) {
+            throw e
+        } catch (e: CancellationException) {
+            throw e
         } catch (e: Exception) {
             throw CommandExecuteError(e)
-        } finally {
-            process?.destroy()
         }
+        // remove last LF char
+        if (sb.isNotEmpty()) sb.deleteCharAt(sb.length - 1)
+        return sb.toString()
     }
 
     /**
-     * Read std out from a process
-     * Maximum line to read is 3000
-     *
-     * @param   allLine set false if only read one line
+     * Execute non result command
      *
-     * @see     MAX_BUFFER_LINE
+     * @see     streamJob
      * */
-    @JvmStatic
     @WorkerThread
-    @Throws(IOException::class)
-    fun readStdout(ins: InputStream, allLine: Boolean): String? {
-        val sb = StringBuilder()
-        BufferedReader(InputStreamReader(ins)).use {
-            if (!allLine) return it.readLine()
-
-            var line = 0L
-            var tmp: String?
-
-            while (line < MAX_BUFFER_LINE) {
-                tmp = it.readLine()
-                if (tmp == null) {
-                    break
-                } else {
-                    line++
-                    sb.append(tmp).append('\n')
-                }
-            }
+    @JvmStatic
+    @Throws(CommandExecuteError::class)
+    suspend fun runJob(vararg commands: String) {
+        try {
+            streamJob(*commands).collect { /* drain */ }
+        } catch (e: CommandExecuteError) {
+            throw e
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            throw CommandExecuteError(e)
         }
-        // remove last LF char
-        if (sb.isNotEmpty())
-            sb.deleteCharAt(sb.length - 1)
-        return sb.toString()
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,119 @@
+package me.ranko.autodark.Utils
+
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.ZoneId
+import java.time.ZonedDateTime
+
+/**
+ * Time-of-day window arithmetic, free of Android types so it can be verified
+ * and benchmarked on a plain JVM.
+ *
+ * Windows end at next day if end is not after start, both bounds are exclusive.
+ *
+ * @see DarkTimeUtil.isInTime
+ * */
+object TimeWindow {
+
+    const val MINUTES_PER_DAY = 1440L
+
+    private const val NANOS_PER_DAY = 86_400_000_000_000L
+
+    /**
+     * Wall clock version, allocation free. Ignores DST, use the zoned version if the
+     * window may touch a DST gap.
+     * */
+    @JvmStatic
+    fun isInTime(start: LocalTime, end: LocalTime, now: LocalTime): Boolean {
+        return isInRange(start.toNanoOfDay(), end.toNanoOfDay(), now.toNanoOfDay(), NANOS_PER_DAY)
+    }
+
+    /**
+     * Minute-of-day version of [isInTime], each param is in range of 0 until 1440.
+     * */
+    @JvmStatic
+    fun isInTime(startMinute: Int, endMinute: Int, nowMinute: Int): Boolean {
+        return isInRange(startMinute.toLong(), endMinute.toLong(), nowMinute.toLong(), MINUTES_PER_DAY)
+    }
+
+    /**
+     * DST aware version of [isInTime], times inside the DST gap of the **date** don't
+     * exist and are shifted forward by the gap length, same as [ZonedDateTime.of].
+     * Whether the window ends at next day is still decided by the wall clock times.
+     * */
+    @JvmStatic
+    fun isInTime(start: LocalTime, end: LocalTime, now: LocalTime, date: LocalDate, zone: ZoneId): Boolean {
+        val gap = getGap(date, zone)
+        if (gap.start == NO_GAP) return isInTime(start, end, now)
+
+        val gapStart = gap.start
+        val gapEnd = gap.end
+        val s = start.toNanoOfDay()
+        val e = end.toNanoOfDay()
+        val n = now.toNanoOfDay()
+        val endAtNextDay = s >= e
+        // resolved on the date first, then moved to next day like ZonedDateTime.plusDays
+        val shiftedStart = shiftGap(s, gapStart, gapEnd)
+        var shiftedEnd = shiftGap(e, gapStart, gapEnd)
+        var shiftedNow = shiftGap(n, gapStart, gapEnd)
+        if (endAtNextDay) {
+            shiftedEnd += NANOS_PER_DAY
+            if (n <= s) shiftedNow += NANOS_PER_DAY
+        }
+        return shiftedNow > shiftedStart && shiftedNow < shiftedEnd
+    }
+
+    /**
+     * DST gap of a date in nano of day, [start] is [NO_GAP] if the date has no gap.
+     * */
+    private class Gap(val date: LocalDate, val zone: ZoneId, val start: Long, val end: Long)
+
+    private const val NO_GAP = -1L
+
+    /**
+     * Gap of the last queried date, queries usually repeat the same date
+     * */
+    @Volatile
+    private var mLastGap: Gap? = null
+
+    private fun getGap(date: LocalDate, zone: ZoneId): Gap {
+        val last = mLastGap
+        if (last != null && last.date == date && last.zone == zone) return last
+
+        // gap may start at midnight
+        val transition = zone.rules.nextTransition(date.atStartOfDay(zone).toInstant().minusSeconds(1))
+        val gap = if (transition == null || transition.isGap.not() || transition.dateTimeBefore.toLocalDate() != date) {
+            Gap(date, zone, NO_GAP, NO_GAP)
+        } else {
+            val start = transition.dateTimeBefore.toLocalTime().toNanoOfDay()
+            Gap(date, zone, start, start + transition.duration.toNanos())
+        }
+        mLastGap = gap
+        return gap
+    }
+
+    private fun shiftGap(time: Long, gapStart: Long, gapEnd: Long): Long {
+        return if (time >= gapStart && time < gapEnd) time + (gapEnd - gapStart) else time
+    }
+
+    private fun isInRange(start: Long, end: Long, now: Long, day: Long): Boolean {
+        if (start < end) return now > start && now < end
+
+        // end at next day, shift time before start to next day
+        val shiftedNow = if (now <= start) now + day else now
+        return shiftedNow > start && shiftedNow < end + day
+    }
+
+    /**
+     * @return  **True** if **end** at next day or not include wee hour.
+     *
+     *          E.g start at 10pm end at 2am next day, returns true.
+     * */
+    @JvmStatic
+    fun isNextDay(start: LocalTime, end: LocalTime): Boolean {
+        return start.toNanoOfDay() >= end.toNanoOfDay()
+    }
+
+    @JvmStatic
+    fun toMinuteOfDay(time: LocalTime): Int = time.hour * 60 + time.minute
+}
@@ -0,0 +1,100 @@
+package me.ranko.autodark.core
+
+import kotlin.math.exp
+
+/**
+ * Turns raw lux samples into dark/light decisions without flapping.
+ *
+ * Samples are smoothed by a time based exponential moving average, so batched
+ * samples delivered at once weigh the same as live ones. The smoothed value must
+ * cross [darkLux] or [lightLux] and stay there for [dwellMillis] before the state
+ * changes. Pure Kotlin, feed it with recorded lux traces to tune the thresholds.
+ *
+ * @param darkLux   Turns dark below this value
+ * @param lightLux  Turns light above this value, must be greater than [darkLux]
+ * @param smoothMillis Time constant of the moving average
+ * @param dwellMillis  Minimum time beyond a threshold before switching
+ *
+ * @see me.ranko.autodark.services.AmbientLightService
+ * */
+class AmbientLightFilter(
+    private val darkLux: Float = DEFAULT_DARK_LUX,
+    private val lightLux: Float = DEFAULT_LIGHT_LUX,
+    private val smoothMillis: Long = DEFAULT_SMOOTH_MILLIS,
+    private val dwellMillis: Long = DEFAULT_DWELL_MILLIS
+) {
+
+    companion object {
+        const val DEFAULT_DARK_LUX = 10f
+        const val DEFAULT_LIGHT_LUX = 50f
+        const val DEFAULT_SMOOTH_MILLIS = 30 * 1000L
+        const val DEFAULT_DWELL_MILLIS = 2 * 60 * 1000L
+    }
+
+    init {
+        require(darkLux < lightLux) { "darkLux must be less than lightLux" }
+    }
+
+    private var smoothed = Float.NaN
+
+    private var lastTime = 0L
+
+    /**
+     * Current decision, **Null** before the first switch.
+     * */
+    var isDark: Boolean? = null
+        private set
+
+    /**
+     * Start time of the smoothed value staying beyond the opposite threshold, -1 if not.
+     * */
+    private var pendingSince = -1L
+
+    /**
+     * @param lux   Raw sensor value
+     * @param time  Sample time in milliseconds, must not go backwards
+     *
+     * @return  New state if it changed by this sample, otherwise **Null**.
+     * */
+    fun onSample(lux: Float, time: Long): Boolean? {
+        if (smoothed.isNaN()) {
+            smoothed = lux
+        } else {
+            val elapsed = (time - lastTime).coerceAtLeast(0L)
+            val alpha = 1f - exp(-elapsed.toFloat() / smoothMillis).toFloat()
+            smoothed += alpha * (lux - smoothed)
+        }
+        lastTime = time
+
+        val target: Boolean = when {
+            smoothed < darkLux -> true
+            smoothed > lightLux -> false
+            else -> {
+                // inside hysteresis band, keep current state
+                pendingSince = -1L
+                return null
+            }
+        }
+
+        if (target == isDark) {
+            pendingSince = -1L
+            return null
+        }
+
+        if (pendingSince < 0L) pendingSince = time
+        if (time - pendingSince < dwellMillis) return null
+
+        pendingSince = -1L
+        isDark = target
+        return target
+    }
+
+    fun getSmoothedLux(): Float = smoothed
+
+    fun reset() {
+        smoothed = Float.NaN
+        lastTime = 0L
+        pendingSince = -1L
+        isDark = null
+    }
+}
@@ -0,0 +1,88 @@
+package me.ranko.autodark.core
+
+import android.content.Context
+import androidx.annotation.WorkerThread
+import me.ranko.autodark.model.CompiledSchedule
+import timber.log.Timber
+import java.io.*
+import java.time.ZoneId
+
+/**
+ * Precomputed work for the boot receiver: dark intervals of the next days, so
+ * boot only needs to pick the mode of now and arm the next alarm.
+ *
+ * Written on every schedule change, a plan is only trusted if the time zone is
+ * unchanged and now is still inside the compiled range.
+ *
+ * Wallpaper target is not part of the plan. Wallpapers change without a schedule
+ * change, a copy here would go stale, so boot resolves them from [SettingsStore]
+ * which is already loaded in memory.
+ *
+ * Format: `version, zone, validUntil, intervals`
+ *
+ * @see DarkModeSettings.onBoot
+ * */
+class BootPlan(val zone: String, val validUntil: Long, val schedule: CompiledSchedule) {
+
+    companion object {
+        private const val PLAN_FILE_NAME = "boot.plan"
+
+        private const val PLAN_VERSION = 2
+
+        private fun getFile(context: Context) = File(context.filesDir, PLAN_FILE_NAME)
+
+        /**
+         * @return  Valid plan for now, **Null** if missing, broken or outdated.
+         * */
+        @WorkerThread
+        @JvmStatic
+        fun load(context: Context, now: Long): BootPlan? {
+            val file = getFile(context)
+            if (file.exists().not()) return null
+
+            val plan = try {
+                DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                    if (input.readInt() != PLAN_VERSION) return null
+                    BootPlan(input.readUTF(), input.readLong(), CompiledSchedule.readFrom(input))
+                }
+            } catch (e: IOException) {
+                Timber.w(e, "Drop broken boot plan")
+                return null
+            }
+            return if (plan.isValid(now)) plan else null
+        }
+
+        @WorkerThread
+        @JvmStatic
+        fun save(context: Context, plan: BootPlan) {
+            val file = getFile(context)
+            val tmp = File(file.parentFile, "$PLAN_FILE_NAME.tmp")
+            try {
+                DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out ->
+                    out.writeInt(PLAN_VERSION)
+                    out.writeUTF(plan.zone)
+                    out.writeLong(plan.validUntil)
+                    plan.schedule.writeTo(out)
+                }
+                if (tmp.renameTo(file).not()) throw IOException("Unable to rename $tmp")
+            } catch (e: IOException) {
+                Timber.w(e, "Failed to save boot plan")
+                tmp.delete()
+            }
+        }
+
+        @WorkerThread
+        @JvmStatic
+        fun delete(context: Context) {
+            getFile(context).delete()
+        }
+    }
+
+    fun isValid(now: Long): Boolean {
+        if (zone != ZoneId.systemDefault().id) {
+            Timber.d("Boot plan outdated, zone changed: %s", zone)
+            return false
+        }
+        return now < validUntil
+    }
+}
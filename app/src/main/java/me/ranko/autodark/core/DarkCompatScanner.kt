@@ -0,0 +1,214 @@
+package me.ranko.autodark.core
+
+import android.content.Context
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageManager
+import android.content.res.Configuration
+import android.content.res.Resources
+import android.util.TypedValue
+import androidx.annotation.WorkerThread
+import kotlinx.coroutines.*
+import timber.log.Timber
+import java.io.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+
+/**
+ * Scans installed applications for native dark theme support, so the block list
+ * can suggest apps that may get broken by force-dark.
+ *
+ * Results are indexed by package name and cached per versionCode in [INDEX_FILE_NAME],
+ * a rescan only parses packages that are installed or updated since the last scan.
+ *
+ * @see me.ranko.autodark.ui.BlockListAdapter.AppSelectListener.isBlockSuggested
+ * */
+class DarkCompatScanner private constructor(context: Context) {
+
+    companion object {
+        private const val INDEX_FILE_NAME = "dark_compat.idx"
+
+        private const val INDEX_VERSION = 1
+
+        /**
+         * App theme sets `android:forceDarkAllowed` to false
+         * */
+        const val FLAG_FORCE_DARK_DISALLOWED = 1
+
+        /**
+         * App theme is not a light theme, usually a dark only app
+         * */
+        const val FLAG_DARK_THEME = FLAG_FORCE_DARK_DISALLOWED.shl(1)
+
+        /**
+         * App theme switches to dark under night mode, e.g. inherits from a DayNight theme
+         * */
+        const val FLAG_DAY_NIGHT = FLAG_DARK_THEME.shl(1)
+
+        @Volatile
+        private var INSTANCE: DarkCompatScanner? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): DarkCompatScanner {
+            if (INSTANCE == null) {
+                synchronized(DarkCompatScanner::class.java) {
+                    if (INSTANCE == null) INSTANCE = DarkCompatScanner(context.applicationContext)
+                }
+            }
+            return INSTANCE!!
+        }
+
+        @JvmStatic
+        fun shouldSuggestBlock(flags: Int): Boolean {
+            return flags.and(FLAG_DARK_THEME or FLAG_DAY_NIGHT or FLAG_FORCE_DARK_DISALLOWED) != 0
+        }
+    }
+
+    private class IndexEntry(val versionCode: Long, val flags: Int)
+
+    private val mContext = context
+
+    private val mPackageManager: PackageManager = context.packageManager
+
+    private val mIndexFile = File(context.filesDir, INDEX_FILE_NAME)
+
+    private val mIndex = ConcurrentHashMap<String, IndexEntry>()
+
+    @Volatile
+    private var isIndexLoaded = false
+
+    /**
+     * Returns cached compat flags of the package, 0 if not scanned yet.
+     * */
+    fun getFlags(packageName: String): Int = mIndex[packageName]?.flags ?: 0
+
+    fun shouldSuggestBlock(packageName: String): Boolean = shouldSuggestBlock(getFlags(packageName))
+
+    /**
+     * Scan given applications on a work-stealing pool, packages with unchanged
+     * versionCode are skipped.
+     *
+     * @return  Number of packages parsed in this scan
+     * */
+    @WorkerThread
+    suspend fun scan(apps: Collection<ApplicationInfo>): Int = withContext(Dispatchers.IO) {
+        if (isIndexLoaded.not()) loadIndex()
+
+        val start = System.currentTimeMillis()
+        val versions = HashMap<String, Long>()
+        @Suppress("QueryPermissionsNeeded")
+        for (info in mPackageManager.getInstalledPackages(0)) {
+            versions[info.packageName] = info.longVersionCode
+        }
+
+        val changed = apps.filter { app ->
+            val version = versions[app.packageName] ?: return@filter false
+            mIndex[app.packageName]?.versionCode != version
+        }
+        // drop uninstalled packages
+        val removed = mIndex.keys.retainAll(versions.keys)
+
+        if (changed.isNotEmpty()) {
+            Executors.newWorkStealingPool().asCoroutineDispatcher().use { dispatcher ->
+                coroutineScope {
+                    for (app in changed) {
+                        launch(dispatcher) {
+                            val flags = parseFlags(app)
+                            mIndex[app.packageName] = IndexEntry(versions[app.packageName]!!, flags)
+                        }
+                    }
+                }
+            }
+        }
+
+        if (changed.isNotEmpty() || removed) saveIndex()
+        Timber.d("Compat scan finished, parsed: %s, time cost: %sms.", changed.size, System.currentTimeMillis() - start)
+        return@withContext changed.size
+    }
+
+    private fun parseFlags(app: ApplicationInfo): Int {
+        if (app.theme == 0) return 0
+
+        return try {
+            val packageContext = mContext.createPackageContext(app.packageName, 0)
+            var flags = 0
+            val dayTheme = newTheme(packageContext.resources, app.theme)
+            if (resolveBoolean(dayTheme, android.R.attr.forceDarkAllowed) == false) {
+                flags = flags or FLAG_FORCE_DARK_DISALLOWED
+            }
+
+            val isLight = resolveBoolean(dayTheme, android.R.attr.isLightTheme)
+            if (isLight == false) {
+                flags = flags or FLAG_DARK_THEME
+            } else if (isLight == true) {
+                // resolve again under night configuration
+                val nightConfig = Configuration(packageContext.resources.configuration)
+                nightConfig.uiMode = Configuration.UI_MODE_NIGHT_YES or
+                        nightConfig.uiMode.and(Configuration.UI_MODE_NIGHT_MASK.inv())
+                val nightRes = packageContext.createConfigurationContext(nightConfig).resources
+                if (resolveBoolean(newTheme(nightRes, app.theme), android.R.attr.isLightTheme) == false) {
+                    flags = flags or FLAG_DAY_NIGHT
+                }
+            }
+            flags
+        } catch (e: Exception) {
+            Timber.v("Unable to parse theme of %s: %s", app.packageName, e.localizedMessage)
+            0
+        }
+    }
+
+    private fun newTheme(res: Resources, themeRes: Int): Resources.Theme {
+        return res.newTheme().apply { applyStyle(themeRes, true) }
+    }
+
+    /**
+     * @return  Boolean value of the attribute, **Null** if the theme doesn't define it.
+     * */
+    private fun resolveBoolean(theme: Resources.Theme, attr: Int): Boolean? {
+        val value = TypedValue()
+        if (theme.resolveAttribute(attr, value, true).not() || value.type != TypedValue.TYPE_INT_BOOLEAN) {
+            return null
+        }
+        return value.data != 0
+    }
+
+    @Synchronized
+    private fun loadIndex() {
+        if (isIndexLoaded) return
+        isIndexLoaded = true
+        if (mIndexFile.exists().not()) return
+
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(mIndexFile))).use { input ->
+                if (input.readInt() != INDEX_VERSION) return
+                repeat(input.readInt()) {
+                    val pkg = input.readUTF()
+                    mIndex[pkg] = IndexEntry(input.readLong(), input.readInt())
+                }
+            }
+        } catch (e: IOException) {
+            Timber.w(e, "Drop broken compat index")
+            mIndex.clear()
+        }
+    }
+
+    @Synchronized
+    private fun saveIndex() {
+        val tmp = File(mIndexFile.parentFile, "$INDEX_FILE_NAME.tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out ->
+                val snapshot = HashMap(mIndex)
+                out.writeInt(INDEX_VERSION)
+                out.writeInt(snapshot.size)
+                for ((pkg, entry) in snapshot) {
+                    out.writeUTF(pkg)
+                    out.writeLong(entry.versionCode)
+                    out.writeInt(entry.flags)
+                }
+            }
+            if (tmp.renameTo(mIndexFile).not()) throw IOException("Unable to rename $tmp")
+        } catch (e: IOException) {
+            Timber.w(e, "Failed to save compat index")
+            tmp.delete()
+        }
+    }
+}
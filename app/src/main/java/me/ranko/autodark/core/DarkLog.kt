@@ -0,0 +1,101 @@
+package me.ranko.autodark.core
+
+import android.os.SystemClock
+import android.util.Log
+import me.ranko.autodark.BuildConfig
+import timber.log.Timber
+
+/**
+ * Logging facade on top of [Timber].
+ *
+ * Messages are built by inlined suppliers only when the level is enabled, so a
+ * disabled call allocates nothing. Debug and verbose calls are guarded by the
+ * [BuildConfig.DEBUG] constant and removed from release builds, other calls are
+ * guarded by [level].
+ *
+ * Also keeps a fixed size binary ring of structured events for field diagnostics,
+ * recording an event never allocates.
+ *
+ * @see event
+ * @see dump
+ * */
+object DarkLog {
+
+    const val EVENT_NIGHT_MODE = 1
+    const val EVENT_TRANSITION = 2
+    const val EVENT_AMBIENT = 3
+    const val EVENT_WALLPAPER = 4
+
+    private const val RING_CAPACITY = 256
+
+    private val mTimes = LongArray(RING_CAPACITY)
+    private val mEvents = IntArray(RING_CAPACITY)
+    private val mValues = LongArray(RING_CAPACITY)
+
+    /**
+     * Total events recorded, next slot is `mCount % RING_CAPACITY`
+     * */
+    private var mCount = 0L
+
+    /**
+     * Lowest priority to log, shared with [ReleaseTree].
+     * */
+    @JvmField
+    @Volatile
+    var level = if (BuildConfig.DEBUG) Log.VERBOSE else Log.INFO
+
+    @JvmStatic
+    fun isLoggable(priority: Int): Boolean = priority >= level
+
+    inline fun v(message: () -> String) {
+        if (BuildConfig.DEBUG) Timber.v(message())
+    }
+
+    inline fun d(message: () -> String) {
+        if (BuildConfig.DEBUG) Timber.d(message())
+    }
+
+    inline fun i(message: () -> String) {
+        if (isLoggable(Log.INFO)) Timber.i(message())
+    }
+
+    inline fun w(t: Throwable? = null, message: () -> String) {
+        if (isLoggable(Log.WARN)) Timber.w(t, message())
+    }
+
+    inline fun e(t: Throwable? = null, message: () -> String) {
+        if (isLoggable(Log.ERROR)) Timber.e(t, message())
+    }
+
+    /**
+     * Record a structured event into the ring
+     *
+     * @param event One of `EVENT_*`
+     * @param value Event specific value, e.g. time cost in milliseconds
+     * */
+    @JvmStatic
+    fun event(event: Int, value: Long) {
+        val time = SystemClock.elapsedRealtime()
+        synchronized(this) {
+            val index = (mCount % RING_CAPACITY).toInt()
+            mTimes[index] = time
+            mEvents[index] = event
+            mValues[index] = value
+            mCount++
+        }
+    }
+
+    /**
+     * @return  Events in the ring as `elapsedRealtime|event|value` lines, oldest first.
+     * */
+    @JvmStatic
+    fun dump(): String = synchronized(this) {
+        val size = minOf(mCount, RING_CAPACITY.toLong()).toInt()
+        val builder = StringBuilder(size * 24)
+        for (i in 0 until size) {
+            val index = ((mCount - size + i) % RING_CAPACITY).toInt()
+            builder.append(mTimes[index]).append('|').append(mEvents[index]).append('|').append(mValues[index]).append('\n')
+        }
+        return builder.toString()
+    }
+}
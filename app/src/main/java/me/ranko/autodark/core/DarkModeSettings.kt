@@ -1,39 +1,50 @@
 package me.ranko.autodark.core
 
-import android.annotation.SuppressLint
 import android.app.*
 import android.content.Context
 import android.content.Intent
+import android.content.pm.PackageManager
 import android.os.Build
+import android.os.SystemClock
 import android.os.SystemProperties
-import android.provider.Settings
 import android.widget.Toast
 import androidx.annotation.RequiresPermission
 import androidx.annotation.StringDef
+import androidx.annotation.WorkerThread
+import androidx.core.content.ContextCompat
 import androidx.lifecycle.DefaultLifecycleObserver
 import androidx.lifecycle.LifecycleOwner
+import androidx.lifecycle.lifecycleScope
 import androidx.preference.Preference
 import androidx.preference.Preference.OnPreferenceChangeListener
-import androidx.preference.PreferenceManager
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
 import me.ranko.autodark.AutoDarkApplication
 import me.ranko.autodark.Constant.*
 import me.ranko.autodark.R
 import me.ranko.autodark.Utils.DarkLocationUtil
 import me.ranko.autodark.Utils.DarkTimeUtil
-import me.ranko.autodark.Utils.DarkTimeUtil.getPersistFormattedString
-import me.ranko.autodark.Utils.DarkTimeUtil.getTodayOrNextDay
 import me.ranko.autodark.Utils.ShellJobUtil
+import me.ranko.autodark.model.*
 import me.ranko.autodark.receivers.DarkModeAlarmReceiver
+import me.ranko.autodark.services.AmbientLightService
 import me.ranko.autodark.ui.DarkWallpaperHelper
 import me.ranko.autodark.ui.MainFragment.Companion.DARK_PREFERENCE_END
 import me.ranko.autodark.ui.MainFragment.Companion.DARK_PREFERENCE_FORCE_ROOT
 import me.ranko.autodark.ui.MainFragment.Companion.DARK_PREFERENCE_START
 import me.ranko.autodark.ui.Preference.DarkDisplayPreference
 import timber.log.Timber
+import java.io.*
+import java.time.DayOfWeek
+import java.time.LocalDate
 import java.time.LocalTime
+import java.time.ZoneId
+import java.util.EnumSet
 
 interface DarkPreferenceSupplier {
     fun get(@DarkPreferenceType type: String): DarkDisplayPreference
@@ -58,10 +69,23 @@ class DarkModeSettings private constructor(private val context: Application) :
         private const val PARAM_ALARM_TYPE = "ALARM_TYPE"
         private const val PARAM_ALARM_TIME = "ALARM_TIME"
 
+        /**
+         * Request codes of legacy paired alarms
+         * */
         private const val REQUEST_ALARM_START = 0x00B0
         private const val REQUEST_ALARM_END = REQUEST_ALARM_START.shl(1)
 
-        private const val SP_AUTO_mode = "dark_mode_auto"
+        private const val REQUEST_ALARM_TRANSITION = REQUEST_ALARM_END.shl(1)
+        private const val REQUEST_ALARM_PREWARM = REQUEST_ALARM_TRANSITION.shl(1)
+
+        const val ACTION_PREWARM = "me.ranko.autodark.action.PREWARM"
+
+        private const val SCHEDULE_FILE_NAME = "dark_schedule.bin"
+
+        private const val TRANSITION_ALARM = "alarm"
+        private const val TRANSITION_BOOT = "boot"
+        private const val TRANSITION_BOOT_PLAN = "boot_plan"
+        const val TRANSITION_AMBIENT = "ambient"
 
         @Volatile
         private var INSTANCE: DarkModeSettings? = null
@@ -108,23 +132,65 @@ class DarkModeSettings private constructor(private val context: Application) :
 
     private val mManager: UiModeManager by lazy(LazyThreadSafetyMode.NONE) { context.getSystemService(UiModeManager::class.java)!! }
 
+    private val mPipeline: DarkTransitionPipeline by lazy(LazyThreadSafetyMode.NONE) { DarkTransitionPipeline(context) }
+
+    private val mSwitcher: NightModeSwitcher by lazy(LazyThreadSafetyMode.NONE) { NightModeSwitcher(context, mManager) }
+
     private val mAlarmManager: AlarmManager by lazy(LazyThreadSafetyMode.NONE) { context.getSystemService(Activity.ALARM_SERVICE) as AlarmManager }
 
+    private val mScheduler = TransitionScheduler(TransitionScheduler.SYSTEM_CLOCK, object : TransitionScheduler.Alarms {
+        override fun setTransition(time: Long, isDark: Boolean) {
+            val pendingIntent = pendingDarkAlarm(time, if (isDark) DARK_PREFERENCE_START else DARK_PREFERENCE_END)
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S || mAlarmManager.canScheduleExactAlarms()) {
+                mAlarmManager.setExactAndAllowWhileIdle(AlarmManager.RTC, time, pendingIntent)
+            } else {
+                mAlarmManager.setAndAllowWhileIdle(AlarmManager.RTC, time, pendingIntent)
+            }
+        }
+
+        override fun setPrewarm(time: Long, isDark: Boolean) {
+            val type = if (isDark) DARK_PREFERENCE_START else DARK_PREFERENCE_END
+            val transitionAt = time + TransitionScheduler.PREWARM_LEAD_MILLIS
+            mAlarmManager.setAndAllowWhileIdle(AlarmManager.RTC, time, pendingPrewarmAlarm(transitionAt, type))
+        }
+
+        override fun cancelTransition() = mAlarmManager.cancel(pendingDarkAlarm(-1L, DARK_PREFERENCE_START))
+
+        override fun cancelPrewarm() = mAlarmManager.cancel(pendingPrewarmAlarm(-1L, DARK_PREFERENCE_START))
+    })
+
     private var mSupplier: DarkPreferenceSupplier? = null
 
-    private val sp = PreferenceManager.getDefaultSharedPreferences(context)
+    private var mUiScope: CoroutineScope? = null
+
+    private val mStore = SettingsStore.getInstance(context)
+
+    private val mSunTable: SunTimeTable by lazy { SunTimeTable.getInstance(context) }
+
+    private val mScheduleFile = File(context.filesDir, SCHEDULE_FILE_NAME)
 
-    private var isAutoMode = sp.getBoolean(SP_AUTO_mode, false)
+    private val mScheduleLock = Mutex()
+
+    @Volatile
+    private var mUserSchedule: DarkSchedule? = null
+
+    @Volatile
+    private var isUserScheduleLoaded = false
+
+    private val isAutoMode: Boolean
+        get() = mStore[Settings.AUTO_MODE]
 
     override fun onStart(owner: LifecycleOwner) {
         mSupplier = (owner as DarkPreferenceSupplier).apply {
             get(DARK_PREFERENCE_START).onPreferenceChangeListener = this@DarkModeSettings
             get(DARK_PREFERENCE_END).onPreferenceChangeListener = this@DarkModeSettings
         }
+        mUiScope = owner.lifecycleScope
     }
 
     override fun onStop(owner: LifecycleOwner) {
         mSupplier = null
+        mUiScope = null
     }
 
     /**
@@ -135,50 +201,198 @@ class DarkModeSettings private constructor(private val context: Application) :
      *
      * Modify secure system settings to bypass that permission,
      * Requires **WRITE_SECURE_SETTINGS**, can provide by the user.
+     * Or call it as shell/root user if Shizuku or root is available.
+     * Backends run on IO thread, safe to call from main thread.
      *
      * @return  false if an error occurred or failed to set mode.
      *
      * @see     UiModeManager.setNightMode
+     * @see     NightModeSwitcher
      * */
-    @SuppressLint("WrongConstant")
-    fun setDarkMode(enabled: Boolean): Boolean {
+    suspend fun setDarkMode(enabled: Boolean): Boolean {
         val newMode = if (enabled) UiModeManager.MODE_NIGHT_YES else UiModeManager.MODE_NIGHT_NO
         val currentMode = mManager.nightMode
 
         if (currentMode == newMode) {
-            Timber.v("Already in %s mode", newMode)
+            DarkLog.v { "Already in $newMode mode" }
             return true
         }
 
-        Timber.d("Current mode: $currentMode change to $newMode")
+        DarkLog.d { "Current mode: $currentMode change to $newMode" }
+        return mSwitcher.setNightMode(newMode)
+    }
+
+    /**
+     * Window of the classic start/end time, or sunset to sunrise in auto mode
+     * */
+    private fun getClassicWindow(start: LocalTime, end: LocalTime): DarkWindow {
+        return if (isAutoMode) {
+            DarkWindow(TimePoint.Sunset(0), TimePoint.Sunrise(0))
+        } else {
+            DarkWindow(TimePoint.of(start), TimePoint.of(end))
+        }
+    }
+
+    /**
+     * Compile the schedule in use, user defined rules take precedence over
+     * the classic start/end time.
+     *
+     * @param   start Start time of custom mode, or sunset fallback of auto mode
+     * @param   end End time of custom mode, or sunrise fallback of auto mode
+     *
+     * @see     DarkSchedule.compile
+     * */
+    private suspend fun compileSchedule(start: LocalTime, end: LocalTime): CompiledSchedule {
+        val window = getClassicWindow(start, end)
+        val schedule = getUserSchedule() ?: DarkSchedule.daily(window.start, window.end)
+        mSunTable.awaitLoaded()
+        val zone = mScheduler.zone()
+        return mScheduler.compile(schedule) { date ->
+            mSunTable.getDarkTime(date, zone) ?: Pair(end, start)
+        }
+    }
+
+    /**
+     * Returns user defined schedule rules, **Null** if not defined.
+     * The schedule file is read once on IO thread.
+     * */
+    suspend fun getUserSchedule(): DarkSchedule? {
+        if (isUserScheduleLoaded) return mUserSchedule
+        return mScheduleLock.withLock {
+            if (isUserScheduleLoaded.not()) {
+                mUserSchedule = withContext(Dispatchers.IO) { loadUserSchedule() }
+                isUserScheduleLoaded = true
+            }
+            mUserSchedule
+        }
+    }
+
+    @WorkerThread
+    private fun loadUserSchedule(): DarkSchedule? {
+        if (mScheduleFile.exists().not()) return null
+        return try {
+            DataInputStream(BufferedInputStream(FileInputStream(mScheduleFile))).use { DarkSchedule.readFrom(it) }
+        } catch (e: IOException) {
+            Timber.w(e, "Drop broken schedule")
+            null
+        }
+    }
+
+    @WorkerThread
+    private fun saveUserSchedule(schedule: DarkSchedule?) {
+        if (schedule == null) {
+            mScheduleFile.delete()
+            return
+        }
+        val tmp = File(mScheduleFile.parentFile, "$SCHEDULE_FILE_NAME.tmp")
         try {
-            Settings.Secure.putInt(
-                    context.contentResolver,
-                    SYSTEM_SECURE_PROP_DARK_MODE,
-                    newMode
-            )
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { schedule.writeTo(it) }
+            if (tmp.renameTo(mScheduleFile).not()) throw IOException("Unable to rename $tmp")
+        } catch (e: IOException) {
+            Timber.w(e, "Failed to save schedule")
+            tmp.delete()
+        }
+    }
+
+    /**
+     * Save user defined schedule rules and re-plan transition.
+     *
+     * @param   schedule New schedule, **Null** to use start/end time again.
+     *
+     * @return  **True** if dark mode has changed
+     * */
+    suspend fun setUserSchedule(schedule: DarkSchedule?): Boolean {
+        mScheduleLock.withLock {
+            withContext(Dispatchers.IO) { saveUserSchedule(schedule) }
+            mUserSchedule = schedule
+            isUserScheduleLoaded = true
+        }
+        val darkTime = getPersistedDarkTime() ?: return false
+        return setAllAlarm(darkTime.first, darkTime.second)
+    }
 
-            // Manually trigger car mode
-            // UiManager will call setNightMode() after carMode
-            mManager.enableCarMode(0)
-            mManager.disableCarMode(0)
-            return mManager.nightMode == newMode
-        } catch (e: SecurityException) {
-            Timber.d(e)
-            return false
+    /**
+     * Keep windows of user rules same as the classic start/end time.
+     * */
+    private suspend fun syncUserSchedule(start: LocalTime, end: LocalTime) {
+        val schedule = getUserSchedule() ?: return
+        val synced = schedule.withWindow(getClassicWindow(start, end))
+        mScheduleLock.withLock {
+            withContext(Dispatchers.IO) { saveUserSchedule(synced) }
+            mUserSchedule = synced
         }
     }
 
+    /**
+     * Returns week days dark mode turns on, all days if no user rules defined.
+     * */
+    suspend fun getScheduleDays(): Set<DayOfWeek> {
+        val schedule = getUserSchedule() ?: return EnumSet.allOf(DayOfWeek::class.java)
+        return schedule.rules.flatMapTo(EnumSet.noneOf(DayOfWeek::class.java)) { it.days }
+    }
+
+    /**
+     * Turns dark mode on only at the given week days, uses the classic
+     * start/end time or sun time.
+     *
+     * @return  **True** if dark mode has changed
+     * */
+    suspend fun setScheduleDays(days: Set<DayOfWeek>): Boolean {
+        val overrides = getActiveOverrides()
+        return setUserSchedule(buildUserSchedule(days, overrides))
+    }
+
+    /**
+     * @return  **True** if dark mode is skipped today
+     * */
+    suspend fun isTodaySkipped(): Boolean {
+        val today = LocalDate.now()
+        return getUserSchedule()?.overrides?.any { it.date == today && it.windows.isEmpty() } == true
+    }
+
+    /**
+     * Skip the dark window starts today, e.g. holidays.
+     *
+     * @return  **True** if dark mode has changed
+     *
+     * @see     DateOverride
+     * */
+    suspend fun setTodaySkipped(skipped: Boolean): Boolean {
+        val today = LocalDate.now()
+        val overrides = getActiveOverrides().filterNot { it.date == today }.toMutableList()
+        if (skipped) overrides.add(DateOverride(today, emptyList()))
+
+        val days = getScheduleDays()
+        return setUserSchedule(buildUserSchedule(days, overrides))
+    }
+
+    /**
+     * @return  Schedule of the days and overrides, **Null** if it equals the classic daily schedule.
+     * */
+    private fun buildUserSchedule(days: Set<DayOfWeek>, overrides: List<DateOverride>): DarkSchedule? {
+        if (days.size == DayOfWeek.values().size && overrides.isEmpty()) return null
+        val window = getClassicWindow(getStartTime(), getEndTime())
+        return DarkSchedule(listOf(DarkRule(days, listOf(window))), overrides)
+    }
+
+    /**
+     * Overrides of today and later, past ones are dropped.
+     * */
+    private suspend fun getActiveOverrides(): List<DateOverride> {
+        val yesterday = LocalDate.now().minusDays(1)
+        return getUserSchedule()?.overrides?.filter { it.date.isAfter(yesterday) } ?: emptyList()
+    }
+
     /**
      * Switch dark mode **on/off** if current time at the user-selected range.
      *
      * @return  **True** If dark mode adjusted
      *
-     * @see     DarkTimeUtil.isInTime
+     * @see     CompiledSchedule.isDark
      * */
-    private fun adjustModeOnTime(start: LocalTime, end: LocalTime): Boolean {
+    private suspend fun adjustModeOnTime(schedule: CompiledSchedule): Boolean {
         val currentMode = isDarkMode() == true
-        val isInRange = DarkTimeUtil.isInTime(start, end, LocalTime.now())
+        val isInRange = mScheduler.isDark(schedule)
         if (isInRange.xor(currentMode)) {
             setDarkMode(isInRange)
         }
@@ -188,37 +402,43 @@ class DarkModeSettings private constructor(private val context: Application) :
     }
 
     /**
-     * Called when user selected new dark mode time, set new switch job alarm
+     * Called when user selected new dark mode time, re-plan next transition alarm
      * */
     override fun onPreferenceChange(preference: Preference, newValue: Any): Boolean {
         val key = preference.key
         val time = newValue as LocalTime
-        // Set start alarm at tomorrow
-        setNextAlarm(time, key)
 
-        // Adjust dark mode if needed
         val startTime = if (key == DARK_PREFERENCE_START) time else getStartTime()
         val endTime = if (key == DARK_PREFERENCE_START) getEndTime() else time
-        val adjusted = adjustModeOnTime(startTime, endTime)
+        mUiScope?.launch { onDarkTimeChanged(startTime, endTime) }
+        return true
+    }
+
+    private suspend fun onDarkTimeChanged(startTime: LocalTime, endTime: LocalTime) {
+        syncUserSchedule(startTime, endTime)
+        val schedule = compileSchedule(startTime, endTime)
+        armSchedule(schedule)
+
+        // Adjust dark mode if needed
+        val adjusted = adjustModeOnTime(schedule)
 
         if (AutoDarkApplication.isOnePlus()) {
             // ignore current dark mode on onePlus
-            val darkMode = DarkTimeUtil.isInTime(startTime, endTime, LocalTime.now())
+            val darkMode = mScheduler.isDark(schedule)
             DarkWallpaperHelper.getInstance(context, null).onAlarm(darkMode)
         } else if (adjusted) {
             DarkWallpaperHelper.getInstance(context, null).onAlarm(isDarkMode() == true)
         }
-        return true
     }
 
     /**
-     * Returns a pending alarm for trigger dark mode at future
+     * Returns the pending alarm for next dark mode transition
      *
      * @param   time Time in milliseconds for set alarm
      * @param   type Turn the dark mode *ON/OFF*.  Either [DARK_PREFERENCE_START]
      *          or [DARK_PREFERENCE_END].
      *
-     *          If same type intent created, the old one will be replaced.
+     *          Only one transition alarm exists, the old one will be replaced.
      *
      * @see     PendingIntent.getBroadcast
      * */
@@ -228,73 +448,112 @@ class DarkModeSettings private constructor(private val context: Application) :
         intent.putExtra(PARAM_ALARM_TIME, time)
 
         return PendingIntent.getBroadcast(
-                context,
-                if (type == DARK_PREFERENCE_START) REQUEST_ALARM_START else REQUEST_ALARM_END,
-                intent,
+            context,
+            REQUEST_ALARM_TRANSITION,
+            intent,
             PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_CANCEL_CURRENT
         )
     }
 
     /**
-     * Set a pending alarm for trigger dark mode at future
+     * Returns the pending alarm to prepare next transition
      *
-     * @param   time Time in milliseconds for set alarm
-     * @param   type Turn the dark mode *ON/OFF*.  Either [DARK_PREFERENCE_START]
-     *          or [DARK_PREFERENCE_END].
+     * @param   transitionAt Time of the transition alarm in milliseconds
      *
-     * @see     pendingDarkAlarm
-     * @see     AlarmManager.set
+     * @see     onPrewarm
+     * */
+    private fun pendingPrewarmAlarm(transitionAt: Long, @DarkPreferenceType type: String): PendingIntent {
+        val intent = Intent(context, DarkModeAlarmReceiver::class.java)
+        intent.action = ACTION_PREWARM
+        intent.putExtra(PARAM_ALARM_TYPE, type)
+        intent.putExtra(PARAM_ALARM_TIME, transitionAt)
+
+        return PendingIntent.getBroadcast(
+            context,
+            REQUEST_ALARM_PREWARM,
+            intent,
+            PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_CANCEL_CURRENT
+        )
+    }
+
+    /**
+     * Cancel paired start/end alarms set by older versions.
+     * */
+    private fun cancelLegacyAlarms() {
+        val intent = Intent(context, DarkModeAlarmReceiver::class.java)
+        for (requestCode in intArrayOf(REQUEST_ALARM_START, REQUEST_ALARM_END)) {
+            PendingIntent.getBroadcast(context, requestCode, intent, PendingIntent.FLAG_IMMUTABLE or PendingIntent.FLAG_NO_CREATE)
+                ?.let {
+                    mAlarmManager.cancel(it)
+                    it.cancel()
+                }
+        }
+    }
+
+    /**
+     * Arm exactly one alarm for the next dark mode transition of the schedule
+     *
+     * @see     TransitionScheduler.arm
      * @see     DarkModeSettings.onAlarm
      * */
-    private fun setNextAlarm(time: LocalTime, @DarkPreferenceType type: String) {
-        val alarmTime = getTodayOrNextDay(time)
-        mAlarmManager.set(AlarmManager.RTC, alarmTime, pendingDarkAlarm(alarmTime, type))
-        Timber.v("Set %s alarm: %s : %s", type, getPersistFormattedString(time), alarmTime)
+    private fun setNextAlarm(schedule: CompiledSchedule) {
+        val next = mScheduler.arm(schedule)
+        if (next == null) {
+            Timber.v("No transition in next %s days", TransitionScheduler.COMPILE_DAYS)
+        } else {
+            Timber.v("Set next %s alarm: %s", if (next.second) "dark" else "light", next.first)
+        }
+    }
+
+    /**
+     * Arm next alarm of a freshly compiled schedule and save it as boot plan
+     *
+     * @see     BootPlan
+     * */
+    private suspend fun armSchedule(schedule: CompiledSchedule) {
+        setNextAlarm(schedule)
+
+        val plan = BootPlan(mScheduler.zone().id, mScheduler.validUntil(), schedule)
+        withContext(Dispatchers.IO) { BootPlan.save(context, plan) }
     }
 
-    fun setAllAlarm(): Boolean = setAllAlarm(getStartTime(), getEndTime())
+    suspend fun setAllAlarm(): Boolean = setAllAlarm(getStartTime(), getEndTime())
 
     /**
-     * Pending the start/end alarm for dark mode switch
+     * Adjust dark mode now and pending the next transition alarm
      *
      * @return  **True** if dark mode has changed
      *
-     * @see     getTodayOrNextDay
+     * @see     setNextAlarm
      * @see     adjustModeOnTime
      * */
-    fun setAllAlarm(startTime: LocalTime, endTime: LocalTime): Boolean {
-        val isAdjusted = adjustModeOnTime(startTime, endTime)
+    suspend fun setAllAlarm(startTime: LocalTime, endTime: LocalTime): Boolean {
+        val schedule = compileSchedule(startTime, endTime)
+        val isAdjusted = adjustModeOnTime(schedule)
 
-        setNextAlarm(startTime, DARK_PREFERENCE_START)
-        setNextAlarm(endTime, DARK_PREFERENCE_END)
+        cancelLegacyAlarms()
+        armSchedule(schedule)
         return isAdjusted
     }
 
-    fun cancelAllAlarm(): Boolean = cancelAllAlarm(getStartTime(), getEndTime())
+    suspend fun cancelAllAlarm(): Boolean = cancelAllAlarm(getStartTime(), getEndTime())
 
     /**
-     * Cancel all the pending alarm
+     * Cancel the pending transition alarm
      *
      * @see     pendingDarkAlarm
      * */
-    fun cancelAllAlarm(startTime: LocalTime, endTime: LocalTime): Boolean {
+    suspend fun cancelAllAlarm(startTime: LocalTime, endTime: LocalTime): Boolean {
 
         // deactivate dark mode
         setDarkMode(false)
 
-        // cancel job on next day
-        val startMillis = getTodayOrNextDay(startTime)
-        val endMillis = getTodayOrNextDay(endTime)
-
-        val startJob = pendingDarkAlarm(startMillis, DARK_PREFERENCE_START)
-        val endJob = pendingDarkAlarm(endMillis, DARK_PREFERENCE_END)
-
-        mAlarmManager.cancel(startJob)
-        mAlarmManager.cancel(endJob)
+        mScheduler.cancel()
+        cancelLegacyAlarms()
+        withContext(Dispatchers.IO) { BootPlan.delete(context) }
 
-        Timber.v("Cancel start job: %s: %s", getPersistFormattedString(startTime), startMillis)
-        Timber.v("Cancel end job: %s: %s", getPersistFormattedString(endTime), endMillis)
-        return DarkTimeUtil.isInTime(startTime, endTime, LocalTime.now())
+        Timber.v("Cancel transition job")
+        return mScheduler.isDark(compileSchedule(startTime, endTime))
     }
 
     /**
@@ -305,24 +564,26 @@ class DarkModeSettings private constructor(private val context: Application) :
     @RequiresPermission(allOf = [android.Manifest.permission.ACCESS_FINE_LOCATION, android.Manifest.permission.ACCESS_COARSE_LOCATION])
     suspend fun triggerAutoMode(): Boolean {
         if (isAutoMode) {
-            isAutoMode = false
+            saveAutoMode(false)
             // replace with custom alarm
+            syncUserSchedule(getStartTime(), getEndTime())
             setAllAlarm()
-            saveAutoMode(false)
             return true
         }
 
         val locationUtil = DarkLocationUtil.getInstance(context)
         val location = locationUtil.getLastLocation()
         if (location != null) {
-            val darkTimeStr = DarkTimeUtil.getDarkTimeString(location)
-            Timber.i("Sunrise at ${darkTimeStr.first}, sunset at ${darkTimeStr.second}")
+            val darkTime = withContext(Dispatchers.IO) {
+                mSunTable.update(location.latitude, location.longitude)
+                mSunTable.getDarkTime(LocalDate.now(), ZoneId.systemDefault())
+            } ?: DarkTimeUtil.getDarkTime(location)
+            DarkLog.i { "Sunrise at ${darkTime.first}, sunset at ${darkTime.second}" }
             // save dark time for master switch
-            saveAutoTime(darkTimeStr)
+            saveAutoTime(darkTime)
             saveAutoMode(true)
 
-            isAutoMode = true
-            val darkTime = DarkTimeUtil.getDarkTime(darkTimeStr)
+            syncUserSchedule(darkTime.second, darkTime.first)
             setAllAlarm(darkTime.second, darkTime.first)
             return true
         }
@@ -331,81 +592,210 @@ class DarkModeSettings private constructor(private val context: Application) :
         return false
     }
 
+    /**
+     * Returns the persisted schedule of custom or auto mode
+     *
+     * @return  Pair of start and end time, **Null** if master switch is off or not configured
+     * */
+    private suspend fun getPersistedDarkTime(): Pair<LocalTime, LocalTime>? {
+        mStore.awaitLoaded()
+        if (mStore[Settings.MASTER_SWITCH].not()) return null
+
+        val autoMode = isAutoMode
+        if (autoMode) {
+            mSunTable.awaitLoaded()
+            // keep saved auto time of today up to date
+            mSunTable.getDarkTime(LocalDate.now(), ZoneId.systemDefault())?.let {
+                saveAutoTime(it)
+                return Pair(it.second, it.first)
+            }
+        }
+
+        val startTime = mStore[if (autoMode) Settings.AUTO_SUNSET else Settings.TIME_START]
+        val endTime = mStore[if (autoMode) Settings.AUTO_SUNRISE else Settings.TIME_END]
+        if (startTime == null || endTime == null) return null
+
+        return DarkTimeUtil.getDarkTime(Pair(startTime, endTime))
+    }
+
+    /**
+     * Called a few minutes before the transition alarm, resolve and validate
+     * wallpapers of the next transition so the alarm only applies them.
+     *
+     * @see     DarkWallpaperHelper.prepareTransition
+     * */
+    suspend fun onPrewarm(intent: Intent) {
+        mStore.awaitLoaded()
+        val switch = intent.getStringExtra(PARAM_ALARM_TYPE) == DARK_PREFERENCE_START
+        val transitionAt = intent.getLongExtra(PARAM_ALARM_TIME, -1L)
+        val helper = DarkWallpaperHelper.getInstance(context, null)
+        if (helper.isTransitionNeeded().not()) return
+
+        // inexact alarm may fire after the transition
+        val ready = helper.prepareTransition(switch, transitionAt)
+        Timber.v("Prewarm %s transition: %s", if (switch) "dark" else "light", ready)
+    }
+
     /**
      * Called when receiving dark mode job at the scheduled time
-     * Adjust dark mode now
+     * Adjust dark mode now and pending the next transition
      *
+     * @see     DarkTransitionPipeline
      * */
-    fun onAlarm(intent: Intent) {
+    suspend fun onAlarm(intent: Intent) {
+        val received = System.currentTimeMillis()
+        mStore.awaitLoaded()
         Timber.v("Dark alarm broadcast Received")
         val type = intent.getStringExtra(PARAM_ALARM_TYPE)!!
+        val scheduled = intent.getLongExtra(PARAM_ALARM_TIME, -1)
+        DarkLog.v { "Dark job $type, delay: ${received - scheduled}ms" }
+
+        // a late or stale alarm may carry an outdated type, trust the schedule of now
+        val compiled = getPersistedDarkTime()?.let { compileSchedule(it.first, it.second) }
+        val switch = compiled?.let { mScheduler.isDark(it) } ?: (type == DARK_PREFERENCE_START)
+
+        val record = try {
+            mPipeline.run({ switch }, TRANSITION_ALARM, { setDarkMode(switch) }, false, scheduled, received) { true }
+        } finally {
+            // pending next alarm, even if the transition failed
+            compiled?.let { withContext(NonCancellable) { armSchedule(it) } }
+        }
 
-        val switch = type == DARK_PREFERENCE_START
-        val time = intent.getLongExtra(PARAM_ALARM_TIME, -1)
-        val nextAlarm = DarkTimeUtil.toNextDayAlarmMillis(time)
-        val pendingIntent = pendingDarkAlarm(nextAlarm, type)
-
-        try {
-            setDarkMode(switch)
-
-            // pending next alarm if no error occurred
-            (context.getSystemService(Activity.ALARM_SERVICE) as AlarmManager)
-                    .set(AlarmManager.RTC, nextAlarm, pendingIntent)
-            Timber.v("Dark job $type finished, pending next alarm: $nextAlarm")
-            // change wallpaper now
-            DarkWallpaperHelper.getInstance(context, null).onAlarm(switch)
-        } catch (e: Exception) {
-            Timber.i(e)
+        if (record.stages.firstOrNull()?.succeed != true) {
             Toast.makeText(context, R.string.dark_mode_permission_denied, Toast.LENGTH_SHORT).show()
         }
     }
 
+    /**
+     * Called when system time or time zone changed, re-plan the transition alarm
+     *
+     * @see     Intent.ACTION_TIME_CHANGED
+     * @see     Intent.ACTION_TIMEZONE_CHANGED
+     * */
+    suspend fun onTimeChanged() {
+        mStore.awaitLoaded()
+        val darkTime = withContext(Dispatchers.IO) {
+            if (isAutoMode) refreshSunTableIfMoved()
+            getPersistedDarkTime()
+        } ?: return
+        Timber.d("Time changed, re-plan transition")
+        if (setAllAlarm(darkTime.first, darkTime.second)) {
+            DarkWallpaperHelper.getInstance(context, null).onAlarm(isDarkMode() == true)
+        }
+    }
+
+    /**
+     * Time zone usually changes after travel, check passive location for free and
+     * rebuild sun table only when the location falls into another table.
+     *
+     * @see     SunTimeTable.isSameKey
+     * */
+    @WorkerThread
+    private fun refreshSunTableIfMoved() {
+        if (ContextCompat.checkSelfPermission(context, android.Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            return
+        }
+        val location = DarkLocationUtil.getInstance(context).getPassiveLocation() ?: return
+        if (mSunTable.isSameKey(location.latitude, location.longitude).not()) {
+            mSunTable.update(location.latitude, location.longitude)
+        }
+    }
+
     /**
      * Active dark mode after boot complete
      * Set force-dark if needed
      *
+     * Executes the [BootPlan] if it is still valid, otherwise evaluate the
+     * schedule from settings. Boot-to-theme time is recorded as finish time of
+     * the theme stage, since the transition is received at device boot time.
+     *
      * @see     DarkModeSettings.setForceDark
      * @see     DARK_PREFERENCE_FORCE_ROOT
+     * @see     DarkTransitionPipeline
      * */
-    fun onBoot() {
-        if (sp.getBoolean(DARK_PREFERENCE_FORCE_ROOT, false)) {
-            CoroutineScope(Dispatchers.Main).launch {
-                // Check set job result
-                val result = setForceDark(true)
-                Timber.v("Force-dark job %s.", if (result) "Succeed" else "Failed")
-            }
-        }
+    suspend fun onBoot() {
+        val received = System.currentTimeMillis()
+        val bootTime = received - SystemClock.elapsedRealtime()
+        mStore.awaitLoaded()
+        val forceDark = mStore[Settings.FORCE_DARK]
+        if (isAmbientTrigger()) AmbientLightService.start(context)
+
+        val plan = if (mStore[Settings.MASTER_SWITCH]) withContext(Dispatchers.IO) { BootPlan.load(context, received) } else null
+        val record = if (plan != null) {
+            onBootWithPlan(plan, forceDark, bootTime)
+        } else {
+            onBootWithSettings(forceDark, bootTime)
+        } ?: return
 
-        val autoMode = sp.getBoolean(SP_AUTO_mode, false)
-        val masterSwitch = sp.getBoolean(SP_KEY_MASTER_SWITCH, false)
-        if (!masterSwitch) return
+        record.stages.firstOrNull { it.stage == DarkTransitionPipeline.Stage.THEME.name }?.let {
+            Timber.i("Boot to theme: %sms, by %s", it.finishedAt, record.reason)
+        }
+    }
 
-        val startTime = sp.getString(if (autoMode) SP_AUTO_TIME_SUNSET else DARK_PREFERENCE_START, null)
-        val endTime = sp.getString(if (autoMode) SP_AUTO_TIME_SUNRISE else DARK_PREFERENCE_END, null)
+    private suspend fun onBootWithPlan(plan: BootPlan, forceDark: Boolean, bootTime: Long): TransitionLog.Record {
+        var darkModeChanged = false
+        val theme = suspend {
+            darkModeChanged = adjustModeOnTime(plan.schedule)
+            cancelLegacyAlarms()
+            setNextAlarm(plan.schedule)
+            true
+        }
+        return mPipeline.run({ isDarkMode() == true }, TRANSITION_BOOT_PLAN, theme, forceDark, -1L, bootTime) { darkModeChanged }
+    }
 
-        Timber.i("onBootBroadcast: Switch $masterSwitch, AutoMode: $autoMode")
+    private suspend fun onBootWithSettings(forceDark: Boolean, bootTime: Long): TransitionLog.Record? {
+        val darkTime = getPersistedDarkTime()
+        DarkLog.i { "onBootBroadcast: AutoMode: $isAutoMode" }
 
-        if (startTime == null || endTime == null) {
+        if (darkTime == null) {
             Timber.v("No job to do.")
-            return
+            if (forceDark.not()) return null
         } else {
-            Timber.v("onBootBroadcast: Start $startTime End: $endTime")
+            DarkLog.v { "onBootBroadcast: Start ${darkTime.first} End: ${darkTime.second}" }
         }
 
-        // adjust dark mode if need after boot up
-        // renew alarm
-        val darkModeChanged = setAllAlarm(
-                DarkTimeUtil.getPersistLocalTime(startTime),
-                DarkTimeUtil.getPersistLocalTime(endTime)
-        )
-
-        if (darkModeChanged) { // Change wallpaper now
-            DarkWallpaperHelper.getInstance(context, null).onBoot(isDarkMode() == true)
+        var darkModeChanged = false
+        val theme: (suspend () -> Boolean)? = if (darkTime == null) null else suspend {
+            // adjust dark mode if need after boot up
+            // renew alarm
+            darkModeChanged = setAllAlarm(darkTime.first, darkTime.second)
+            true
         }
+        // Change wallpaper if dark mode changed
+        return mPipeline.run({ isDarkMode() == true }, TRANSITION_BOOT, theme, forceDark, -1L, bootTime) { darkModeChanged }
     }
 
     fun isAutoMode(): Boolean = isAutoMode
 
+    fun isAmbientTrigger(): Boolean = mStore[Settings.AMBIENT]
+
+    /**
+     * Turns ambient light trigger ON/OFF, works along with the schedule,
+     * the latest transition wins.
+     *
+     * @see     AmbientLightService
+     * */
+    fun setAmbientTrigger(enabled: Boolean) {
+        mStore.put(Settings.AMBIENT, enabled)
+        if (enabled) {
+            AmbientLightService.start(context)
+        } else {
+            AmbientLightService.stop(context)
+        }
+    }
+
+    /**
+     * Called when ambient light filter decided a new mode
+     *
+     * @see     AmbientLightFilter
+     * */
+    suspend fun onAmbientLightChanged(isDark: Boolean) {
+        if (isDarkMode() == isDark) return
+
+        val received = System.currentTimeMillis()
+        mPipeline.run({ isDark }, TRANSITION_AMBIENT, { setDarkMode(isDark) }, false, -1L, received) { true }
+    }
+
     /**
      * Returns system-wide night mode state
      *
@@ -419,21 +809,27 @@ class DarkModeSettings private constructor(private val context: Application) :
         return if (current == -1) null else current != UiModeManager.MODE_NIGHT_NO
     }
 
-    private fun saveAutoTime(timePair: Pair<String, String>) {
-        sp.edit().putString(SP_AUTO_TIME_SUNRISE, timePair.first)
-                .putString(SP_AUTO_TIME_SUNSET, timePair.second)
-                .apply()
+    /**
+     * @param   timePair Pair of sunrise and sunset
+     * */
+    private fun saveAutoTime(timePair: Pair<LocalTime, LocalTime>) {
+        val sunrise = DarkTimeUtil.getPersistFormattedString(timePair.first)
+        val sunset = DarkTimeUtil.getPersistFormattedString(timePair.second)
+        mStore.edit {
+            put(Settings.AUTO_SUNRISE, sunrise)
+            put(Settings.AUTO_SUNSET, sunset)
+        }
     }
 
     private fun saveAutoMode(isAutoMode: Boolean) {
-        sp.edit().putBoolean(SP_AUTO_mode, isAutoMode).apply()
+        mStore.put(Settings.AUTO_MODE, isAutoMode)
     }
 
     fun getStartTime(): LocalTime = getPreferenceTime(DARK_PREFERENCE_START)
 
     fun getEndTime(): LocalTime = getPreferenceTime(DARK_PREFERENCE_END)
 
-    fun overrideIfNeeded(mode: Boolean = false) {
+    suspend fun overrideIfNeeded(mode: Boolean = false) {
         if (Build.VERSION.SDK_INT > Build.VERSION_CODES.Q) {
             val nightMode = mManager.nightMode
             val override = nightMode != UiModeManager.MODE_NIGHT_NO && nightMode != UiModeManager.MODE_NIGHT_YES
@@ -447,9 +843,9 @@ class DarkModeSettings private constructor(private val context: Application) :
         requireNotNull(mSupplier) { "Exception call: Preference has been detached." }
         return if (isAutoMode) {
             val darkTimeStr = if (type == DARK_PREFERENCE_START) {
-                sp.getString(SP_AUTO_TIME_SUNSET, "19:20")!!
+                mStore[Settings.AUTO_SUNSET] ?: "19:20"
             } else {
-                sp.getString(SP_AUTO_TIME_SUNRISE, "06:15")!!
+                mStore[Settings.AUTO_SUNRISE] ?: "06:15"
             }
             DarkTimeUtil.getPersistLocalTime(darkTimeStr)
         } else {
@@ -0,0 +1,125 @@
+package me.ranko.autodark.core
+
+import android.content.Context
+import kotlinx.coroutines.*
+import me.ranko.autodark.Constant
+import me.ranko.autodark.Utils.FileUtil
+import me.ranko.autodark.receivers.BlockListReceiver
+import me.ranko.autodark.ui.DarkWallpaperHelper
+import timber.log.Timber
+import java.nio.file.Files
+import java.nio.file.attribute.FileTime
+
+/**
+ * Runs all the work of a dark mode transition in order: theme first, then
+ * force-dark, block list sync and wallpaper concurrently.
+ *
+ * Latency and result of every stage are saved to [TransitionLog].
+ *
+ * @see DarkModeSettings.onAlarm
+ * @see DarkModeSettings.onBoot
+ * */
+class DarkTransitionPipeline(private val context: Context) {
+
+    enum class Stage {
+        THEME, FORCE_DARK, BLOCK_LIST, WALLPAPER,
+
+        /**
+         * Wallpaper stage with a plan prepared before alarm, recorded separately
+         * to compare with the cold one.
+         * */
+        WALLPAPER_WARM
+    }
+
+    companion object {
+        /**
+         * Stop waiting for wallpaper result, setting continues in background.
+         * The rotation listener may wait much longer.
+         * */
+        private const val WALLPAPER_TIMEOUT = 8000L
+    }
+
+    /**
+     * Modified time of the block list sent last, the hook keeps it until reboot
+     * */
+    @Volatile
+    private var mSentListModified: FileTime? = null
+
+    /**
+     * @param   darkMode Target mode, evaluated after theme stage.
+     * @param   theme Switch theme and returns **True** if succeed. **Null** to skip.
+     * @param   forceDark Set force-dark on, only needed after boot.
+     * @param   wallpaper Whether apply wallpaper, evaluated after theme stage.
+     * @param   scheduled Scheduled alarm time, -1 if not triggered by alarm.
+     * @param   received Time of the transition received.
+     *
+     * @return  Record of this transition
+     * */
+    suspend fun run(darkMode: () -> Boolean, reason: String, theme: (suspend () -> Boolean)?,
+                    forceDark: Boolean, scheduled: Long, received: Long,
+                    wallpaper: () -> Boolean): TransitionLog.Record = coroutineScope {
+        val results = ArrayList<TransitionLog.StageRecord>(Stage.values().size)
+
+        if (theme != null) results.add(runStage(Stage.THEME, received) { theme() }!!)
+        val isDark = darkMode()
+
+        val jobs = ArrayList<Deferred<TransitionLog.StageRecord?>>(3)
+        if (forceDark) {
+            jobs.add(async { runStage(Stage.FORCE_DARK, received) { DarkModeSettings.setForceDark(true) } })
+        }
+        jobs.add(async(Dispatchers.IO) { runStage(Stage.BLOCK_LIST, received) { syncBlockList(reason) } })
+        if (wallpaper()) {
+            val helper = DarkWallpaperHelper.getInstance(context, null)
+            val stage = if (helper.isTransitionPrepared(isDark)) Stage.WALLPAPER_WARM else Stage.WALLPAPER
+            jobs.add(async { runStage(stage, received) { applyWallpaper(helper, isDark) } })
+        }
+        jobs.awaitAll().filterNotNullTo(results)
+
+        val record = TransitionLog.Record(System.currentTimeMillis(), isDark, reason, results, scheduled, received)
+        withContext(Dispatchers.IO) { TransitionLog.getInstance(context).append(record) }
+        DarkLog.d { "Transition $reason finished: $results" }
+        DarkLog.event(DarkLog.EVENT_TRANSITION, record.time - received)
+        return@coroutineScope record
+    }
+
+    /**
+     * @param   received Time of the transition received, to record when this stage finished.
+     * @param   block Returns **True** if succeed, **Null** if nothing to do.
+     *
+     * @return  Stage record, **Null** if the stage skipped.
+     * */
+    private suspend fun runStage(stage: Stage, received: Long, block: suspend () -> Boolean?): TransitionLog.StageRecord? {
+        val start = System.currentTimeMillis()
+        val result = try {
+            block()
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Timber.w(e, "Stage %s failed", stage)
+            false
+        } ?: return null
+        val end = System.currentTimeMillis()
+        return TransitionLog.StageRecord(stage.name, result, end - start, end - received)
+    }
+
+    /**
+     * Ambient light flips the mode often and never changes the list, so skip it.
+     * */
+    private fun syncBlockList(reason: String): Boolean? {
+        if (reason == DarkModeSettings.TRANSITION_AMBIENT) return null
+        if (Files.exists(Constant.BLOCK_LIST_PATH).not()) return null
+        val modified = Files.getLastModifiedTime(Constant.BLOCK_LIST_PATH)
+        if (modified == mSentListModified) return null
+
+        val list = FileUtil.readList(Constant.BLOCK_LIST_PATH)
+        if (list == null || list.isEmpty()) return null
+        BlockListReceiver.sendNewList(context, list as ArrayList)
+        mSentListModified = modified
+        return true
+    }
+
+    private suspend fun applyWallpaper(helper: DarkWallpaperHelper, darkMode: Boolean): Boolean? {
+        if (helper.isTransitionNeeded().not()) return null
+        return withTimeoutOrNull(WALLPAPER_TIMEOUT) { helper.applyForTransition(darkMode) } ?: false
+    }
+}
@@ -0,0 +1,283 @@
+package me.ranko.autodark.core
+
+import android.content.Context
+import androidx.annotation.WorkerThread
+import kotlinx.coroutines.*
+import org.json.JSONArray
+import org.json.JSONObject
+import timber.log.Timber
+import java.io.*
+
+/**
+ * App-wide registry of counters, gauges and latency histograms.
+ *
+ * Values are kept in memory and saved to [METRICS_FILE_NAME] after [SAVE_DELAY],
+ * so they survive process deaths. Values recorded before the file loaded are
+ * merged with the persisted ones.
+ *
+ * Format: `version, (count, (name, value)*) of counters and gauges, (count, (name, histogram)*)`
+ *
+ * @see toJson
+ * */
+class Metrics private constructor(context: Context) {
+
+    /**
+     * Latency histogram with power of two buckets in milliseconds, the last bucket
+     * holds everything above [BUCKET_BOUNDS].
+     * */
+    class Histogram {
+        val buckets = LongArray(BUCKET_BOUNDS.size + 1)
+        var count = 0L
+            private set
+        var sum = 0L
+            private set
+        var max = 0L
+            private set
+
+        fun record(millis: Long) {
+            val value = millis.coerceAtLeast(0L)
+            var index = BUCKET_BOUNDS.binarySearch(value)
+            if (index < 0) index = -index - 1
+            buckets[index]++
+            count++
+            sum += value
+            if (value > max) max = value
+        }
+
+        /**
+         * @return  Upper bound of the bucket holding the percentile, [max] for the last bucket.
+         * */
+        fun percentile(percent: Int): Long {
+            if (count == 0L) return 0L
+            val rank = (count * percent + 99) / 100
+            var seen = 0L
+            for (i in BUCKET_BOUNDS.indices) {
+                seen += buckets[i]
+                if (seen >= rank) return minOf(BUCKET_BOUNDS[i], max)
+            }
+            return max
+        }
+
+        internal fun merge(other: Histogram) {
+            for (i in buckets.indices) buckets[i] += other.buckets[i]
+            count += other.count
+            sum += other.sum
+            if (other.max > max) max = other.max
+        }
+
+        internal fun writeTo(out: DataOutput) {
+            out.writeLong(count)
+            out.writeLong(sum)
+            out.writeLong(max)
+            out.writeInt(buckets.size)
+            for (bucket in buckets) out.writeLong(bucket)
+        }
+
+        fun toJson(): JSONObject = JSONObject()
+            .put("count", count)
+            .put("sum", sum)
+            .put("max", max)
+            .put("p50", percentile(50))
+            .put("p95", percentile(95))
+            .put("buckets", JSONArray().apply { buckets.forEach { put(it) } })
+
+        companion object {
+            internal fun readFrom(input: DataInput): Histogram {
+                val histogram = Histogram()
+                histogram.count = input.readLong()
+                histogram.sum = input.readLong()
+                histogram.max = input.readLong()
+                val size = input.readInt()
+                if (size != histogram.buckets.size) throw IOException("Bucket size changed: $size")
+                for (i in 0 until size) histogram.buckets[i] = input.readLong()
+                return histogram
+            }
+        }
+    }
+
+    companion object {
+        private const val METRICS_FILE_NAME = "metrics.bin"
+
+        private const val METRICS_VERSION = 1
+
+        private const val SAVE_DELAY = 5000L
+
+        private val BUCKET_BOUNDS = LongArray(17) { 1L shl it }
+
+        const val WALLPAPER_LOAD_PREVIEW = "wallpaper.load_preview"
+        const val WALLPAPER_PERSIST = "wallpaper.persist"
+        const val WALLPAPER_PERSIST_FAILED = "wallpaper.persist_failed"
+        const val WALLPAPER_BACKUP = "wallpaper.backup"
+        const val BLOCK_LIST_UPLOAD = "block_list.upload"
+        const val BLOCK_LIST_UPLOAD_FAILED = "block_list.upload_failed"
+
+        /**
+         * Reload time of the list in system server
+         * */
+        const val BLOCK_LIST_RELOAD = "block_list.reload"
+        const val BLOCK_LIST_SIZE = "block_list.size"
+
+        @Volatile
+        private var INSTANCE: Metrics? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): Metrics {
+            if (INSTANCE == null) {
+                synchronized(Metrics::class.java) {
+                    if (INSTANCE == null) INSTANCE = Metrics(context.applicationContext)
+                }
+            }
+            return INSTANCE!!
+        }
+    }
+
+    private val mFile = File(context.filesDir, METRICS_FILE_NAME)
+
+    private val mScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    private val mCounters = HashMap<String, Long>()
+
+    private val mGauges = HashMap<String, Long>()
+
+    private val mHistograms = HashMap<String, Histogram>()
+
+    private val mLoadJob: Job = mScope.launch { load() }
+
+    private var mSaveJob: Job? = null
+
+    /**
+     * Suspend until persisted values are merged, call it before reading for display.
+     * */
+    suspend fun awaitLoaded() = mLoadJob.join()
+
+    fun increment(name: String, delta: Long = 1L) = update {
+        mCounters[name] = (mCounters[name] ?: 0L) + delta
+    }
+
+    fun setGauge(name: String, value: Long) = update {
+        mGauges[name] = value
+    }
+
+    /**
+     * Record a latency sample into histogram of the [name]
+     * */
+    fun record(name: String, millis: Long) = update {
+        mHistograms.getOrPut(name) { Histogram() }.record(millis)
+    }
+
+    private inline fun update(block: () -> Unit) {
+        synchronized(this) {
+            block()
+            if (mSaveJob?.isActive != true) {
+                mSaveJob = mScope.launch {
+                    delay(SAVE_DELAY)
+                    // never overwrite persisted values not merged yet
+                    mLoadJob.join()
+                    save()
+                }
+            }
+        }
+    }
+
+    /**
+     * Save pending samples now, e.g. before process exits.
+     * */
+    suspend fun flush() {
+        synchronized(this) {
+            val job = mSaveJob
+            if (job == null || job.isActive.not()) return
+            job.cancel()
+            mSaveJob = null
+        }
+        mLoadJob.join()
+        // waits for a save already running, it holds the lock
+        withContext(Dispatchers.IO) { save() }
+    }
+
+    @Synchronized
+    fun getCounters(): Map<String, Long> = HashMap(mCounters)
+
+    @Synchronized
+    fun getGauges(): Map<String, Long> = HashMap(mGauges)
+
+    /**
+     * @return  Summary of each histogram as `name` to `count, p50, p95, max`
+     * */
+    @Synchronized
+    fun getHistograms(): Map<String, LongArray> = mHistograms.mapValues { (_, h) ->
+        longArrayOf(h.count, h.percentile(50), h.percentile(95), h.max)
+    }
+
+    /**
+     * @return  All metrics as JSON for bug reports
+     * */
+    @Synchronized
+    fun toJson(): JSONObject {
+        val histograms = JSONObject()
+        mHistograms.forEach { (name, histogram) -> histograms.put(name, histogram.toJson()) }
+        return JSONObject()
+            .put("counters", JSONObject(mCounters as Map<*, *>))
+            .put("gauges", JSONObject(mGauges as Map<*, *>))
+            .put("histograms", histograms)
+            .put("bucketBounds", JSONArray().apply { BUCKET_BOUNDS.forEach { put(it) } })
+    }
+
+    @WorkerThread
+    private fun load() {
+        if (mFile.exists().not()) return
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(mFile))).use { input ->
+                if (input.readInt() != METRICS_VERSION) return
+                val counters = readValues(input)
+                val gauges = readValues(input)
+                val histograms = HashMap<String, Histogram>()
+                repeat(input.readInt()) { histograms[input.readUTF()] = Histogram.readFrom(input) }
+
+                synchronized(this) {
+                    counters.forEach { (name, value) -> mCounters[name] = (mCounters[name] ?: 0L) + value }
+                    // gauges recorded in this process are newer
+                    gauges.forEach { (name, value) -> mGauges.putIfAbsent(name, value) }
+                    histograms.forEach { (name, value) -> mHistograms.getOrPut(name) { Histogram() }.merge(value) }
+                }
+            }
+        } catch (e: IOException) {
+            Timber.w(e, "Drop broken metrics")
+        }
+    }
+
+    private fun readValues(input: DataInput): Map<String, Long> {
+        val values = HashMap<String, Long>()
+        repeat(input.readInt()) { values[input.readUTF()] = input.readLong() }
+        return values
+    }
+
+    private fun writeValues(out: DataOutput, values: Map<String, Long>) {
+        out.writeInt(values.size)
+        for ((name, value) in values) {
+            out.writeUTF(name)
+            out.writeLong(value)
+        }
+    }
+
+    @WorkerThread
+    @Synchronized
+    private fun save() {
+        val tmp = File(mFile.parentFile, "$METRICS_FILE_NAME.tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out ->
+                out.writeInt(METRICS_VERSION)
+                writeValues(out, mCounters)
+                writeValues(out, mGauges)
+                out.writeInt(mHistograms.size)
+                for ((name, histogram) in mHistograms) {
+                    out.writeUTF(name)
+                    histogram.writeTo(out)
+                }
+            }
+            if (tmp.renameTo(mFile).not()) throw IOException("Unable to rename $tmp")
+        } catch (e: IOException) {
+            Timber.w(e, "Failed to save metrics")
+            tmp.delete()
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package me.ranko.autodark.core
+
+import android.annotation.SuppressLint
+import android.app.UiModeManager
+import android.content.Context
+import android.content.SharedPreferences
+import android.provider.Settings.Secure
+import androidx.annotation.WorkerThread
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import me.ranko.autodark.Constant.SYSTEM_SECURE_PROP_DARK_MODE
+import me.ranko.autodark.Utils.RootShell
+import timber.log.Timber
+
+/**
+ * Switches system night mode through the fastest available backend.
+ *
+ * Latency of every switch is recorded per backend as a moving average, backends
+ * never measured are tried once, then the fastest one is preferred. Available
+ * backends are tried in that order until one succeeds.
+ *
+ * Switching runs on IO thread, root commands and latency records never block the caller.
+ *
+ * @see DarkModeSettings.setDarkMode
+ * */
+class NightModeSwitcher(private val context: Context, private val mManager: UiModeManager) {
+
+    interface Backend {
+        val name: String
+
+        fun isAvailable(): Boolean
+
+        /**
+         * @return  **True** if night mode switched to the new mode.
+         * */
+        suspend fun setNightMode(mode: Int): Boolean
+    }
+
+    companion object {
+        private const val PREFS_FILE_NAME = "night_mode_backend"
+
+        private const val KEY_LATENCY_PREFIX = "latency_"
+
+        private const val UNMEASURED = -1L
+
+        /**
+         * Latency penalty for a failed switch, so the backend sinks to the bottom.
+         * */
+        private const val FAILURE_PENALTY = 10000L
+    }
+
+    /**
+     * Writes `ui_night_mode` then toggles car mode, so UiModeManagerService re-reads the setting.
+     *
+     * Requires **WRITE_SECURE_SETTINGS**.
+     * */
+    private inner class SecureSettingBackend : Backend {
+        override val name = "secure"
+
+        override fun isAvailable(): Boolean = true
+
+        override suspend fun setNightMode(mode: Int): Boolean {
+            try {
+                Secure.putInt(context.contentResolver, SYSTEM_SECURE_PROP_DARK_MODE, mode)
+
+                // Manually trigger car mode
+                // UiManager will call setNightMode() after carMode
+                mManager.enableCarMode(0)
+                mManager.disableCarMode(0)
+                return mManager.nightMode == mode
+            } catch (e: SecurityException) {
+                Timber.d(e)
+                return false
+            }
+        }
+    }
+
+    /**
+     * Calls [android.app.IUiModeManager.setNightMode] directly as shell user.
+     * */
+    private inner class ShizukuBackend : Backend {
+        override val name = "shizuku"
+
+        override fun isAvailable(): Boolean = ShizukuApi.getStatus(context) == ShizukuStatus.AVAILABLE
+
+        override suspend fun setNightMode(mode: Int): Boolean {
+            val result = ShizukuApi.beginTransaction().setNightMode(mode).commit()
+            return result.isSuccess() && mManager.nightMode == mode
+        }
+    }
+
+    /**
+     * Runs `cmd uimode night` in root session. Only available after root session
+     * is spawned elsewhere, e.g. force-dark on boot, so it never prompts here.
+     * */
+    private inner class RootBackend : Backend {
+        override val name = "root"
+
+        override fun isAvailable(): Boolean = mStore[Settings.FORCE_DARK] && RootShell.isAlive()
+
+        override suspend fun setNightMode(mode: Int): Boolean {
+            val arg = if (mode == UiModeManager.MODE_NIGHT_YES) "yes" else "no"
+            return try {
+                RootShell.exec("cmd uimode night $arg").isSuccess() && mManager.nightMode == mode
+            } catch (e: Exception) {
+                Timber.d(e)
+                false
+            }
+        }
+    }
+
+    private val mStore = SettingsStore.getInstance(context)
+
+    /**
+     * Loaded on first switch, only touched on IO thread
+     * */
+    private val mLatencyPrefs: SharedPreferences by lazy { context.getSharedPreferences(PREFS_FILE_NAME, Context.MODE_PRIVATE) }
+
+    private val mBackends: Array<Backend> = arrayOf(ShizukuBackend(), RootBackend(), SecureSettingBackend())
+
+    /**
+     * @return  Moving average latency in milliseconds, [UNMEASURED] if never used.
+     * */
+    @WorkerThread
+    fun getLatency(backend: Backend): Long = mLatencyPrefs.getLong(KEY_LATENCY_PREFIX + backend.name, UNMEASURED)
+
+    /**
+     * Returns available backends, unmeasured ones first and then the fastest.
+     * */
+    private fun rankBackends(): List<Backend> {
+        return mBackends.filter { it.isAvailable() }.sortedBy {
+            val latency = getLatency(it)
+            if (latency == UNMEASURED) Long.MIN_VALUE else latency
+        }
+    }
+
+    private fun recordLatency(backend: Backend, costMillis: Long) {
+        val last = getLatency(backend)
+        val average = if (last == UNMEASURED) costMillis else (last * 3 + costMillis) / 4
+        mLatencyPrefs.edit().putLong(KEY_LATENCY_PREFIX + backend.name, average).apply()
+    }
+
+    /**
+     * @return  false if all backends failed to set mode.
+     * */
+    @SuppressLint("WrongConstant")
+    suspend fun setNightMode(mode: Int): Boolean = withContext(Dispatchers.IO) {
+        val backends = rankBackends()
+        for (backend in backends) {
+            val start = System.currentTimeMillis()
+            val succeed = backend.setNightMode(mode)
+            val cost = System.currentTimeMillis() - start
+            recordLatency(backend, if (succeed) cost else cost + FAILURE_PENALTY)
+            DarkLog.d { "Night mode by ${backend.name}: $succeed, time cost: ${cost}ms" }
+            DarkLog.event(DarkLog.EVENT_NIGHT_MODE, if (succeed) cost else -cost)
+            if (succeed) return@withContext true
+        }
+        false
+    }
+}
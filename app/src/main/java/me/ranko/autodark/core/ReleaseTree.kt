@@ -1,11 +1,10 @@
 package me.ranko.autodark.core
 
-import android.util.Log
 import timber.log.Timber
 
 object ReleaseTree : Timber.DebugTree() {
 
     override fun isLoggable(tag: String?, priority: Int): Boolean {
-        return priority >=  Log.INFO
+        return DarkLog.isLoggable(priority)
     }
 }
\ No newline at end of file
@@ -0,0 +1,33 @@
+package me.ranko.autodark.core
+
+import me.ranko.autodark.Constant.*
+import me.ranko.autodark.ui.MainFragment.Companion.DARK_PREFERENCE_AMBIENT
+import me.ranko.autodark.ui.MainFragment.Companion.DARK_PREFERENCE_AUTO
+import me.ranko.autodark.ui.MainFragment.Companion.DARK_PREFERENCE_END
+import me.ranko.autodark.ui.MainFragment.Companion.DARK_PREFERENCE_FORCE_ROOT
+import me.ranko.autodark.ui.MainFragment.Companion.DARK_PREFERENCE_START
+
+/**
+ * Keys of settings shared across the app, names are the same as legacy
+ * SharedPreferences so preference widgets and migration keep working.
+ *
+ * @see SettingsStore
+ * */
+object Settings {
+    @JvmField val MASTER_SWITCH = SettingKey(SP_KEY_MASTER_SWITCH, false)
+
+    @JvmField val AUTO_MODE = SettingKey(DARK_PREFERENCE_AUTO, false)
+    @JvmField val AUTO_SUNRISE = SettingKey<String?>(SP_AUTO_TIME_SUNRISE, null)
+    @JvmField val AUTO_SUNSET = SettingKey<String?>(SP_AUTO_TIME_SUNSET, null)
+
+    @JvmField val TIME_START = SettingKey<String?>(DARK_PREFERENCE_START, null)
+    @JvmField val TIME_END = SettingKey<String?>(DARK_PREFERENCE_END, null)
+
+    @JvmField val FORCE_DARK = SettingKey(DARK_PREFERENCE_FORCE_ROOT, false)
+    @JvmField val AMBIENT = SettingKey(DARK_PREFERENCE_AMBIENT, false)
+
+    /**
+     * **Null** if user never chose
+     * */
+    @JvmField val RESTRICTED_SILENCE = SettingKey<Boolean?>(SP_RESTRICTED_SILENCE, null)
+}
@@ -0,0 +1,335 @@
+package me.ranko.autodark.core
+
+import android.content.Context
+import android.content.SharedPreferences
+import android.os.Looper
+import androidx.annotation.WorkerThread
+import androidx.preference.PreferenceDataStore
+import androidx.preference.PreferenceManager
+import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.*
+import timber.log.Timber
+import java.io.*
+
+/**
+ * Typed key of [SettingsStore], **Null** default means absent.
+ * */
+class SettingKey<T>(val name: String, val default: T)
+
+/**
+ * All app settings in one compact binary file.
+ *
+ * File is loaded once on IO thread when the store created, reads are in-memory
+ * afterwards. Main thread never touches the file: reads there serve defaults until
+ * the load finished, so call [awaitLoaded] first or [observe] the key. Writes update
+ * memory immediately and are batched into one atomic file replace after [WRITE_DELAY],
+ * edits made before the load are replayed on top of it. Call [flush] before the
+ * process may exit, e.g. before a receiver finishes.
+ *
+ * Format: `version, count, (name, type, value)*`
+ *
+ * Replaces default SharedPreferences and `dark_wallpaper` prefs, both are
+ * migrated on first load.
+ *
+ * @see asPreferenceDataStore
+ * */
+class SettingsStore private constructor(private val context: Context) {
+
+    companion object {
+        private const val STORE_FILE_NAME = "settings.bin"
+
+        private const val STORE_VERSION = 1
+
+        private const val TYPE_BOOLEAN: Byte = 0
+        private const val TYPE_INT: Byte = 1
+        private const val TYPE_LONG: Byte = 2
+        private const val TYPE_STRING: Byte = 3
+
+        /**
+         * Collect writes in this period into one file replace
+         * */
+        private const val WRITE_DELAY = 200L
+
+        /**
+         * Legacy prefs of DarkWallpaperHelper, keys are prefixed with [WALLPAPER_PREFIX]
+         * */
+        private const val LEGACY_WALLPAPER_PREFS = "dark_wallpaper"
+
+        const val WALLPAPER_PREFIX = "wallpaper."
+
+        @Volatile
+        private var INSTANCE: SettingsStore? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): SettingsStore {
+            if (INSTANCE == null) {
+                synchronized(SettingsStore::class.java) {
+                    if (INSTANCE == null) INSTANCE = SettingsStore(context.applicationContext)
+                }
+            }
+            return INSTANCE!!
+        }
+    }
+
+    inner class Editor internal constructor(private val values: HashMap<String, Any>) {
+        fun <T> put(key: SettingKey<T>, value: T): Editor = putValue(key.name, value)
+
+        fun remove(key: SettingKey<*>): Editor = putValue(key.name, null)
+
+        internal fun putValue(name: String, value: Any?): Editor {
+            if (value == null) values.remove(name) else values[name] = value
+            return this
+        }
+    }
+
+    private val mStoreFile = File(context.filesDir, STORE_FILE_NAME)
+
+    private val mScope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    @Volatile
+    private var mValues: Map<String, Any> = emptyMap()
+
+    @Volatile
+    private var isLoaded = false
+
+    private val mLoadLock = Any()
+
+    /**
+     * Snapshot of [mValues] after every change, **Null** until loaded
+     * */
+    private val mSnapshots = MutableStateFlow<Map<String, Any>?>(null)
+
+    /**
+     * Edits made before the file loaded, replayed on the loaded values
+     * */
+    private val mPendingEdits = ArrayList<Editor.() -> Unit>()
+
+    /**
+     * Memory has changes not written yet
+     * */
+    private var isDirty = false
+
+    private var mWriteJob: Job? = null
+
+    private val mWriteLock = Any()
+
+    init {
+        mScope.launch { ensureLoaded() }
+    }
+
+    /**
+     * Suspend until the file is loaded, call it before reading on main thread.
+     * */
+    suspend fun awaitLoaded() {
+        if (isLoaded) return
+        withContext(Dispatchers.IO) { ensureLoaded() }
+    }
+
+    /**
+     * Load the file on a worker thread, main thread reads keep serving the
+     * in-memory values until it's done.
+     * */
+    private fun ensureLoaded() {
+        if (isLoaded || Looper.myLooper() == Looper.getMainLooper()) return
+        synchronized(mLoadLock) {
+            if (isLoaded) return
+            val loaded = load()
+            synchronized(mWriteLock) {
+                val values = HashMap(loaded)
+                mPendingEdits.forEach { Editor(values).it() }
+                mValues = values
+                isLoaded = true
+                if (mPendingEdits.isNotEmpty()) {
+                    mPendingEdits.clear()
+                    scheduleWrite()
+                }
+                mSnapshots.value = values
+            }
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    operator fun <T> get(key: SettingKey<T>): T {
+        ensureLoaded()
+        return (mValues[key.name] as T?) ?: key.default
+    }
+
+    /**
+     * Observe value of [key], emits once loaded and then on every change.
+     * */
+    @Suppress("UNCHECKED_CAST")
+    fun <T> observe(key: SettingKey<T>): Flow<T> = mSnapshots
+        .filterNotNull()
+        .map { (it[key.name] as T?) ?: key.default }
+        .distinctUntilChanged()
+
+    fun <T> put(key: SettingKey<T>, value: T) = edit { put(key, value) }
+
+    /**
+     * Apply changes in memory now and save them later in one write.
+     * */
+    fun edit(block: Editor.() -> Unit) {
+        synchronized(mWriteLock) {
+            val values = HashMap(mValues)
+            Editor(values).block()
+            if (!isLoaded) {
+                // may change the loaded values even if not these
+                mPendingEdits.add(block)
+                mValues = values
+                return
+            }
+            if (values == mValues) return
+            mValues = values
+            scheduleWrite()
+            mSnapshots.value = values
+        }
+    }
+
+    /**
+     * Must hold [mWriteLock]
+     * */
+    private fun scheduleWrite() {
+        isDirty = true
+        if (mWriteJob?.isActive == true) return
+        mWriteJob = mScope.launch {
+            delay(WRITE_DELAY)
+            // changes from now on need a new write
+            synchronized(mWriteLock) { mWriteJob = null }
+            writeIfDirty()
+        }
+    }
+
+    /**
+     * Take snapshot in file lock, so the latest write always wins and a
+     * caller returns only after a running write finished.
+     * */
+    @WorkerThread
+    private fun writeIfDirty() {
+        synchronized(mStoreFile) {
+            val values = synchronized(mWriteLock) {
+                if (!isDirty) return
+                isDirty = false
+                mValues
+            }
+            save(values)
+        }
+    }
+
+    /**
+     * Write pending changes now, e.g. before process exits.
+     * */
+    suspend fun flush() {
+        awaitLoaded()
+        synchronized(mWriteLock) { mWriteJob?.cancel() }
+        withContext(Dispatchers.IO) { writeIfDirty() }
+    }
+
+    /**
+     * Adapter for preference widgets, so they persist into this store.
+     * */
+    fun asPreferenceDataStore(): PreferenceDataStore = object : PreferenceDataStore() {
+        private fun <T> read(key: String, defValue: T): T {
+            ensureLoaded()
+            @Suppress("UNCHECKED_CAST")
+            return (mValues[key] as T?) ?: defValue
+        }
+
+        override fun putString(key: String, value: String?) { edit { putValue(key, value) } }
+
+        override fun putInt(key: String, value: Int) { edit { putValue(key, value) } }
+
+        override fun putLong(key: String, value: Long) { edit { putValue(key, value) } }
+
+        override fun putBoolean(key: String, value: Boolean) { edit { putValue(key, value) } }
+
+        override fun getString(key: String, defValue: String?): String? = read(key, defValue)
+
+        override fun getInt(key: String, defValue: Int): Int = read(key, defValue)
+
+        override fun getLong(key: String, defValue: Long): Long = read(key, defValue)
+
+        override fun getBoolean(key: String, defValue: Boolean): Boolean = read(key, defValue)
+    }
+
+    @WorkerThread
+    private fun load(): Map<String, Any> {
+        val start = System.currentTimeMillis()
+        if (mStoreFile.exists().not()) return migrate()
+
+        val values = HashMap<String, Any>()
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(mStoreFile))).use { input ->
+                if (input.readInt() != STORE_VERSION) return values
+                repeat(input.readInt()) {
+                    val name = input.readUTF()
+                    values[name] = when (val type = input.readByte()) {
+                        TYPE_BOOLEAN -> input.readBoolean()
+                        TYPE_INT -> input.readInt()
+                        TYPE_LONG -> input.readLong()
+                        TYPE_STRING -> input.readUTF()
+                        else -> throw IOException("Unknown type $type of $name")
+                    }
+                }
+            }
+        } catch (e: IOException) {
+            Timber.w(e, "Drop broken settings")
+            values.clear()
+        }
+        Timber.d("Settings loaded, time cost: %sms", System.currentTimeMillis() - start)
+        return values
+    }
+
+    @WorkerThread
+    private fun save(values: Map<String, Any>) {
+        val tmp = File(mStoreFile.parentFile, "$STORE_FILE_NAME.tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out ->
+                out.writeInt(STORE_VERSION)
+                out.writeInt(values.size)
+                for ((name, value) in values) {
+                    out.writeUTF(name)
+                    when (value) {
+                        is Boolean -> out.writeByte(TYPE_BOOLEAN.toInt()).also { out.writeBoolean(value) }
+                        is Int -> out.writeByte(TYPE_INT.toInt()).also { out.writeInt(value) }
+                        is Long -> out.writeByte(TYPE_LONG.toInt()).also { out.writeLong(value) }
+                        is String -> out.writeByte(TYPE_STRING.toInt()).also { out.writeUTF(value) }
+                        else -> throw IOException("Unsupported type of $name")
+                    }
+                }
+            }
+            if (tmp.renameTo(mStoreFile).not()) throw IOException("Unable to rename $tmp")
+        } catch (e: IOException) {
+            Timber.w(e, "Failed to save settings")
+            tmp.delete()
+        }
+    }
+
+    /**
+     * Copy legacy SharedPreferences into the store, then delete them.
+     * */
+    @WorkerThread
+    private fun migrate(): Map<String, Any> {
+        val values = HashMap<String, Any>()
+        val defaultName = PreferenceManager.getDefaultSharedPreferencesName(context)
+        copyPrefs(context.getSharedPreferences(defaultName, Context.MODE_PRIVATE), "", values)
+        copyPrefs(context.getSharedPreferences(LEGACY_WALLPAPER_PREFS, Context.MODE_PRIVATE), WALLPAPER_PREFIX, values)
+
+        save(values)
+        if (mStoreFile.exists()) {
+            context.deleteSharedPreferences(defaultName)
+            context.deleteSharedPreferences(LEGACY_WALLPAPER_PREFS)
+        }
+        Timber.i("Migrated %s settings", values.size)
+        return values
+    }
+
+    private fun copyPrefs(prefs: SharedPreferences, prefix: String, values: HashMap<String, Any>) {
+        for ((key, value) in prefs.all) {
+            when (value) {
+                is Boolean, is Int, is Long, is String -> values[prefix + key] = value
+                is Float -> values[prefix + key] = value.toString()
+                else -> Timber.w("Skip unsupported setting %s", key)
+            }
+        }
+    }
+}
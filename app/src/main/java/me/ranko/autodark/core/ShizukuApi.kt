@@ -1,7 +1,9 @@
 package me.ranko.autodark.core
 
 import android.Manifest
+import android.annotation.SuppressLint
 import android.app.Activity
+import android.app.IUiModeManager
 import android.app.IWallpaperManager
 import android.content.Context
 import android.content.Intent
@@ -10,9 +12,11 @@ import android.content.pm.PackageManager
 import androidx.annotation.NonNull
 import androidx.appcompat.app.AlertDialog
 import androidx.core.content.ContextCompat
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
 import me.ranko.autodark.AutoDarkApplication
 import me.ranko.autodark.BuildConfig
-import me.ranko.autodark.Constant
 import me.ranko.autodark.R
 import rikka.shizuku.*
 import timber.log.Timber
@@ -54,10 +58,83 @@ object ShizukuApi {
         IWallpaperManager.Stub.asInterface(ShizukuBinderWrapper(SystemServiceHelper.getSystemService("wallpaper")))
     }
 
+    private val mUiModeManager: IUiModeManager by lazy {
+        IUiModeManager.Stub.asInterface(ShizukuBinderWrapper(SystemServiceHelper.getSystemService("uimode")))
+    }
+
     private val mManager: IPackageManager by lazy {
         IPackageManager.Stub.asInterface(ShizukuBinderWrapper(SystemServiceHelper.getSystemService("package")))
     }
 
+    @SuppressLint("StaticFieldLeak")
+    private var mContext: Context? = null
+
+    /**
+     * Cached Shizuku status, **Null** until first resolved.
+     * Updated by binder received/dead and permission result listeners only.
+     * */
+    private val mStatus = MutableStateFlow<ShizukuStatus?>(null)
+
+    private val mBinderReceiver = Shizuku.OnBinderReceivedListener {
+        mStatus.value = checkShizukuCompat(mContext!!, true)
+        Timber.d("Shizuku binder received, status: %s", mStatus.value)
+    }
+
+    private val mBinderDeadReceiver = Shizuku.OnBinderDeadListener {
+        Timber.i("Shizuku binder dead.")
+        mStatus.value = ShizukuStatus.DEAD
+    }
+
+    private val mPermissionListener = Shizuku.OnRequestPermissionResultListener { requestCode, grantResult ->
+        if (requestCode == REQUEST_CODE_SHIZUKU_PERMISSION) notifyPermissionResult(grantResult)
+    }
+
+    /**
+     * Update cached status with permission result, for results not delivered
+     * through Shizuku listener. e.g. runtime permission on pre-11 Shizuku.
+     * */
+    fun notifyPermissionResult(grantResult: Int) {
+        mStatus.value = if (grantResult == PackageManager.PERMISSION_GRANTED) {
+            ShizukuStatus.AVAILABLE
+        } else {
+            ShizukuStatus.UNAUTHORIZED
+        }
+    }
+
+    /**
+     * Returns cached Shizuku status, no IPC involved once resolved.
+     *
+     * @see observeStatus
+     * */
+    fun getStatus(context: Context): ShizukuStatus {
+        ensureListening(context)
+        return mStatus.value ?: synchronized(this) {
+            mStatus.value ?: checkShizukuCompat(context).also { mStatus.value = it }
+        }
+    }
+
+    /**
+     * Observable version of [getStatus]
+     * */
+    fun observeStatus(context: Context): StateFlow<ShizukuStatus?> {
+        getStatus(context)
+        return mStatus.asStateFlow()
+    }
+
+    private fun ensureListening(context: Context) {
+        if (mContext != null) return
+        synchronized(this) {
+            if (mContext != null) return
+            mContext = context.applicationContext
+            Shizuku.addBinderReceivedListenerSticky(mBinderReceiver)
+            Shizuku.addBinderDeadListener(mBinderDeadReceiver)
+            Shizuku.addRequestPermissionResultListener(mPermissionListener)
+        }
+    }
+
+    /**
+     * Check Shizuku status through IPC, prefer cached [getStatus] instead.
+     * */
     fun checkShizukuCompat(context: Context, skipMangerCheck: Boolean = false): ShizukuStatus {
         if (skipMangerCheck.not() && isShizukuInstalled(context).not()) {
             return ShizukuStatus.NOT_INSTALL
@@ -117,15 +194,21 @@ object ShizukuApi {
 
     fun getIWallpaperManager(): IWallpaperManager = mWallpaperManager
 
+    fun getIUiModeManager(): IUiModeManager = mUiModeManager
+
+    /**
+     * Start a batch of privileged operations, prefer this over
+     * separate calls when switching theme.
+     *
+     * @see ShizukuTransaction.commit
+     * */
+    fun beginTransaction(): ShizukuTransaction = ShizukuTransaction()
+
     fun setForceDark(enabled: Boolean): Boolean {
-        try {
-            ShizukuSystemProperties.set(Constant.SYSTEM_PROP_FORCE_DARK, enabled.toString())
-            return true
-        } catch (ignored: SecurityException) {
-        } catch (e: Exception) {
-            Timber.w(e)
-        }
-        return false
+        val result = beginTransaction().setForceDark(enabled).commit()
+        val error = result.results.first().error
+        if (error != null && error !is SecurityException) Timber.w(error)
+        return error == null
     }
 
     fun grantWithShizuku() {
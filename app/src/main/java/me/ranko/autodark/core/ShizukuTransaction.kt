@@ -0,0 +1,136 @@
+package me.ranko.autodark.core
+
+import android.app.WallpaperManager
+import android.content.ComponentName
+import androidx.annotation.WorkerThread
+import me.ranko.autodark.Constant
+import rikka.shizuku.Shizuku
+import rikka.shizuku.ShizukuSystemProperties
+import timber.log.Timber
+
+/**
+ * Queues privileged operations of a theme switch and executes them in one pass.
+ *
+ * Shizuku is only pinged once per commit, operations of the same kind are merged
+ * so only the last one crosses the binder, and no-op operations are skipped locally.
+ *
+ * @see ShizukuApi.beginTransaction
+ * */
+class ShizukuTransaction internal constructor() {
+
+    /**
+     * @param costMillis Time spent on this operation, including binder round-trip.
+     * */
+    class OpResult(val name: String, val error: Exception?, val costMillis: Long) {
+        fun isSuccess(): Boolean = error == null
+
+        override fun toString(): String = "$name: ${if (error == null) "OK" else error.javaClass.simpleName}, ${costMillis}ms"
+    }
+
+    class Result(val results: List<OpResult>, val costMillis: Long) {
+        fun isSuccess(): Boolean = results.all { it.isSuccess() }
+
+        fun getResult(name: String): OpResult? = results.firstOrNull { it.name == name }
+    }
+
+    companion object {
+        const val OP_NIGHT_MODE = "setNightMode"
+        const val OP_WALLPAPER_COMPONENT = "setWallpaperComponent"
+        const val OP_CLEAR_LOCK_WALLPAPER = "clearLockWallpaper"
+        const val OP_FORCE_DARK = "setForceDark"
+    }
+
+    /**
+     * Pending operations keyed by name, insertion order is execution order.
+     * */
+    private val mOps = LinkedHashMap<String, () -> Unit>()
+
+    /**
+     * Skip the rest once an operation failed, for operations depending on earlier ones.
+     * */
+    private var isAbortOnFailure = false
+
+    fun setNightMode(mode: Int): ShizukuTransaction {
+        mOps[OP_NIGHT_MODE] = {
+            val manager = ShizukuApi.getIUiModeManager()
+            if (manager.nightMode != mode) manager.setNightMode(mode)
+        }
+        return this
+    }
+
+    fun setWallpaperComponent(component: ComponentName): ShizukuTransaction {
+        mOps[OP_WALLPAPER_COMPONENT] = { ShizukuApi.getIWallpaperManager().setWallpaperComponent(component) }
+        return this
+    }
+
+    /**
+     * Clear lock screen wallpaper if present, so the live wallpaper shows on lock screen too.
+     * */
+    fun clearLockWallpaper(manager: WallpaperManager): ShizukuTransaction {
+        mOps[OP_CLEAR_LOCK_WALLPAPER] = {
+            if (manager.getWallpaperId(WallpaperManager.FLAG_LOCK) != -1 ||
+                manager.getWallpaperFile(WallpaperManager.FLAG_LOCK)?.also { it.close() } != null
+            ) {
+                manager.clear(WallpaperManager.FLAG_LOCK)
+            }
+        }
+        return this
+    }
+
+    fun setForceDark(enabled: Boolean): ShizukuTransaction {
+        mOps[OP_FORCE_DARK] = { ShizukuSystemProperties.set(Constant.SYSTEM_PROP_FORCE_DARK, enabled.toString()) }
+        return this
+    }
+
+    /**
+     * Don't execute the remaining operations once one failed.
+     * */
+    fun abortOnFailure(): ShizukuTransaction {
+        isAbortOnFailure = true
+        return this
+    }
+
+    fun isEmpty(): Boolean = mOps.isEmpty()
+
+    /**
+     * Execute all queued operations in order. A failed operation doesn't abort the rest,
+     * unless [abortOnFailure] is set.
+     * */
+    @WorkerThread
+    fun commit(): Result {
+        val start = System.currentTimeMillis()
+        val results = ArrayList<OpResult>(mOps.size)
+        val alive = try {
+            Shizuku.pingBinder()
+        } catch (e: Exception) {
+            false
+        }
+
+        var failed: String? = null
+        for ((name, op) in mOps) {
+            if (alive.not()) {
+                results.add(OpResult(name, IllegalStateException("Shizuku binder dead"), 0L))
+                continue
+            }
+            if (failed != null) {
+                results.add(OpResult(name, IllegalStateException("Skipped, $failed failed"), 0L))
+                continue
+            }
+
+            val opStart = System.currentTimeMillis()
+            val error = try {
+                op()
+                null
+            } catch (e: Exception) {
+                e
+            }
+            results.add(OpResult(name, error, System.currentTimeMillis() - opStart))
+            if (error != null && isAbortOnFailure) failed = name
+        }
+        mOps.clear()
+
+        val result = Result(results, System.currentTimeMillis() - start)
+        Timber.d("Shizuku transaction: %s, time cost: %sms", results, result.costMillis)
+        return result
+    }
+}
@@ -0,0 +1,87 @@
+package me.ranko.autodark.core
+
+import android.os.Process
+import android.os.SystemClock
+import android.os.Trace
+import android.view.View
+import android.view.ViewTreeObserver
+import timber.log.Timber
+
+/**
+ * Records cold start sections from process start to the first frame.
+ *
+ * Every section is also emitted as [Trace] section, so it shows up in
+ * system traces. Only the first start of the process is recorded.
+ *
+ * @see me.ranko.autodark.AutoDarkApplication.onCreate
+ * @see me.ranko.autodark.ui.MainActivity
+ * */
+object StartupTracer {
+
+    /**
+     * @param start Milliseconds since process start
+     * */
+    class Section(val name: String, val start: Long, val costMillis: Long)
+
+    const val SECTION_FIRST_FRAME = "first_frame"
+
+    private val mSections = ArrayList<Section>()
+
+    @Volatile
+    private var isFinished = false
+
+    private fun now(): Long = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime()
+
+    /**
+     * Run the block in a named section, sections can be nested.
+     * */
+    @JvmStatic
+    inline fun <T> trace(name: String, block: () -> T): T {
+        val start = begin(name)
+        try {
+            return block()
+        } finally {
+            end(name, start)
+        }
+    }
+
+    /**
+     * @return  Start time of the section, pass it to [end].
+     * */
+    @JvmStatic
+    fun begin(name: String): Long {
+        Trace.beginSection(name)
+        return now()
+    }
+
+    @JvmStatic
+    fun end(name: String, start: Long) {
+        Trace.endSection()
+        if (isFinished) return
+        synchronized(mSections) { mSections.add(Section(name, start, now() - start)) }
+    }
+
+    /**
+     * Mark the first frame drawn and finish recording.
+     * */
+    @JvmStatic
+    fun onFirstFrame(view: View) {
+        if (isFinished) return
+        view.viewTreeObserver.addOnPreDrawListener(object : ViewTreeObserver.OnPreDrawListener {
+            override fun onPreDraw(): Boolean {
+                view.viewTreeObserver.removeOnPreDrawListener(this)
+                val time = now()
+                synchronized(mSections) { mSections.add(Section(SECTION_FIRST_FRAME, 0L, time)) }
+                isFinished = true
+                Timber.i("Cold start to first frame: %sms", time)
+                return true
+            }
+        })
+    }
+
+    /**
+     * @return  Recorded sections by finish order
+     * */
+    @JvmStatic
+    fun getSections(): List<Section> = synchronized(mSections) { ArrayList(mSections) }
+}
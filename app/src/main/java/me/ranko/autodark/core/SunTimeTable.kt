@@ -0,0 +1,209 @@
+package me.ranko.autodark.core
+
+import android.content.Context
+import androidx.annotation.WorkerThread
+import com.luckycatlabs.sunrisesunset.SunriseSunsetCalculator
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import timber.log.Timber
+import java.io.*
+import java.time.LocalDate
+import java.time.LocalTime
+import java.time.ZoneId
+import java.time.ZonedDateTime
+import java.util.*
+import kotlin.math.roundToInt
+
+/**
+ * Precomputed sunrise/sunset of a whole year for one location.
+ *
+ * Times are stored as UTC minute-of-day shorts for each day of a leap year,
+ * 1476 bytes (about 1.5KB) on disk. The table is keyed by latitude/longitude rounded to [KEY_PRECISION]
+ * degree, so small location changes never trigger a recalculation. Lookup at alarm
+ * time is an array access and a zone offset conversion.
+ *
+ * @see DarkModeSettings.triggerAutoMode
+ * */
+class SunTimeTable private constructor(context: Context) {
+
+    companion object {
+        private const val TABLE_FILE_NAME = "sun_time.tbl"
+
+        private const val TABLE_VERSION = 1
+
+        private const val DAYS = 366
+
+        /**
+         * Key precision in 1/x degree, 0.1 degree is about 11km and
+         * shifts sun time less than one minute.
+         * */
+        private const val KEY_PRECISION = 10
+
+        /**
+         * Marks a day without sunrise or sunset, e.g. polar day/night
+         * */
+        private const val NONE: Short = -1
+
+        private const val MINUTES_PER_DAY = 1440
+
+        @Volatile
+        private var INSTANCE: SunTimeTable? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): SunTimeTable {
+            if (INSTANCE == null) {
+                synchronized(SunTimeTable::class.java) {
+                    if (INSTANCE == null) INSTANCE = SunTimeTable(context.applicationContext)
+                }
+            }
+            return INSTANCE!!
+        }
+
+        @JvmStatic
+        fun toKey(degree: Double): Int = (degree * KEY_PRECISION).roundToInt()
+
+        /**
+         * Map day of year to leap year index, so 29 Feb only exists in leap years.
+         * */
+        private fun toIndex(date: LocalDate): Int {
+            val day = date.dayOfYear - 1
+            return if (date.isLeapYear.not() && day >= 59) day + 1 else day
+        }
+    }
+
+    /**
+     * Immutable table of a location key, published as a whole so readers never
+     * see the key of one table with times of another.
+     *
+     * @param times Sunrise and sunset in UTC minute-of-day, two slots for each day.
+     * */
+    private class Table(val latKey: Int, val lonKey: Int, val times: ShortArray)
+
+    private val mTableFile = File(context.filesDir, TABLE_FILE_NAME)
+
+    @Volatile
+    private var mTable: Table? = null
+
+    @Volatile
+    private var isLoaded = false
+
+    /**
+     * @return  **True** if the location shares the same table with current one.
+     * */
+    fun isSameKey(latitude: Double, longitude: Double): Boolean {
+        ensureLoaded()
+        val table = mTable ?: return false
+        return table.latKey == toKey(latitude) && table.lonKey == toKey(longitude)
+    }
+
+    /**
+     * Recalculate the table if location key changed.
+     *
+     * @return  **True** if the table changed
+     * */
+    @WorkerThread
+    @Synchronized
+    fun update(latitude: Double, longitude: Double): Boolean {
+        if (isSameKey(latitude, longitude)) return false
+
+        val start = System.currentTimeMillis()
+        val latKey = toKey(latitude)
+        val lonKey = toKey(longitude)
+        val utc = TimeZone.getTimeZone("UTC")
+        val calculator = SunriseSunsetCalculator(com.luckycatlabs.sunrisesunset.dto.Location(
+            latKey.toDouble() / KEY_PRECISION, lonKey.toDouble() / KEY_PRECISION
+        ), utc)
+
+        val times = ShortArray(DAYS * 2)
+        val calendar = Calendar.getInstance(utc)
+        // any leap year
+        calendar.clear()
+        calendar.set(2020, Calendar.JANUARY, 1, 12, 0)
+        for (day in 0 until DAYS) {
+            times[day * 2] = toUtcMinute(calculator.getOfficialSunriseCalendarForDate(calendar))
+            times[day * 2 + 1] = toUtcMinute(calculator.getOfficialSunsetCalendarForDate(calendar))
+            calendar.add(Calendar.DAY_OF_YEAR, 1)
+        }
+
+        val table = Table(latKey, lonKey, times)
+        mTable = table
+        save(table)
+        Timber.d("Sun table updated for %s,%s, time cost: %sms", latKey, lonKey, System.currentTimeMillis() - start)
+        return true
+    }
+
+    private fun toUtcMinute(calendar: Calendar?): Short {
+        calendar ?: return NONE
+        return (calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE)).toShort()
+    }
+
+    private fun toLocalTime(utcMinute: Short, offsetSeconds: Int): LocalTime {
+        val minute = Math.floorMod(utcMinute + offsetSeconds / 60, MINUTES_PER_DAY)
+        return LocalTime.of(minute / 60, minute % 60)
+    }
+
+    /**
+     * Returns sunrise and sunset of the date in local time
+     *
+     * @return  Pair of sunrise and sunset, **Null** if table not exists or
+     *          no sunrise/sunset at this day.
+     * */
+    fun getDarkTime(date: LocalDate, zone: ZoneId): Pair<LocalTime, LocalTime>? {
+        ensureLoaded()
+        val table = mTable?.times ?: return null
+        val index = toIndex(date) * 2
+        if (table[index] == NONE || table[index + 1] == NONE) return null
+
+        val offset = ZonedDateTime.of(date, LocalTime.NOON, zone).offset.totalSeconds
+        return Pair(toLocalTime(table[index], offset), toLocalTime(table[index + 1], offset))
+    }
+
+    /**
+     * Suspend until the table file is loaded, call it before querying on main thread.
+     * */
+    suspend fun awaitLoaded() {
+        if (isLoaded) return
+        withContext(Dispatchers.IO) { ensureLoaded() }
+    }
+
+    private fun ensureLoaded() {
+        if (isLoaded) return
+        synchronized(this) {
+            if (isLoaded) return
+            load()
+            isLoaded = true
+        }
+    }
+
+    private fun load() {
+        if (mTableFile.exists().not()) return
+
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(mTableFile))).use { input ->
+                if (input.readInt() != TABLE_VERSION) return
+                val latKey = input.readInt()
+                val lonKey = input.readInt()
+                val times = ShortArray(DAYS * 2) { input.readShort() }
+                mTable = Table(latKey, lonKey, times)
+            }
+        } catch (e: IOException) {
+            Timber.w(e, "Drop broken sun table")
+        }
+    }
+
+    private fun save(table: Table) {
+        val tmp = File(mTableFile.parentFile, "$TABLE_FILE_NAME.tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out ->
+                out.writeInt(TABLE_VERSION)
+                out.writeInt(table.latKey)
+                out.writeInt(table.lonKey)
+                for (minute in table.times) out.writeShort(minute.toInt())
+            }
+            if (tmp.renameTo(mTableFile).not()) throw IOException("Unable to rename $tmp")
+        } catch (e: IOException) {
+            Timber.w(e, "Failed to save sun table")
+            tmp.delete()
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package me.ranko.autodark.core
+
+import android.content.Context
+import androidx.annotation.WorkerThread
+import timber.log.Timber
+import java.io.File
+import java.io.IOException
+import java.util.*
+
+/**
+ * Persisted ring log of recent dark mode transitions, keeps the last [MAX_RECORDS] records.
+ *
+ * One record per line: `time|dark|reason|STAGE:ok:ms:finished,...|scheduled|received`,
+ * stage finished time is the offset to receive time.
+ *
+ * @see DarkTransitionPipeline
+ * */
+class TransitionLog private constructor(context: Context) {
+
+    /**
+     * @param finishedAt Milliseconds from transition received to this stage finished, -1 if unknown.
+     * */
+    class StageRecord(val stage: String, val succeed: Boolean, val costMillis: Long, val finishedAt: Long = -1L) {
+        override fun toString(): String = "$stage:${if (succeed) 1 else 0}:$costMillis:$finishedAt"
+
+        companion object {
+            fun parse(str: String): StageRecord? {
+                val parts = str.split(':')
+                if (parts.size != 3 && parts.size != 4) return null
+                val finishedAt = if (parts.size == 4) parts[3].toLongOrNull() ?: return null else -1L
+                return StageRecord(parts[0], parts[1] == "1", parts[2].toLongOrNull() ?: return null, finishedAt)
+            }
+        }
+    }
+
+    /**
+     * @param scheduled Scheduled alarm time in epochMilli, -1 if not triggered by alarm.
+     * @param received  Time of the transition received in epochMilli, -1 if unknown.
+     * */
+    class Record(val time: Long, val darkMode: Boolean, val reason: String, val stages: List<StageRecord>,
+                 val scheduled: Long = -1L, val received: Long = -1L) {
+
+        fun toLine(): String = "$time|${if (darkMode) 1 else 0}|$reason|${stages.joinToString(",")}|$scheduled|$received"
+
+        /**
+         * @return  Milliseconds from scheduled time to alarm received, **Null** if not scheduled.
+         * */
+        fun getAlarmLateness(): Long? = if (scheduled > 0 && received > 0) received - scheduled else null
+
+        /**
+         * @return  Milliseconds from scheduled time to the stage finished, **Null** if unknown.
+         * */
+        fun getLateness(stage: StageRecord): Long? {
+            val alarmLateness = getAlarmLateness() ?: return null
+            return if (stage.finishedAt < 0) null else alarmLateness + stage.finishedAt
+        }
+
+        companion object {
+            fun parse(line: String): Record? {
+                val parts = line.split('|')
+                if (parts.size != 4 && parts.size != 6) return null
+                val time = parts[0].toLongOrNull() ?: return null
+                val stages = if (parts[3].isEmpty()) emptyList() else parts[3].split(',').mapNotNull { StageRecord.parse(it) }
+                if (parts.size == 4) return Record(time, parts[1] == "1", parts[2], stages)
+                return Record(time, parts[1] == "1", parts[2], stages,
+                    parts[4].toLongOrNull() ?: -1L, parts[5].toLongOrNull() ?: -1L)
+            }
+        }
+    }
+
+    /**
+     * Lateness percentiles of one stage
+     * */
+    class Summary(val stage: String, val count: Int, val p50: Long, val p95: Long)
+
+    companion object {
+        private const val LOG_FILE_NAME = "transition.log"
+
+        private const val MAX_RECORDS = 64
+
+        /**
+         * Pseudo stage of alarm delivery, from scheduled time to received.
+         * */
+        const val STAGE_ALARM = "ALARM"
+
+        @Volatile
+        private var INSTANCE: TransitionLog? = null
+
+        @JvmStatic
+        fun getInstance(context: Context): TransitionLog {
+            if (INSTANCE == null) {
+                synchronized(TransitionLog::class.java) {
+                    if (INSTANCE == null) INSTANCE = TransitionLog(context.applicationContext)
+                }
+            }
+            return INSTANCE!!
+        }
+    }
+
+    private val mLogFile = File(context.filesDir, LOG_FILE_NAME)
+
+    private var mRecords: LinkedList<Record>? = null
+
+    @WorkerThread
+    @Synchronized
+    fun append(record: Record) {
+        val records = loadLocked()
+        records.add(record)
+        while (records.size > MAX_RECORDS) records.removeFirst()
+
+        val tmp = File(mLogFile.parentFile, "$LOG_FILE_NAME.tmp")
+        try {
+            tmp.bufferedWriter().use { writer ->
+                for (r in records) {
+                    writer.write(r.toLine())
+                    writer.newLine()
+                }
+            }
+            if (tmp.renameTo(mLogFile).not()) throw IOException("Unable to rename $tmp")
+        } catch (e: IOException) {
+            Timber.w(e, "Failed to save transition log")
+            tmp.delete()
+        }
+    }
+
+    /**
+     * @return  Recent records, oldest first
+     * */
+    @WorkerThread
+    @Synchronized
+    fun getRecords(): List<Record> = ArrayList(loadLocked())
+
+    /**
+     * Summarize lateness to the scheduled time of every stage, only alarm
+     * transitions are counted.
+     *
+     * @return  Summaries with [STAGE_ALARM] first, then other stages by first appearance.
+     * */
+    @WorkerThread
+    fun getSummaries(): List<Summary> {
+        val samples = LinkedHashMap<String, ArrayList<Long>>()
+        for (record in getRecords()) {
+            val alarmLateness = record.getAlarmLateness() ?: continue
+            samples.getOrPut(STAGE_ALARM) { ArrayList() }.add(alarmLateness)
+            for (stage in record.stages) {
+                val lateness = record.getLateness(stage) ?: continue
+                samples.getOrPut(stage.stage) { ArrayList() }.add(lateness)
+            }
+        }
+        return samples.map { (stage, values) ->
+            values.sort()
+            Summary(stage, values.size, percentile(values, 50), percentile(values, 95))
+        }
+    }
+
+    /**
+     * Nearest-rank percentile of sorted values
+     * */
+    private fun percentile(sorted: List<Long>, percent: Int): Long {
+        val rank = (sorted.size * percent + 99) / 100
+        return sorted[(rank - 1).coerceIn(0, sorted.size - 1)]
+    }
+
+    /**
+     * @return  Raw log for sharing, oldest first
+     * */
+    @WorkerThread
+    fun export(): String {
+        val builder = StringBuilder("time|dark|reason|stages|scheduled|received\n")
+        getRecords().forEach { builder.append(it.toLine()).append('\n') }
+        return builder.toString()
+    }
+
+    private fun loadLocked(): LinkedList<Record> {
+        mRecords?.let { return it }
+
+        val records = LinkedList<Record>()
+        try {
+            if (mLogFile.exists()) mLogFile.forEachLine { line -> Record.parse(line)?.let { records.add(it) } }
+        } catch (e: IOException) {
+            Timber.w(e, "Drop broken transition log")
+        }
+        mRecords = records
+        return records
+    }
+}
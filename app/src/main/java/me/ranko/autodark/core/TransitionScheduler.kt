@@ -0,0 +1,108 @@
+package me.ranko.autodark.core
+
+import me.ranko.autodark.model.CompiledSchedule
+import me.ranko.autodark.model.DarkSchedule
+import java.time.*
+
+/**
+ * Plans the single transition alarm of a schedule.
+ *
+ * Only the next transition is armed, the alarm re-plans from a freshly compiled
+ * schedule when it fires, so wall clock times survive DST changes. Time comes from
+ * the [Clock] and alarms go to [Alarms], both are replaced by fakes in JVM tests.
+ *
+ * @see DarkModeSettings.armSchedule
+ * */
+class TransitionScheduler(private val clock: Clock, private val alarms: Alarms) {
+
+    /**
+     * Sink of the transition and prewarm alarm, setting one replaces the pending one.
+     * */
+    interface Alarms {
+        fun setTransition(time: Long, isDark: Boolean)
+
+        fun setPrewarm(time: Long, isDark: Boolean)
+
+        fun cancelTransition()
+
+        fun cancelPrewarm()
+    }
+
+    companion object {
+        /**
+         * Compile a week ahead, so weekday only rules always have a next transition
+         * */
+        const val COMPILE_DAYS = 8
+
+        /**
+         * Prepare the transition a few minutes before alarm, inexact alarm may fire earlier.
+         * */
+        const val PREWARM_LEAD_MILLIS = 3 * 60 * 1000L
+
+        /**
+         * System clock follows time zone changes, unlike [Clock.systemDefaultZone].
+         * */
+        @JvmField
+        val SYSTEM_CLOCK: Clock = object : Clock() {
+            override fun getZone(): ZoneId = ZoneId.systemDefault()
+
+            override fun withZone(zone: ZoneId): Clock = Clock.system(zone)
+
+            override fun instant(): Instant = Instant.now()
+
+            override fun millis(): Long = System.currentTimeMillis()
+        }
+    }
+
+    fun now(): Long = clock.millis()
+
+    fun zone(): ZoneId = clock.zone
+
+    /**
+     * Compile the schedule from today for [COMPILE_DAYS].
+     *
+     * @see DarkSchedule.compile
+     * */
+    fun compile(schedule: DarkSchedule, sunTimeProvider: (LocalDate) -> Pair<LocalTime, LocalTime>?): CompiledSchedule {
+        return schedule.compile(LocalDate.now(clock), COMPILE_DAYS, clock.zone, sunTimeProvider)
+    }
+
+    /**
+     * @return  End of the compiled range that can be trusted, all compiled days except the last one.
+     * */
+    fun validUntil(): Long {
+        return LocalDate.now(clock).plusDays(COMPILE_DAYS - 1L).atStartOfDay(clock.zone).toInstant().toEpochMilli()
+    }
+
+    fun isDark(schedule: CompiledSchedule): Boolean = schedule.isDark(clock.millis())
+
+    /**
+     * Arm exactly one alarm for the next transition, and a prewarm alarm before it
+     * if there is still time.
+     *
+     * @return  Pair of the armed time and **True** if it turns dark mode on,
+     *          **Null** if no transition in compiled range and alarms are cancelled.
+     * */
+    fun arm(schedule: CompiledSchedule): Pair<Long, Boolean>? {
+        val now = clock.millis()
+        val next = schedule.nextTransition(now)
+        if (next == null) {
+            cancel()
+            return null
+        }
+
+        alarms.setTransition(next.first, next.second)
+        val prewarmTime = next.first - PREWARM_LEAD_MILLIS
+        if (prewarmTime > now) {
+            alarms.setPrewarm(prewarmTime, next.second)
+        } else {
+            alarms.cancelPrewarm()
+        }
+        return next
+    }
+
+    fun cancel() {
+        alarms.cancelTransition()
+        alarms.cancelPrewarm()
+    }
+}
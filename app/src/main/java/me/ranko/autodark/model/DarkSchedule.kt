@@ -0,0 +1,320 @@
+package me.ranko.autodark.model
+
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
+import java.time.DayOfWeek
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.LocalTime
+import java.time.ZoneId
+import java.time.ZonedDateTime
+import java.util.*
+
+/**
+ * Time of a dark window edge, either a fixed wall clock time or relative to sunrise/sunset.
+ * */
+sealed class TimePoint {
+
+    /**
+     * @return  Local date time of this point at the date, may fall on the day before
+     *          or after when a sun offset crosses midnight. **Null** if sun time is unknown.
+     * */
+    abstract fun resolve(date: LocalDate, sunTime: Pair<LocalTime, LocalTime>?): LocalDateTime?
+
+    abstract fun writeTo(out: DataOutput)
+
+    class Fixed(val minuteOfDay: Int) : TimePoint() {
+        override fun resolve(date: LocalDate, sunTime: Pair<LocalTime, LocalTime>?): LocalDateTime {
+            return LocalDateTime.of(date, LocalTime.of(minuteOfDay / 60, minuteOfDay % 60))
+        }
+
+        override fun writeTo(out: DataOutput) {
+            out.writeByte(TYPE_FIXED)
+            out.writeShort(minuteOfDay)
+        }
+    }
+
+    /**
+     * @param offsetMinutes Offset to sunrise, e.g. -30 for 30 minutes before sunrise.
+     * */
+    class Sunrise(val offsetMinutes: Int) : TimePoint() {
+        override fun resolve(date: LocalDate, sunTime: Pair<LocalTime, LocalTime>?): LocalDateTime? {
+            return sunTime?.let { LocalDateTime.of(date, it.first).plusMinutes(offsetMinutes.toLong()) }
+        }
+
+        override fun writeTo(out: DataOutput) {
+            out.writeByte(TYPE_SUNRISE)
+            out.writeShort(offsetMinutes)
+        }
+    }
+
+    class Sunset(val offsetMinutes: Int) : TimePoint() {
+        override fun resolve(date: LocalDate, sunTime: Pair<LocalTime, LocalTime>?): LocalDateTime? {
+            return sunTime?.let { LocalDateTime.of(date, it.second).plusMinutes(offsetMinutes.toLong()) }
+        }
+
+        override fun writeTo(out: DataOutput) {
+            out.writeByte(TYPE_SUNSET)
+            out.writeShort(offsetMinutes)
+        }
+    }
+
+    companion object {
+        private const val TYPE_FIXED = 0
+        private const val TYPE_SUNRISE = 1
+        private const val TYPE_SUNSET = 2
+
+        @JvmStatic
+        fun of(time: LocalTime): Fixed = Fixed(time.hour * 60 + time.minute)
+
+        @JvmStatic
+        fun readFrom(input: DataInput): TimePoint = when (val type = input.readByte().toInt()) {
+            TYPE_FIXED -> Fixed(input.readShort().toInt())
+            TYPE_SUNRISE -> Sunrise(input.readShort().toInt())
+            TYPE_SUNSET -> Sunset(input.readShort().toInt())
+            else -> throw IOException("Unknown time type: $type")
+        }
+    }
+}
+
+/**
+ * A dark window starts at the anchored date, ends at next day if end is not after start.
+ * */
+class DarkWindow(val start: TimePoint, val end: TimePoint) {
+
+    fun writeTo(out: DataOutput) {
+        start.writeTo(out)
+        end.writeTo(out)
+    }
+
+    companion object {
+        @JvmStatic
+        fun readFrom(input: DataInput): DarkWindow = DarkWindow(TimePoint.readFrom(input), TimePoint.readFrom(input))
+    }
+}
+
+/**
+ * Windows applied on the given week days
+ * */
+class DarkRule(val days: Set<DayOfWeek>, val windows: List<DarkWindow>) {
+
+    fun writeTo(out: DataOutput) {
+        var dayBits = 0
+        days.forEach { dayBits = dayBits or (1 shl it.ordinal) }
+        out.writeByte(dayBits)
+        writeWindows(out, windows)
+    }
+
+    companion object {
+        @JvmStatic
+        fun readFrom(input: DataInput): DarkRule {
+            val dayBits = input.readByte().toInt()
+            val days = EnumSet.noneOf(DayOfWeek::class.java)
+            DayOfWeek.values().forEach { if (dayBits and (1 shl it.ordinal) != 0) days.add(it) }
+            return DarkRule(days, readWindows(input))
+        }
+    }
+}
+
+/**
+ * Replaces all rules of the date, e.g. holidays. Empty windows means no dark mode.
+ * */
+class DateOverride(val date: LocalDate, val windows: List<DarkWindow>) {
+
+    fun writeTo(out: DataOutput) {
+        out.writeLong(date.toEpochDay())
+        writeWindows(out, windows)
+    }
+
+    companion object {
+        @JvmStatic
+        fun readFrom(input: DataInput): DateOverride = DateOverride(LocalDate.ofEpochDay(input.readLong()), readWindows(input))
+    }
+}
+
+private fun writeWindows(out: DataOutput, windows: List<DarkWindow>) {
+    out.writeInt(windows.size)
+    windows.forEach { it.writeTo(out) }
+}
+
+private fun readWindows(input: DataInput): List<DarkWindow> = List(input.readInt()) { DarkWindow.readFrom(input) }
+
+/**
+ * User dark mode schedule, compile it to [CompiledSchedule] before query.
+ *
+ * Format: `version, rules, overrides`
+ *
+ * @see compile
+ * */
+class DarkSchedule(val rules: List<DarkRule>, val overrides: List<DateOverride> = emptyList()) {
+
+    fun writeTo(out: DataOutput) {
+        out.writeInt(SCHEDULE_VERSION)
+        out.writeInt(rules.size)
+        rules.forEach { it.writeTo(out) }
+        out.writeInt(overrides.size)
+        overrides.forEach { it.writeTo(out) }
+    }
+
+    /**
+     * @return  Copy of this schedule with every rule using the window, overrides are kept.
+     * */
+    fun withWindow(window: DarkWindow): DarkSchedule {
+        return DarkSchedule(rules.map { DarkRule(it.days, listOf(window)) }, overrides)
+    }
+
+    /**
+     * Resolve all windows from the day before **from** for the given days into
+     * merged epoch millis intervals.
+     *
+     * Windows of the day after are only resolved for the horizon: an interval
+     * reaching the earliest of them may go on past the compiled range, so its
+     * end is unknown.
+     *
+     * @param sunTimeProvider Returns sunrise and sunset of the date, **Null** if
+     *        unknown, windows with unresolved sun time are skipped.
+     * */
+    fun compile(from: LocalDate, days: Int, zone: ZoneId,
+                sunTimeProvider: (LocalDate) -> Pair<LocalTime, LocalTime>?): CompiledSchedule {
+        val overrideMap = overrides.associateBy { it.date }
+        val intervals = ArrayList<LongArray>()
+
+        // windows of yesterday may end today
+        var date = from.minusDays(1)
+        val endDate = from.plusDays(days.toLong())
+        while (date.isBefore(endDate)) {
+            resolveWindows(date, overrideMap, zone, sunTimeProvider, intervals)
+            date = date.plusDays(1)
+        }
+
+        val next = ArrayList<LongArray>()
+        resolveWindows(endDate, overrideMap, zone, sunTimeProvider, next)
+        val horizon = next.minOfOrNull { it[0] } ?: Long.MAX_VALUE
+        return CompiledSchedule.merge(intervals, horizon)
+    }
+
+    private fun resolveWindows(date: LocalDate, overrideMap: Map<LocalDate, DateOverride>, zone: ZoneId,
+                               sunTimeProvider: (LocalDate) -> Pair<LocalTime, LocalTime>?,
+                               intervals: MutableList<LongArray>) {
+        val windows = overrideMap[date]?.windows
+            ?: rules.filter { it.days.contains(date.dayOfWeek) }.flatMap { it.windows }
+        if (windows.isEmpty()) return
+
+        val sunTime = sunTimeProvider(date)
+        for (window in windows) {
+            val start = window.start.resolve(date, sunTime) ?: continue
+            var end = window.end.resolve(date, sunTime) ?: continue
+            if (end.isAfter(start).not()) end = end.plusDays(1)
+            intervals.add(longArrayOf(
+                ZonedDateTime.of(start, zone).toInstant().toEpochMilli(),
+                ZonedDateTime.of(end, zone).toInstant().toEpochMilli()
+            ))
+        }
+    }
+
+    companion object {
+        private const val SCHEDULE_VERSION = 1
+
+        /**
+         * Same as the classic start/end preference
+         * */
+        @JvmStatic
+        fun daily(start: TimePoint, end: TimePoint): DarkSchedule {
+            return DarkSchedule(listOf(DarkRule(EnumSet.allOf(DayOfWeek::class.java), listOf(DarkWindow(start, end)))))
+        }
+
+        @JvmStatic
+        fun readFrom(input: DataInput): DarkSchedule {
+            val version = input.readInt()
+            if (version != SCHEDULE_VERSION) throw IOException("Unknown schedule version: $version")
+            val rules = List(input.readInt()) { DarkRule.readFrom(input) }
+            return DarkSchedule(rules, List(input.readInt()) { DateOverride.readFrom(input) })
+        }
+    }
+}
+
+/**
+ * Sorted, non-overlapping dark intervals in epoch millis, start inclusive and end exclusive.
+ * Both queries are binary searches.
+ *
+ * Ends at or after [horizon] are not transitions, dark mode may go on past the
+ * compiled range, e.g. a whole day schedule.
+ *
+ * Format: `horizon, count, (start, end)*`
+ * */
+class CompiledSchedule private constructor(
+    private val starts: LongArray,
+    private val ends: LongArray,
+    private val horizon: Long
+) {
+
+    companion object {
+        @JvmStatic
+        fun merge(intervals: MutableList<LongArray>, horizon: Long = Long.MAX_VALUE): CompiledSchedule {
+            intervals.sortBy { it[0] }
+            val starts = LongArray(intervals.size)
+            val ends = LongArray(intervals.size)
+            var size = 0
+            for (interval in intervals) {
+                if (interval[1] <= interval[0]) continue
+                if (size > 0 && interval[0] <= ends[size - 1]) {
+                    if (interval[1] > ends[size - 1]) ends[size - 1] = interval[1]
+                } else {
+                    starts[size] = interval[0]
+                    ends[size] = interval[1]
+                    size++
+                }
+            }
+            return CompiledSchedule(starts.copyOf(size), ends.copyOf(size), horizon)
+        }
+
+        @JvmStatic
+        fun readFrom(input: DataInput): CompiledSchedule {
+            val horizon = input.readLong()
+            val size = input.readInt()
+            val starts = LongArray(size)
+            val ends = LongArray(size)
+            for (i in 0 until size) {
+                starts[i] = input.readLong()
+                ends[i] = input.readLong()
+            }
+            return CompiledSchedule(starts, ends, horizon)
+        }
+    }
+
+    fun writeTo(out: DataOutput) {
+        out.writeLong(horizon)
+        out.writeInt(starts.size)
+        for (i in starts.indices) {
+            out.writeLong(starts[i])
+            out.writeLong(ends[i])
+        }
+    }
+
+    /**
+     * @return  Index of the last interval starts at or before time, -1 if none.
+     * */
+    private fun floorIndex(time: Long): Int {
+        val index = starts.binarySearch(time)
+        return if (index >= 0) index else -index - 2
+    }
+
+    fun isDark(time: Long): Boolean {
+        val index = floorIndex(time)
+        return index >= 0 && time < ends[index]
+    }
+
+    /**
+     * @return  Pair of next transition time in epochMilli and **True** if it turns dark mode on,
+     *          **Null** if no transition in compiled range.
+     * */
+    fun nextTransition(time: Long): Pair<Long, Boolean>? {
+        val index = floorIndex(time)
+        if (index >= 0 && time < ends[index]) return if (ends[index] < horizon) Pair(ends[index], false) else null
+        val next = index + 1
+        return if (next < starts.size) Pair(starts[next], true) else null
+    }
+
+    fun isEmpty(): Boolean = starts.isEmpty()
+}
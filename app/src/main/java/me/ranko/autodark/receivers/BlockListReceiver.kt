@@ -52,6 +52,11 @@ class BlockListReceiver private constructor(context: Context, private val hooker
          * */
         const val EXTRA_KEY_SWITCH_RESULT = "k_ime_result"
 
+        /**
+         * Report time cost of reloading the list in milliseconds, the value must be [Long]
+         * */
+        const val EXTRA_KEY_TIME_COST = "k_cost"
+
         fun register(context: Context, hooker: ATMHooker) {
             val receiver = BlockListReceiver(context, hooker)
             val filter = IntentFilter(ACTION_UPDATE_LIST)
@@ -98,7 +103,7 @@ class BlockListReceiver private constructor(context: Context, private val hooker
                     updateLoadProgress(context, LoadStatus.FAILED)
                 } else {
                     hooker.updateList(newList, context)
-                    updateLoadProgress(context, LoadStatus.SUCCEED)
+                    updateLoadProgress(context, LoadStatus.SUCCEED, System.currentTimeMillis() - start)
                 }
 
                 Log.i(TAG, "onReload: Total time cost: ${System.currentTimeMillis() - start}ms")
@@ -113,10 +118,14 @@ class BlockListReceiver private constructor(context: Context, private val hooker
         }
     }
 
-    private fun updateLoadProgress(context: Context, @LoadStatus status: Int): Boolean {
+    /**
+     * @param cost Time cost of reloading in milliseconds, -1 if not finished.
+     * */
+    private fun updateLoadProgress(context: Context, @LoadStatus status: Int, cost: Long = -1L): Boolean {
         val intent = Intent(ACTION_UPDATE_PROGRESS)
         intent.addFlags(Intent.FLAG_EXCLUDE_STOPPED_PACKAGES)
         intent.putExtra(EXTRA_KEY_LIST_PROGRESS, status)
+        if (cost >= 0) intent.putExtra(EXTRA_KEY_TIME_COST, cost)
         intent.setPackage(BuildConfig.APPLICATION_ID)
         return try {
             context.sendBroadcast(intent, Constant.PERMISSION_RECEIVE_DARK_BROADCAST)
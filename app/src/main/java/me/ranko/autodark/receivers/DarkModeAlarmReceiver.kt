@@ -5,39 +5,46 @@ import android.content.Context
 import android.content.Intent
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.launch
-import me.ranko.autodark.Constant
-import me.ranko.autodark.Utils.FileUtil
+import kotlinx.coroutines.withContext
 import me.ranko.autodark.core.DarkModeSettings
-import java.nio.file.Files
+import me.ranko.autodark.core.Metrics
+import me.ranko.autodark.core.SettingsStore
 
 /**
  * Receive dark mode job at scheduled time
  *
- * Control logic is in [DarkModeSettings]
+ * Control logic is in [DarkModeSettings], pending settings and metrics are
+ * flushed before the broadcast finishes, the process may be killed right after.
  *
  * @see     DarkModeSettings.onBoot
  * @see     DarkModeSettings.onAlarm
+ * @see     DarkModeSettings.onPrewarm
+ * @see     DarkModeSettings.onTimeChanged
+ * @see     me.ranko.autodark.core.DarkTransitionPipeline
  *
  * @author 0ranko0P
  * */
 class DarkModeAlarmReceiver : BroadcastReceiver() {
 
     override fun onReceive(context: Context, intent: Intent) {
-        DarkModeSettings.getInstance(context).run {
-            if (intent.action.equals(Intent.ACTION_BOOT_COMPLETED)) {
-                onBoot()
-            } else {
-                onAlarm(intent)
-            }
-        }
-
-        if (Files.exists(Constant.BLOCK_LIST_PATH)) {
-            CoroutineScope(Dispatchers.IO).launch {
-                val list = FileUtil.readList(Constant.BLOCK_LIST_PATH)
-                if (list != null && list.isNotEmpty()) {
-                    BlockListReceiver.sendNewList(context, list as ArrayList)
+        val settings = DarkModeSettings.getInstance(context)
+        val pendingResult = goAsync()
+        CoroutineScope(Dispatchers.Main).launch {
+            try {
+                when (intent.action) {
+                    Intent.ACTION_BOOT_COMPLETED -> settings.onBoot()
+                    Intent.ACTION_TIME_CHANGED, Intent.ACTION_TIMEZONE_CHANGED -> settings.onTimeChanged()
+                    DarkModeSettings.ACTION_PREWARM -> settings.onPrewarm(intent)
+                    else -> settings.onAlarm(intent)
+                }
+            } finally {
+                withContext(NonCancellable) {
+                    SettingsStore.getInstance(context).flush()
+                    Metrics.getInstance(context).flush()
                 }
+                pendingResult.finish()
             }
         }
     }
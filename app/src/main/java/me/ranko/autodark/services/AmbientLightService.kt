@@ -0,0 +1,118 @@
+package me.ranko.autodark.services
+
+import android.app.Notification
+import android.app.NotificationChannel
+import android.app.NotificationManager
+import android.app.Service
+import android.content.Context
+import android.content.Intent
+import android.hardware.Sensor
+import android.hardware.SensorEvent
+import android.hardware.SensorEventListener
+import android.hardware.SensorManager
+import android.os.IBinder
+import android.os.SystemClock
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
+import me.ranko.autodark.R
+import me.ranko.autodark.core.AmbientLightFilter
+import me.ranko.autodark.core.DarkLog
+import me.ranko.autodark.core.DarkModeSettings
+import timber.log.Timber
+
+/**
+ * Foreground service that switches dark mode by ambient light.
+ *
+ * Light sensor events are batched by the sensor hub for up to [MAX_REPORT_LATENCY_US],
+ * so the app process only wakes up a few times per minute. Decisions are made by
+ * [AmbientLightFilter].
+ *
+ * @see DarkModeSettings.onAmbientLightChanged
+ * */
+class AmbientLightService : Service(), SensorEventListener {
+
+    companion object {
+        private const val AMBIENT_SERVICE_CHANNEL = "AMBIENT"
+        private const val AMBIENT_SERVICE_ID = 13
+
+        private const val SAMPLING_PERIOD_US = 1000 * 1000
+
+        private const val MAX_REPORT_LATENCY_US = 60 * 1000 * 1000
+
+        @JvmStatic
+        fun isAvailable(context: Context): Boolean {
+            return context.getSystemService(SensorManager::class.java)?.getDefaultSensor(Sensor.TYPE_LIGHT) != null
+        }
+
+        @JvmStatic
+        fun start(context: Context) {
+            context.startForegroundService(Intent(context, AmbientLightService::class.java))
+        }
+
+        @JvmStatic
+        fun stop(context: Context) {
+            context.stopService(Intent(context, AmbientLightService::class.java))
+        }
+    }
+
+    private lateinit var mSensorManager: SensorManager
+
+    private val mFilter = AmbientLightFilter()
+
+    private val mScope = CoroutineScope(SupervisorJob() + Dispatchers.Main)
+
+    override fun onCreate() {
+        val mManager = getSystemService(NotificationManager::class.java)
+        val channel = NotificationChannel(
+            AMBIENT_SERVICE_CHANNEL,
+            getString(R.string.service_ambient_name),
+            NotificationManager.IMPORTANCE_MIN
+        )
+        mManager.createNotificationChannel(channel)
+
+        val builder = Notification.Builder(this, AMBIENT_SERVICE_CHANNEL)
+        builder.setSmallIcon(R.drawable.ic_auto_dark)
+        builder.setContentTitle(channel.name)
+        builder.setContentText(getString(R.string.service_ambient_listening))
+        startForeground(AMBIENT_SERVICE_ID, builder.build())
+
+        mSensorManager = getSystemService(SensorManager::class.java)
+        val sensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT)
+        if (sensor == null) {
+            Timber.w("Light sensor not available, abort.")
+            stopSelf()
+            return
+        }
+        mSensorManager.registerListener(this, sensor, SAMPLING_PERIOD_US, MAX_REPORT_LATENCY_US)
+        Timber.d("Light sensor registered, fifo: %s", sensor.fifoMaxEventCount)
+    }
+
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int = START_STICKY
+
+    override fun onSensorChanged(event: SensorEvent) {
+        // event timestamp shares the elapsedRealtime clock
+        val time = event.timestamp / 1000000L
+        val isDark = mFilter.onSample(event.values[0], time) ?: return
+        DarkLog.d {
+            "Ambient light ${if (isDark) "dark" else "light"}, smoothed: ${mFilter.getSmoothedLux()}lx, delay: ${SystemClock.elapsedRealtime() - time}ms"
+        }
+        DarkLog.event(DarkLog.EVENT_AMBIENT, if (isDark) 1L else 0L)
+        mScope.launch {
+            DarkModeSettings.getInstance(this@AmbientLightService).onAmbientLightChanged(isDark)
+        }
+    }
+
+    override fun onAccuracyChanged(sensor: Sensor, accuracy: Int) {
+    }
+
+    override fun onDestroy() {
+        mSensorManager.unregisterListener(this)
+        mScope.cancel()
+        super.onDestroy()
+    }
+
+    override fun onBind(intent: Intent?): IBinder? = null
+}
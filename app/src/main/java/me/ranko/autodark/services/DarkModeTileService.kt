@@ -9,6 +9,9 @@ import android.graphics.drawable.Icon
 import android.service.quicksettings.Tile
 import android.service.quicksettings.Tile.*
 import android.service.quicksettings.TileService
+import kotlinx.coroutines.MainScope
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.launch
 import me.ranko.autodark.AutoDarkApplication
 import me.ranko.autodark.Constant
 import me.ranko.autodark.R
@@ -26,6 +29,8 @@ class DarkModeTileService : TileService() {
 
     private lateinit var darkSettings: DarkModeSettings
 
+    private val mScope = MainScope()
+
     override fun onStartListening() {
         super.onStartListening()
         darkSettings = DarkModeSettings.getInstance(application)
@@ -46,8 +51,11 @@ class DarkModeTileService : TileService() {
 
     override fun onClick() {
         if (AutoDarkApplication.checkSecurePermission(this)) {
-            darkSettings.setDarkMode(mTile.state != STATE_ACTIVE)
-            mTile.updateTile()
+            val tile = mTile
+            mScope.launch {
+                darkSettings.setDarkMode(tile.state != STATE_ACTIVE)
+                tile.updateTile()
+            }
         } else {
             val intent = Intent(this, PermissionActivity::class.java)
             intent.addFlags(FLAG_ACTIVITY_NEW_TASK)
@@ -55,6 +63,11 @@ class DarkModeTileService : TileService() {
         }
     }
 
+    override fun onDestroy() {
+        super.onDestroy()
+        mScope.cancel()
+    }
+
     companion object {
         @JvmStatic
         fun setUp(context: Context) {
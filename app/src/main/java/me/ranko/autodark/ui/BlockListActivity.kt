@@ -99,6 +99,7 @@ class BlockListActivity : BaseListActivity() {
         binding.recyclerView.addOnScrollListener(mScrollListener)
 
         viewModel.mAppList.observe(this, { list -> mAdapter.submitData(list) })
+        viewModel.compatIndexUpdated.observe(this, { mAdapter.notifySuggestionChanged() })
 
         binding.swipeRefresh.setOnRefreshListener { viewModel.refreshList() }
         binding.swipeRefresh.setColorSchemeResources( // add RGB power
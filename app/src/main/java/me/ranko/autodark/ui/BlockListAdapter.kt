@@ -35,10 +35,22 @@ class BlockListAdapter(context: Context,
 
         fun isAppBlocked(app: Blockable): Boolean
 
+        /**
+         * @return  **True** if the app ships its own dark theme and force-dark may break it
+         * */
+        fun isBlockSuggested(app: Blockable): Boolean
+
         fun onEditItemClicked(app: Blockable)
     }
 
     companion object {
+        /**
+         * Payload to rebind block suggestion badge only
+         *
+         * @see notifySuggestionChanged
+         * */
+        private const val PAYLOAD_SUGGESTION = "suggest"
+
         private fun <T> randomAccess(data:Collection<T>, position: Int): T {
             return when (data) {
                 is List -> data[position]
@@ -94,6 +106,11 @@ class BlockListAdapter(context: Context,
     abstract class BaseViewHolder<T>(view: View) : RecyclerView.ViewHolder(view) {
         abstract fun bind(data: T, listener: AppSelectListener)
 
+        /**
+         * Partial bind with payloads, performs full bind by default
+         * */
+        open fun bind(data: T, listener: AppSelectListener, payloads: List<Any>) = bind(data, listener)
+
         abstract fun recycle()
     }
 
@@ -115,9 +132,11 @@ class BlockListAdapter(context: Context,
         private val indicator: ImageView = rootView.findViewById(R.id.indicator)
         private val name: TextView = rootView.findViewById(R.id.name)
         private val id: TextView = rootView.findViewById(R.id.appID)
+        private val suggestion: TextView = rootView.findViewById(R.id.suggestion)
 
         override fun bind(data: BlockableApplication, listener: AppSelectListener) {
             applyBlockedMark(listener.isAppBlocked(data), false)
+            bindSuggestion(data, listener)
             rootView.setOnClickListener {
                 if (!isRefreshing) {
                     val isBlocked = listener.onAppBlockStateChanged(data)
@@ -138,6 +157,18 @@ class BlockListAdapter(context: Context,
             }
         }
 
+        override fun bind(data: BlockableApplication, listener: AppSelectListener, payloads: List<Any>) {
+            if (payloads.contains(PAYLOAD_SUGGESTION)) {
+                bindSuggestion(data, listener)
+            } else {
+                bind(data, listener)
+            }
+        }
+
+        private fun bindSuggestion(data: BlockableApplication, listener: AppSelectListener) {
+            suggestion.visibility = if (listener.isBlockSuggested(data)) View.VISIBLE else View.GONE
+        }
+
         private fun applyBlockedMark(isBlocked: Boolean, animate: Boolean) {
             val visibility = if (isBlocked) {
                 if (animate) {
@@ -182,6 +213,17 @@ class BlockListAdapter(context: Context,
         holder.bind(randomAccess(data, position), listener)
     }
 
+    override fun onBindViewHolder(holder: BaseViewHolder<Any>, position: Int, payloads: MutableList<Any>) {
+        holder.bind(randomAccess(data, position), listener, payloads)
+    }
+
+    /**
+     * Rebind block suggestion badges without replaying item animations
+     * */
+    fun notifySuggestionChanged() {
+        if (data.isNotEmpty()) notifyItemRangeChanged(0, data.size, PAYLOAD_SUGGESTION)
+    }
+
     override fun getItemCount() = data.size
 
     override fun getItemViewType(position: Int): Int {
@@ -20,14 +20,18 @@ import androidx.collection.ArraySet
 import androidx.databinding.ObservableField
 import androidx.fragment.app.DialogFragment
 import androidx.lifecycle.*
-import androidx.preference.PreferenceManager
 import kotlinx.coroutines.*
 import me.ranko.autodark.Constant
 import me.ranko.autodark.Constant.BLOCK_LIST_PATH
 import me.ranko.autodark.Constant.PERMISSION_SEND_DARK_BROADCAST
 import me.ranko.autodark.R
 import me.ranko.autodark.Utils.FileUtil
+import me.ranko.autodark.core.DarkCompatScanner
+import me.ranko.autodark.core.DarkLog
 import me.ranko.autodark.core.LoadStatus
+import me.ranko.autodark.core.Metrics
+import me.ranko.autodark.core.SettingKey
+import me.ranko.autodark.core.SettingsStore
 import me.ranko.autodark.model.BaseBlockableApplication
 import me.ranko.autodark.model.Blockable
 import me.ranko.autodark.model.BlockableApplication
@@ -36,6 +40,7 @@ import me.ranko.autodark.receivers.BlockListReceiver.Companion.ACTION_SWITCH_INP
 import me.ranko.autodark.receivers.BlockListReceiver.Companion.ACTION_UPDATE_PROGRESS
 import me.ranko.autodark.receivers.BlockListReceiver.Companion.EXTRA_KEY_LIST_PROGRESS
 import me.ranko.autodark.receivers.BlockListReceiver.Companion.EXTRA_KEY_SWITCH_RESULT
+import me.ranko.autodark.receivers.BlockListReceiver.Companion.EXTRA_KEY_TIME_COST
 import me.ranko.autodark.receivers.InputMethodReceiver
 import me.ranko.autodark.ui.MainViewModel.Companion.Summary
 import timber.log.Timber
@@ -55,8 +60,8 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
 
         private const val MAX_UPLOAD_TIME_MILLIS = 5000L
 
-        private const val KEY_SHOW_SYSTEM_APP = "show_sys"
-        private const val KEY_BLOCKED_FIRST = "blocked_first"
+        private val KEY_SHOW_SYSTEM_APP = SettingKey("show_sys", false)
+        private val KEY_BLOCKED_FIRST = SettingKey("blocked_first", true)
 
         class Factory(private val application: Application) : ViewModelProvider.Factory {
             override fun <T : ViewModel> create(modelClass: Class<T>): T {
@@ -130,7 +135,9 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
 
     private val mContext = application
 
-    private val sp = PreferenceManager.getDefaultSharedPreferences(mContext)
+    private val mStore = SettingsStore.getInstance(mContext)
+
+    private val mMetrics = Metrics.getInstance(mContext)
 
     private val mPackageManager by lazy (LazyThreadSafetyMode.NONE) { mContext.packageManager }
 
@@ -177,13 +184,24 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
 
     private var mSearchHelper: SearchHelper? = null
 
+    private val mCompatScanner = DarkCompatScanner.getInstance(application)
+
+    private var mScanJob: Job? = null
+
+    private val _compatIndexUpdated = MutableLiveData<Boolean>()
+    /**
+     * Notified when [DarkCompatScanner] finished a scan, UI should refresh block suggestions.
+     * */
+    val compatIndexUpdated: LiveData<Boolean>
+        get() = _compatIndexUpdated
+
     val dialog = ObservableField<DialogFragment?>()
 
     val message =  ObservableField<Summary?>()
 
     private val updateStatusReceiver = object : BroadcastReceiver() {
         override fun onReceive(context: Context?, intent: Intent) {
-            Timber.i("onReceive: Response is: %s", intent.action)
+            DarkLog.i { "onReceive: Response is: ${intent.action}" }
             when (intent.action) {
                 ACTION_UPDATE_PROGRESS -> onUpdateListResponse(intent)
 
@@ -262,12 +280,34 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
                 _mEditList = _mAppList.value!!
                 _mAppList.postValue(mBlockSet)
             } else {
-                _mAppList.postValue(loadAppList())
+                val appList = loadAppList()
+                _mAppList.postValue(appList)
+                scanCompatIndex(appList)
             }
             _isRefreshing.postValue(false)
         }
     }
 
+    /**
+     * Scan native dark support in the background, only changed packages are parsed.
+     *
+     * @see DarkCompatScanner.scan
+     * */
+    private fun scanCompatIndex(appList: List<BlockableApplication>) {
+        if (mScanJob?.isActive == true) return
+
+        mScanJob = viewModelScope.launch(Dispatchers.IO) {
+            try {
+                mCompatScanner.scan(appList)
+                _compatIndexUpdated.postValue(true)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Timber.w(e, "Compat scan failed")
+            }
+        }
+    }
+
     private suspend fun loadAppList(): List<BlockableApplication> {
         val showSysApp = shouldShowSystemApp()
         val blockFirst = isBlockedFirst()
@@ -302,9 +342,9 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
         return _isRefreshing.value != true && isUploading().not() && _uploadStatus.value != LoadStatus.FAILED
     }
 
-    fun isBlockedFirst(): Boolean = sp.getBoolean(KEY_BLOCKED_FIRST, true)
+    fun isBlockedFirst(): Boolean = mStore[KEY_BLOCKED_FIRST]
 
-    fun shouldShowSystemApp(): Boolean = sp.getBoolean(KEY_SHOW_SYSTEM_APP, false)
+    fun shouldShowSystemApp(): Boolean = mStore[KEY_SHOW_SYSTEM_APP]
 
     override fun onAppBlockStateChanged(app: Blockable): Boolean {
         return if (mBlockSet.contains(app)) {
@@ -324,6 +364,10 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
 
     override fun isAppBlocked(app: Blockable): Boolean = mBlockSet.contains(app)
 
+    override fun isBlockSuggested(app: Blockable): Boolean {
+        return mCompatScanner.shouldSuggestBlock(app.getPackageName())
+    }
+
     override fun onEditItemClicked(app: Blockable) {
         dialog.set(BlockListEditDialog.newInstance(app.getPackageName()))
     }
@@ -345,6 +389,7 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
         startUpload("onRequestUploadList: Upload time out!")
         viewModelScope.launch(Dispatchers.IO) {
             val blockedPackages = mBlockSet.map { it.getPackageName() } as ArrayList
+            mMetrics.setGauge(Metrics.BLOCK_LIST_SIZE, blockedPackages.size.toLong())
             try {
                 Files.write(BLOCK_LIST_PATH, blockedPackages)
                 BlockListReceiver.sendNewList(mContext, blockedPackages)
@@ -356,6 +401,8 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
     }
 
     private fun onUpdateListResponse(intent: Intent) {
+        val reloadCost = intent.getLongExtra(EXTRA_KEY_TIME_COST, -1L)
+        if (reloadCost >= 0) mMetrics.record(Metrics.BLOCK_LIST_RELOAD, reloadCost)
         when (intent.getIntExtra(EXTRA_KEY_LIST_PROGRESS, LoadStatus.FAILED)) {
             LoadStatus.SUCCEED -> stopUpload(true, mContext.getString(R.string.app_upload_success), this::refreshList)
 
@@ -387,6 +434,8 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
         if (watcher?.isActive == true) watcher.cancel()
 
         val cost = Duration.between(timer, Instant.now()).toMillis()
+        mMetrics.record(Metrics.BLOCK_LIST_UPLOAD, cost)
+        if (succeed.not()) mMetrics.increment(Metrics.BLOCK_LIST_UPLOAD_FAILED)
         viewModelScope.launch(Dispatchers.Main) {
             if (cost < 600L) delay(1000L) // wait longer
             if (succeed) {
@@ -401,18 +450,16 @@ class BlockListViewModel(application: Application) : AndroidViewModel(applicatio
     }
 
     fun onShowSysAppSelected(selected: Boolean) {
-        if (sp.edit().putBoolean(KEY_SHOW_SYSTEM_APP, selected).commit()) {
-            refreshList(false)
-        }
+        mStore.put(KEY_SHOW_SYSTEM_APP, selected)
+        refreshList(false)
         if (selected) {
             message.set(newSummary(R.string.app_hook_system_message))
         }
     }
 
     fun onBlockFirstSelected(selected: Boolean) {
-        if (sp.edit().putBoolean(KEY_BLOCKED_FIRST, selected).commit()) {
-            refreshList(false)
-        }
+        mStore.put(KEY_BLOCKED_FIRST, selected)
+        refreshList(false)
     }
 
     fun onHookImeSelected(menu: MenuItem) {
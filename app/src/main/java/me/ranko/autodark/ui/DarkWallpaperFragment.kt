@@ -24,6 +24,7 @@ import com.android.wallpaper.model.LiveWallpaperInfo
 import com.android.wallpaper.model.WallpaperInfo
 import com.android.wallpaper.module.WallpaperPersister.DEST_BOTH
 import com.android.wallpaper.picker.PreviewFragment
+import com.android.wallpaper.util.TaskRunner
 import com.android.wallpaper.widget.BottomActionBar
 import com.android.wallpaper.widget.BottomActionBar.BottomAction
 import com.android.wallpaper.widget.WallpaperColorsLoader
@@ -221,11 +222,15 @@ class DarkWallpaperFragment : PreviewFragment(), ViewTreeObserver.OnGlobalLayout
 
         private val context = mPreview.homeView.context.applicationContext
 
+        private var colorsHandle: TaskRunner.Handle = TaskRunner.COMPLETED
+
         override fun onChanged(wallpapers: Pair<WallpaperInfo, WallpaperInfo>) {
             load(wallpapers.first, mPreview.homeView)
             val lockAsset = load(wallpapers.second, mPreview.lockView)
 
-            WallpaperColorsLoader.getWallpaperColors(context, lockAsset, mPreview.lockScreenPreviewer::setColor)
+            // colors of the replaced wallpaper are useless now
+            colorsHandle.cancel()
+            colorsHandle = WallpaperColorsLoader.getWallpaperColors(context, lockAsset, mPreview.lockScreenPreviewer::setColor)
         }
 
         private fun load(wallpaper: WallpaperInfo, imageView: ImageView): Asset {
@@ -248,6 +253,7 @@ class DarkWallpaperFragment : PreviewFragment(), ViewTreeObserver.OnGlobalLayout
 
         fun destroy(target: LiveData<Pair<WallpaperInfo, WallpaperInfo>>) {
             target.removeObserver(this)
+            colorsHandle.cancel()
             mPreview.setHomeWallpaper(null)
             mPreview.setLockWallpaper(null)
         }
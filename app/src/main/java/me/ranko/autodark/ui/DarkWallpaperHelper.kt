@@ -16,11 +16,17 @@ import com.android.wallpaper.model.WallpaperInfo
 import com.android.wallpaper.module.WallpaperPersister
 import com.android.wallpaper.module.WallpaperPersister.*
 import com.android.wallpaper.module.WallpaperSetter
+import com.android.wallpaper.util.TaskRunner
 import kotlinx.coroutines.*
 import me.ranko.autodark.AutoDarkApplication
 import me.ranko.autodark.R
 import me.ranko.autodark.Utils.ViewUtil
+import me.ranko.autodark.core.DarkLog
 import me.ranko.autodark.core.DarkModeSettings
+import me.ranko.autodark.core.Metrics
+import me.ranko.autodark.core.SettingKey
+import me.ranko.autodark.core.SettingsStore
+import me.ranko.autodark.core.SettingsStore.Companion.WALLPAPER_PREFIX
 import me.ranko.autodark.core.ShizukuApi
 import me.ranko.autodark.core.ShizukuStatus
 import me.ranko.autodark.core.WallpaperSetterConnection
@@ -33,6 +39,7 @@ import me.ranko.autodark.ui.WallpaperType.HOME
 import timber.log.Timber
 import java.io.File
 import java.io.IOException
+import kotlin.coroutines.resume
 
 enum class WallpaperType {
     HOME, LOCK, DARK_HOME, DARK_LOCK;
@@ -44,17 +51,29 @@ enum class WallpaperType {
 class DarkWallpaperHelper private constructor(private val mContext: Context) {
 
     companion object {
-        private const val PREFS_FILE_NAME = "dark_wallpaper"
-
         private const val DEFAULT_BACKUP_FOLDER = "BackupWallpapers"
 
-        private const val KEY_BACKUP_WALLPAPER_HOME = "bk_HOME"
-        private const val KEY_BACKUP_WALLPAPER_LOCK = "bk_LOCK"
+        private val KEY_BACKUP_WALLPAPER_HOME = SettingKey<String?>(WALLPAPER_PREFIX + "bk_HOME", null)
+        private val KEY_BACKUP_WALLPAPER_LOCK = SettingKey<String?>(WALLPAPER_PREFIX + "bk_LOCK", null)
+
+        private val KEY_HIDE_SHIZUKU_WARNING = SettingKey(WALLPAPER_PREFIX + "hideShizuku", false)
+        private val KEY_LAST_SETTING_SUCCEED = SettingKey(WALLPAPER_PREFIX + "NoErr", true)
+
+        /**
+         * **Null** to use default value of the ROM
+         * */
+        private val KEY_CHECK_ROTATION = SettingKey<Boolean?>(WALLPAPER_PREFIX + "check_orientation", null)
 
-        private const val KEY_HIDE_SHIZUKU_WARNING = "hideShizuku"
-        private const val KEY_LAST_SETTING_SUCCEED = "NoErr"
+        /**
+         * Persisted [Wallpaper] json of each [WallpaperType], index by ordinal
+         * */
+        private val KEY_WALLPAPERS = WallpaperType.values().map { SettingKey<String?>(WALLPAPER_PREFIX + it.name, null) }
 
-        private const val KEY_CHECK_ROTATION = "check_orientation"
+        /**
+         * Keep a prepared plan this long after its transition time, the
+         * transition alarm may be delayed in doze
+         * */
+        private const val PLAN_EXPIRE_DELAY = 10 * 60 * 1000L
 
         @SuppressLint("StaticFieldLeak")
         @Volatile
@@ -81,12 +100,29 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
         }
     }
 
-    private inner class DefaultWallpaperSetterCallback : SetWallpaperCallback {
+    /**
+     * Ready-to-fire wallpapers of a transition, assets are **Null** for live wallpaper.
+     * */
+    private class TransitionPlan(
+        val darkMode: Boolean,
+        val expireAt: Long,
+        val home: WallpaperInfo,
+        val lock: DarkWallpaperInfo?,
+        val homeAsset: StreamableAsset?,
+        val lockAsset: StreamableAsset?
+    )
+
+    /**
+     * @param listener Optional listener notified after result handled.
+     * */
+    private inner class DefaultWallpaperSetterCallback(private val listener: SetWallpaperCallback? = null) : SetWallpaperCallback {
 
         override fun onSuccess(id: String) {
-            Timber.d("Set wallpaper succeed, new id: %s.", id)
-            mPreference.edit().putBoolean(KEY_LAST_SETTING_SUCCEED, true).apply()
+            DarkLog.d { "Set wallpaper succeed, new id: $id." }
+            DarkLog.event(DarkLog.EVENT_WALLPAPER, 1L)
+            mStore.put(KEY_LAST_SETTING_SUCCEED, true)
             viewModelCallback?.onSuccess(id)
+            listener?.onSuccess(id)
             destroy()
         }
 
@@ -94,10 +130,11 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
             if (e is CancellationException) {
                 Timber.d(e.localizedMessage)
             } else {
-                mPreference.edit().putBoolean(KEY_LAST_SETTING_SUCCEED, false).apply()
+                mStore.put(KEY_LAST_SETTING_SUCCEED, false)
                 if (viewModelCallback == null) super.onError(e)
             }
             viewModelCallback?.onError(e)
+            listener?.onError(e)
             destroy()
         }
 
@@ -107,7 +144,9 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
         }
     }
 
-    private val mPreference = mContext.getSharedPreferences(PREFS_FILE_NAME, Context.MODE_PRIVATE)
+    private val mStore = SettingsStore.getInstance(mContext)
+
+    private val mMetrics = Metrics.getInstance(mContext)
 
     private val mManager by lazy { WallpaperManager.getInstance(mContext) }
 
@@ -128,6 +167,10 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
 
     private var connection: WallpaperSetterConnection? = null
 
+    private var mPlan: TransitionPlan? = null
+
+    private var mPlanTimeout: Job? = null
+
     /**
      * Notify wallpaper apply result to ViewModel.
      * **Null** when initialized [DarkModeSettings] and no viewModel attached to it,
@@ -150,8 +193,8 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
                 clearPicked()
             }
             val end = System.currentTimeMillis()
-            Timber.d("%s DarkWallpaper, time cost: %sms.",
-                    if (persisted == null) "No" else "Load", end - start)
+            mMetrics.record(Metrics.WALLPAPER_LOAD_PREVIEW, end - start)
+            DarkLog.d { "${if (persisted == null) "No" else "Load"} DarkWallpaper, time cost: ${end - start}ms." }
             return@withContext mPicked
         }
     }
@@ -161,15 +204,15 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
 
         for (type in WallpaperType.values()) {
             yield()
-            val wallpaper: WallpaperInfo = readJsonByName(type.name) ?: break
+            val wallpaper: WallpaperInfo = readJsonByKey(KEY_WALLPAPERS[type.ordinal]) ?: break
             if (persisted == null) persisted = ArrayList(4)
             persisted.add(wallpaper)
         }
         return if (persisted == null || persisted.size != WallpaperType.values().size) null else persisted
     }
 
-    private suspend fun readJsonByName(name: String): WallpaperInfo? {
-        val json = mPreference.getString(name, null) ?: return null
+    private suspend fun readJsonByKey(key: SettingKey<String?>): WallpaperInfo? {
+        val json = mStore[key] ?: return null
         val jsonWallpaper = Wallpaper.fromJson(json)
         return if (jsonWallpaper.liveWallpaper) {
             createLiveWallpaper(jsonWallpaper)
@@ -192,60 +235,179 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
     fun onBoot(darkMode: Boolean) = onAlarm(darkMode)
 
     fun onAlarm(darkMode: Boolean) {
-        if (mPreference.getString(DARK_HOME.name, null) == null) {
-            Timber.v("Dark Wallpapers not set, abort.")
-            return
-        }
-
-        if (mPreference.getBoolean(KEY_LAST_SETTING_SUCCEED, true)) {
+        if (isTransitionNeeded()) {
             CoroutineScope(Dispatchers.Main).launch {
                 applyWallpaper(darkMode)
             }
-        } else {
+        }
+    }
+
+    /**
+     * @return  **True** if dark wallpapers set and no error occurred last time.
+     * */
+    fun isTransitionNeeded(): Boolean {
+        if (mStore[KEY_WALLPAPERS[DARK_HOME.ordinal]] == null) {
+            Timber.v("Dark Wallpapers not set, abort.")
+            return false
+        }
+
+        if (mStore[KEY_LAST_SETTING_SUCCEED].not()) {
             Timber.v("Error occurred last time, abort")
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Apply persisted wallpapers and wait for the result.
+     *
+     * @return  **True** if wallpapers applied
+     *
+     * @see     isTransitionNeeded
+     * */
+    suspend fun applyForTransition(darkMode: Boolean): Boolean = withContext(Dispatchers.Main) {
+        suspendCancellableCoroutine { continuation ->
+            val listener = object : SetWallpaperCallback {
+                override fun onSuccess(id: String) {
+                    if (continuation.isActive) continuation.resume(true)
+                }
+
+                override fun onError(e: Exception?) {
+                    if (continuation.isActive) continuation.resume(false)
+                }
+            }
+            launch {
+                if (applyWallpaper(darkMode, listener).not() && continuation.isActive) {
+                    continuation.resume(false)
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolve wallpapers of the transition ahead of time, so the alarm only
+     * needs to do the final system calls. The plan is dropped once consumed
+     * or [PLAN_EXPIRE_DELAY] after the transition.
+     *
+     * @param   transitionAt Time of the transition in epochMilli
+     *
+     * @return  **True** if plan is ready
+     * */
+    suspend fun prepareTransition(darkMode: Boolean, transitionAt: Long): Boolean = withContext(Dispatchers.Main) {
+        if (isTransitionNeeded().not()) return@withContext false
+        val start = System.currentTimeMillis()
+        if (transitionAt <= start) {
+            Timber.d("Transition already passed, drop prewarm")
+            return@withContext false
         }
+        val plan = buildPlan(darkMode, transitionAt + PLAN_EXPIRE_DELAY)
+        setPlan(plan)
+        DarkLog.d { "Transition plan ${if (plan == null) "invalid" else "ready"}, time cost: ${System.currentTimeMillis() - start}ms" }
+        return@withContext plan != null
+    }
+
+    fun isTransitionPrepared(darkMode: Boolean): Boolean {
+        val plan = mPlan ?: return false
+        return plan.darkMode == darkMode && plan.expireAt > System.currentTimeMillis()
+    }
+
+    private fun setPlan(plan: TransitionPlan?) {
+        mPlanTimeout?.cancel()
+        mPlanTimeout = null
+        mPlan = plan
+        if (plan != null) {
+            mPlanTimeout = CoroutineScope(Dispatchers.Main).launch {
+                delay(plan.expireAt - System.currentTimeMillis())
+                if (mPlan === plan) {
+                    Timber.d("Transition plan expired")
+                    mPlan = null
+                }
+                mPlanTimeout = null
+            }
+        }
+    }
+
+    /**
+     * Replace cached [mPersisted], the plan built from old wallpapers is dropped.
+     * */
+    private fun updatePersisted(persisted: Array<WallpaperInfo>?) {
+        mPersisted = persisted
+        setPlan(null)
+    }
+
+    /**
+     * @return  The prepared plan if it matches and not expired, plan is cleared anyway.
+     * */
+    private fun takePlan(darkMode: Boolean): TransitionPlan? {
+        val plan = mPlan?.takeIf { isTransitionPrepared(darkMode) }
+        setPlan(null)
+        return plan
+    }
+
+    private suspend fun buildPlan(darkMode: Boolean, expireAt: Long): TransitionPlan? {
+        val wallpapers: List<WallpaperInfo> = mPersisted?.asList() ?: readJson() ?: return null
+        mPersisted = wallpapers.toTypedArray()
+
+        val index = if (darkMode) DARK_HOME.ordinal else HOME.ordinal
+        val home = wallpapers[index]
+        if (home is LiveWallpaperInfo) return TransitionPlan(darkMode, expireAt, home, null, null, null)
+
+        val lock: DarkWallpaperInfo? = (wallpapers[index + 1]).let {
+            if (it.wallpaperId == home.wallpaperId) null else it as DarkWallpaperInfo
+        }
+        val filesExist = withContext(TaskRunner.getINSTANCE().getDispatcher(TaskRunner.Priority.PREFETCH)) {
+            getWallpaperFile(mContext, home.wallpaperId).exists() &&
+                    (lock == null || getWallpaperFile(mContext, lock.wallpaperId).exists())
+        }
+        if (filesExist.not()) {
+            Timber.e("Wallpaper file missing, home: %s, lock: %s.", home.wallpaperId, lock?.wallpaperId)
+            return null
+        }
+        val homeAsset = home.getAsset(mContext) as StreamableAsset
+        val lockAsset = lock?.let { it.getAsset(mContext) as StreamableAsset }
+        return TransitionPlan(darkMode, expireAt, home, lock, homeAsset, lockAsset)
     }
 
     /**
      * Apply persisted wallpapers to device
      *
      * @param darkMode Whether apply dark wallpaper or light wallpaper
+     * @param listener Optional listener of the result
+     *
+     * @return  **False** if no wallpaper to apply
+     *
+     * @see     prepareTransition
      * */
     @VisibleForTesting
-    suspend fun applyWallpaper(darkMode: Boolean) {
-        val wallpapers: List<WallpaperInfo>? = mPersisted?.asList() ?: readJson()
-        if (wallpapers == null) {
+    suspend fun applyWallpaper(darkMode: Boolean, listener: SetWallpaperCallback? = null): Boolean {
+        val plan = takePlan(darkMode) ?: buildPlan(darkMode, 0L)
+        if (plan == null) {
             Timber.e("Error while getting persisted wallpapers, abort.")
-            return
+            return false
         }
 
-        val index = if (darkMode) DARK_HOME.ordinal else HOME.ordinal
-        val callback = DefaultWallpaperSetterCallback()
-        val home = wallpapers[index]
+        val callback = DefaultWallpaperSetterCallback(listener)
+        val home = plan.home
 
         if (home is LiveWallpaperInfo) {
             applyLiveWallpaper(home, callback)
         } else {
-            val lock: DarkWallpaperInfo? = (wallpapers[index + 1]).let {
-                if (it.wallpaperId == home.wallpaperId) null else it as DarkWallpaperInfo
-            }
-
-            Timber.d("Applying Wallpaper, home:%s, lock:%s.", home.wallpaperId, lock?.wallpaperId)
+            val lock = plan.lock
+            DarkLog.d { "Applying Wallpaper, home:${home.wallpaperId}, lock:${lock?.wallpaperId}." }
             if (shouldCheckOrientation() && ViewUtil.getRotation(mContext) != Surface.ROTATION_0) {
                 Timber.d("Illegal orientation, starting listener service")
                 connection = WallpaperSetterConnection(mContext, Pair(home, lock), callback, mSetter)
                 RotationListenerService.startForegroundService(mContext, connection!!)
             } else {
-                val homeAsset = home.getAsset(mContext) as StreamableAsset
-                val lockAsset = lock?.let { it.getAsset(mContext) as StreamableAsset }
-                mSetter.setDarkWallpapers(homeAsset, lockAsset, callback)
+                mSetter.setDarkWallpapers(plan.homeAsset!!, plan.lockAsset, callback)
             }
         }
+        return true
     }
 
     private fun applyLiveWallpaper(wallpaper: LiveWallpaperInfo, callback: SetWallpaperCallback) {
-        Timber.d("Applying LiveWallpaper id: %s.", wallpaper.wallpaperId)
-        when (ShizukuApi.checkShizukuCompat(mContext)) {
+        DarkLog.d { "Applying LiveWallpaper id: ${wallpaper.wallpaperId}." }
+        when (ShizukuApi.getStatus(mContext)) {
 
             ShizukuStatus.AVAILABLE -> mSetter.setCurrentLiveWallpaper(wallpaper, callback)
 
@@ -300,7 +462,7 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
 
     /**
      * Persist all picked wallpapers in [mPicked] to storage, and map them
-     * with [WallpaperType.name]:[Wallpaper] structure in SharedPreferences.
+     * with [WallpaperType.name]:[Wallpaper] structure in [SettingsStore].
      *
      * @see PersistableWallpaper.persist
      * */
@@ -352,6 +514,7 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
             throw e
         } finally {
             if (exception != null) {
+                if (exception !is CancellationException) mMetrics.increment(Metrics.WALLPAPER_PERSIST_FAILED)
                 Timber.d("Clean up while error happened")
                 for (picked in mPicked) {
                     if (picked is PersistableWallpaper && picked.isNew(mContext).not()) {
@@ -373,26 +536,25 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
                 // check exists, home & lock screen usually using same wallpaper
                 if (file.exists()) {
                     val result = file.delete()
-                    Timber.v(
-                        "Delete old wallpaper: Type: %s, Id: %s, Succeed: %s.",
-                        type.name,
-                        old.wallpaperId,
-                        result
-                    )
+                    DarkLog.v { "Delete old wallpaper: Type: ${type.name}, Id: ${old.wallpaperId}, Succeed: $result." }
                 }
             }
         }
 
-        val editor = mPreference.edit()
-        for (type in WallpaperType.values()) {
-            editor.putString(type.name, jsonList[type.ordinal].toJsonString())
+        mStore.edit {
+            for (type in WallpaperType.values()) {
+                put(KEY_WALLPAPERS[type.ordinal], jsonList[type.ordinal].toJsonString())
+            }
+            // reset last saving flag
+            remove(KEY_LAST_SETTING_SUCCEED)
         }
-        // reset last saving flag
-        editor.remove(KEY_LAST_SETTING_SUCCEED).apply()
 
-        mPersisted = newWallpaperArr.toTypedArray()
-        clearPicked()
+        withContext(Dispatchers.Main) {
+            updatePersisted(newWallpaperArr.toTypedArray())
+            clearPicked()
+        }
         val end = System.currentTimeMillis()
+        mMetrics.record(Metrics.WALLPAPER_PERSIST, end - start)
         Timber.i("Persistence completed! time cost: %sms", end - start)
         return@withContext mPicked
     }
@@ -411,10 +573,10 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
         val sysWallpapers = loadWallpaperFromSystem()
         val home = sysWallpapers.first
         if (home is LiveWallpaperInfo) {
-            mPreference.edit()
-                    .putString(KEY_BACKUP_WALLPAPER_HOME, Wallpaper.fromLiveWallpaper(home).toJsonString())
-                    .remove(KEY_BACKUP_WALLPAPER_LOCK)
-                    .apply()
+            mStore.edit {
+                put(KEY_BACKUP_WALLPAPER_HOME, Wallpaper.fromLiveWallpaper(home).toJsonString())
+                remove(KEY_BACKUP_WALLPAPER_LOCK)
+            }
         } else {
             val backupDir = mContext.getFileStreamPath(DEFAULT_BACKUP_FOLDER)
             if (backupDir.exists().not() && backupDir.mkdir().not()) {
@@ -436,14 +598,16 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
                 if (succeed.not()) backupDir.deleteRecursively()
             }
 
-            val editor = mPreference.edit().putString(KEY_BACKUP_WALLPAPER_HOME, Wallpaper.fromBitmap(home.wallpaperId).toJsonString())
-            if (lock != home) {
-                editor.putString(KEY_BACKUP_WALLPAPER_LOCK, Wallpaper.fromBitmap(lock.wallpaperId).toJsonString())
-            } else {
-                editor.remove(KEY_BACKUP_WALLPAPER_LOCK)
+            mStore.edit {
+                put(KEY_BACKUP_WALLPAPER_HOME, Wallpaper.fromBitmap(home.wallpaperId).toJsonString())
+                if (lock != home) {
+                    put(KEY_BACKUP_WALLPAPER_LOCK, Wallpaper.fromBitmap(lock.wallpaperId).toJsonString())
+                } else {
+                    remove(KEY_BACKUP_WALLPAPER_LOCK)
+                }
             }
-            editor.apply()
             val end = System.currentTimeMillis()
+            mMetrics.record(Metrics.WALLPAPER_BACKUP, end - start)
             Timber.i("Backup completed! time cost: %sms", end - start)
         }
     }
@@ -456,15 +620,15 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
      * @see cleanRestoreDir
      * */
     private suspend fun restoreOriginalWallpaper(callback: SetWallpaperCallback) {
-        val home: WallpaperInfo? = readJsonByName(KEY_BACKUP_WALLPAPER_HOME)
+        val home: WallpaperInfo? = readJsonByKey(KEY_BACKUP_WALLPAPER_HOME)
         if (home == null) {
             callback.onError(null)
             return
         }
-        val lock: WallpaperInfo? = readJsonByName(KEY_BACKUP_WALLPAPER_LOCK)
+        val lock: WallpaperInfo? = readJsonByKey(KEY_BACKUP_WALLPAPER_LOCK)
 
         if (home is LiveWallpaperInfo) {
-            val status = ShizukuApi.checkShizukuCompat(mContext)
+            val status = ShizukuApi.getStatus(mContext)
             if (status == ShizukuStatus.AVAILABLE) {
                 applyLiveWallpaper(home, callback)
             } else {
@@ -490,8 +654,14 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
     fun clearPicked() {
         if (mPicked.isNotEmpty()) mPicked.clear()
 
-        if (isDarWallpaperPersisted()) {
-            mPicked.addAll(mPersisted!!)
+        val persisted = mPersisted
+        val stored = mStore[KEY_WALLPAPERS[DARK_HOME.ordinal]] != null
+        if (persisted != null && !stored) {
+            // deleted from store, drop the stale copy
+            updatePersisted(null)
+        }
+        if (persisted != null && stored) {
+            mPicked.addAll(persisted)
         } else {
             val sysWallpaper = loadWallpaperFromSystem()
             mPicked.add(sysWallpaper.first)
@@ -502,17 +672,16 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
     }
 
     suspend fun deleteAll(callback: SetWallpaperCallback) = withContext(Dispatchers.IO) {
-        val editor = mPreference.edit()
-        WallpaperType.values().forEach { type ->
-            editor.remove(type.name)
+        mStore.edit {
+            KEY_WALLPAPERS.forEach { remove(it) }
+            remove(KEY_LAST_SETTING_SUCCEED)
         }
-        editor.remove(KEY_LAST_SETTING_SUCCEED).apply()
         try {
             getWallpaperFile(mContext, "null").parentFile?.deleteRecursively()
         } catch (e: Exception) {
             Timber.w(e)
         }
-        mPersisted = null
+        withContext(Dispatchers.Main) { updatePersisted(null) }
 
         restoreOriginalWallpaper(object : SetWallpaperCallback {
             override fun onSuccess(id: String) {
@@ -528,7 +697,10 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
     }
 
     private fun cleanRestoreDir() {
-        mPreference.edit().remove(KEY_BACKUP_WALLPAPER_HOME).remove(KEY_BACKUP_WALLPAPER_LOCK).apply()
+        mStore.edit {
+            remove(KEY_BACKUP_WALLPAPER_HOME)
+            remove(KEY_BACKUP_WALLPAPER_LOCK)
+        }
         clearPicked()
         if (mContext.getFileStreamPath(DEFAULT_BACKUP_FOLDER).deleteRecursively().not()) {
             Timber.w("Unable to delete backup folder")
@@ -624,7 +796,7 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
 
     fun isDarWallpaperPersisted(): Boolean  {
         // array might not initialized, look up in preference
-        return mPersisted != null || mPreference.getString(DARK_HOME.name, null) != null
+        return mPersisted != null || mStore[KEY_WALLPAPERS[DARK_HOME.ordinal]] != null
     }
 
     /**
@@ -632,7 +804,7 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
      * */
     fun getPickedWallpaperList(): List<WallpaperInfo> = mPicked
 
-    fun isShizukuDismissed(): Boolean = mPreference.getBoolean(KEY_HIDE_SHIZUKU_WARNING, false)
+    fun isShizukuDismissed(): Boolean = mStore[KEY_HIDE_SHIZUKU_WARNING]
 
     /**
      * Check screen orientation before setting wallpaper in the background.
@@ -642,15 +814,15 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
      * @see RotationListenerService
      * */
     fun shouldCheckOrientation(): Boolean {
-        return mPreference.getBoolean(KEY_CHECK_ROTATION, AutoDarkApplication.isLineageOS())
+        return mStore[KEY_CHECK_ROTATION] ?: AutoDarkApplication.isLineageOS()
     }
 
     fun setCheckOrientation(check: Boolean) {
-        mPreference.edit().putBoolean(KEY_CHECK_ROTATION, check).apply()
+        mStore.put(KEY_CHECK_ROTATION, check)
     }
 
     fun dismissShizuku() {
-        mPreference.edit().putBoolean(KEY_HIDE_SHIZUKU_WARNING, true).apply()
+        mStore.put(KEY_HIDE_SHIZUKU_WARNING, true)
     }
 
     fun setWallpaperCallback(viewModel: DarkWallpaperPickerViewModel?) {
@@ -664,6 +836,7 @@ class DarkWallpaperHelper private constructor(private val mContext: Context) {
         viewModelCallback = null
         connection = null
         mPersisted = null
+        setPlan(null)
         mLiveWallpapers?.clear()
         mLiveWallpapers = null
         mPicked.clear()
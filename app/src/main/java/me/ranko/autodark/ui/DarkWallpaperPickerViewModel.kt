@@ -10,7 +10,6 @@ import com.android.wallpaper.asset.Asset
 import com.android.wallpaper.model.LiveWallpaperInfo
 import com.android.wallpaper.model.WallpaperInfo
 import com.android.wallpaper.module.WallpaperPersister.*
-import com.android.wallpaper.util.TaskRunner
 import kotlinx.coroutines.*
 import me.ranko.autodark.R
 import me.ranko.autodark.core.DarkModeSettings
@@ -377,7 +376,6 @@ class DarkWallpaperPickerViewModel(application: Application) : ShizukuViewModel(
         } else {
             mHelper.destroy()
         }
-        TaskRunner.shutdown()
         mApp.cacheDir.listFiles()?.forEach {
             //skip glide live wallpaper cache
             if (it.isFile) it.delete()
@@ -0,0 +1,167 @@
+package me.ranko.autodark.ui
+
+import android.content.Intent
+import android.os.Bundle
+import androidx.annotation.IdRes
+import androidx.annotation.StringRes
+import androidx.fragment.app.FragmentManager
+import androidx.lifecycle.lifecycleScope
+import androidx.preference.Preference
+import androidx.preference.PreferenceCategory
+import androidx.preference.PreferenceFragmentCompat
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import me.ranko.autodark.R
+import me.ranko.autodark.core.DarkLog
+import me.ranko.autodark.core.Metrics
+import me.ranko.autodark.core.StartupTracer
+import me.ranko.autodark.core.TransitionLog
+
+/**
+ * Shows lateness of recent scheduled transitions per stage, cold start sections
+ * and app metrics
+ *
+ * @see TransitionLog.getSummaries
+ * @see StartupTracer
+ * @see Metrics
+ * */
+class DiagnosticsFragment : PreferenceFragmentCompat() {
+
+    companion object {
+        private const val PREFERENCE_KEY_EXPORT = "pref_export"
+        private const val PREFERENCE_KEY_EXPORT_METRICS = "pref_export_metrics"
+
+        fun replace(manager: FragmentManager, @IdRes container: Int, name: String?) {
+            manager.beginTransaction()
+                .setCustomAnimations(
+                    android.R.anim.fade_in,
+                    android.R.anim.fade_out,
+                    android.R.anim.fade_in,
+                    android.R.anim.fade_out
+                ).replace(container, DiagnosticsFragment())
+                .addToBackStack(name)
+                .commit()
+        }
+    }
+
+    private lateinit var stageCategory: PreferenceCategory
+
+    override fun onCreatePreferences(savedInstanceState: Bundle?, rootKey: String?) {
+        val context = preferenceManager.context
+        val screen = preferenceManager.createPreferenceScreen(context)
+
+        stageCategory = PreferenceCategory(context)
+        stageCategory.setTitle(R.string.diagnostics_category_lateness)
+        screen.addPreference(stageCategory)
+
+        val startupCategory = PreferenceCategory(context)
+        startupCategory.setTitle(R.string.diagnostics_category_startup)
+        screen.addPreference(startupCategory)
+        for (section in StartupTracer.getSections()) {
+            val preference = Preference(context)
+            preference.title = section.name
+            preference.summary = getString(R.string.diagnostics_startup_summary, section.costMillis, section.start)
+            preference.isSelectable = false
+            startupCategory.addPreference(preference)
+        }
+
+        val metricsCategory = PreferenceCategory(context)
+        metricsCategory.setTitle(R.string.diagnostics_category_metrics)
+        screen.addPreference(metricsCategory)
+
+        val export = Preference(context)
+        export.key = PREFERENCE_KEY_EXPORT
+        export.setTitle(R.string.diagnostics_export_title)
+        export.setSummary(R.string.diagnostics_export_summary)
+        screen.addPreference(export)
+
+        val exportMetrics = Preference(context)
+        exportMetrics.key = PREFERENCE_KEY_EXPORT_METRICS
+        exportMetrics.setTitle(R.string.diagnostics_export_metrics_title)
+        exportMetrics.setSummary(R.string.diagnostics_export_metrics_summary)
+        screen.addPreference(exportMetrics)
+
+        preferenceScreen = screen
+        loadSummaries()
+        loadMetrics(metricsCategory)
+    }
+
+    /**
+     * Load metrics file on IO thread, then fill the category
+     * */
+    private fun loadMetrics(category: PreferenceCategory) = lifecycleScope.launch(Dispatchers.Main) {
+        val appContext = requireContext().applicationContext
+        val metrics = withContext(Dispatchers.IO) {
+            Metrics.getInstance(appContext).apply { awaitLoaded() }
+        }
+        val histograms = metrics.getHistograms().toSortedMap()
+        val counters = metrics.getCounters().toSortedMap()
+        val gauges = metrics.getGauges().toSortedMap()
+
+        val context = preferenceManager.context
+        val addItem = { title: String, summary: String ->
+            val preference = Preference(context)
+            preference.title = title
+            preference.summary = summary
+            preference.isSelectable = false
+            category.addPreference(preference)
+        }
+        histograms.forEach { (name, h) ->
+            addItem(name, getString(R.string.diagnostics_histogram_summary, h[1], h[2], h[3], h[0]))
+        }
+        counters.forEach { (name, value) -> addItem(name, value.toString()) }
+        gauges.forEach { (name, value) -> addItem(name, value.toString()) }
+    }
+
+    private fun loadSummaries() = lifecycleScope.launch(Dispatchers.Main) {
+        val summaries = withContext(Dispatchers.IO) { TransitionLog.getInstance(requireContext()).getSummaries() }
+        val context = preferenceManager.context
+        if (summaries.isEmpty()) {
+            val empty = Preference(context)
+            empty.setTitle(R.string.diagnostics_empty)
+            empty.isSelectable = false
+            stageCategory.addPreference(empty)
+            return@launch
+        }
+
+        for (summary in summaries) {
+            val preference = Preference(context)
+            preference.title = summary.stage
+            preference.summary = getString(R.string.diagnostics_stage_summary, summary.p50, summary.p95, summary.count)
+            preference.isSelectable = false
+            stageCategory.addPreference(preference)
+        }
+    }
+
+    override fun onPreferenceTreeClick(preference: Preference): Boolean {
+        if (preference.key == PREFERENCE_KEY_EXPORT) {
+            lifecycleScope.launch(Dispatchers.Main) {
+                val log = withContext(Dispatchers.IO) {
+                    TransitionLog.getInstance(requireContext()).export() + "\n" + DarkLog.dump()
+                }
+                share(log, R.string.diagnostics_export_title)
+            }
+            return true
+        } else if (preference.key == PREFERENCE_KEY_EXPORT_METRICS) {
+            lifecycleScope.launch(Dispatchers.Main) {
+                val json = withContext(Dispatchers.IO) {
+                    Metrics.getInstance(requireContext()).run {
+                        awaitLoaded()
+                        toJson().toString(2)
+                    }
+                }
+                share(json, R.string.diagnostics_export_metrics_title)
+            }
+            return true
+        }
+        return super.onPreferenceTreeClick(preference)
+    }
+
+    private fun share(text: String, @StringRes title: Int) {
+        val intent = Intent(Intent.ACTION_SEND)
+        intent.type = "text/plain"
+        intent.putExtra(Intent.EXTRA_TEXT, text)
+        startActivity(Intent.createChooser(intent, getString(title)))
+    }
+}
@@ -19,6 +19,7 @@ import com.google.android.material.bottomsheet.BottomSheetDialog
 import com.google.android.material.snackbar.Snackbar
 import me.ranko.autodark.AutoDarkApplication
 import me.ranko.autodark.R
+import me.ranko.autodark.core.StartupTracer
 import me.ranko.autodark.databinding.ActivityMainBinding
 
 class MainActivity : BaseListActivity(), FragmentManager.OnBackStackChangedListener {
@@ -56,11 +57,14 @@ class MainActivity : BaseListActivity(), FragmentManager.OnBackStackChangedListe
     }
 
     override fun onCreate(savedInstanceState: Bundle?) {
-        binding = DataBindingUtil.setContentView(this, R.layout.activity_main)
+        binding = StartupTracer.trace("MainActivity.inflate") {
+            DataBindingUtil.setContentView(this, R.layout.activity_main)
+        }
         binding.lifecycleOwner = this
         val provider = ViewModelProvider(this, MainViewModel.Companion.Factory(application))
-        viewModel = provider[MainViewModel::class.java]
+        viewModel = StartupTracer.trace("MainViewModel.init") { provider[MainViewModel::class.java] }
         binding.viewModel = viewModel
+        StartupTracer.onFirstFrame(binding.root)
         lifecycle.addObserver(viewModel)
 
         if (!AutoDarkApplication.checkSecurePermission(this)) {
@@ -99,8 +103,10 @@ class MainActivity : BaseListActivity(), FragmentManager.OnBackStackChangedListe
         super.onResumeFragments()
         // check on resume
         // so user won't ignore the receiver problem
-        restrictedDialog = viewModel.getRestrictedDialog(this)
-        restrictedDialog?.show()
+        lifecycleScope.launchWhenResumed {
+            restrictedDialog = viewModel.getRestrictedDialog(this@MainActivity)
+            restrictedDialog?.show()
+        }
     }
 
     private fun showSummary(summary: MainViewModel.Companion.Summary) {
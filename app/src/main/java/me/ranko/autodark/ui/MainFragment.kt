@@ -17,6 +17,7 @@ import androidx.databinding.ObservableField
 import androidx.fragment.app.FragmentActivity
 import androidx.lifecycle.ViewModelProvider
 import androidx.lifecycle.lifecycleScope
+import androidx.preference.MultiSelectListPreference
 import androidx.preference.Preference
 import androidx.preference.PreferenceCategory
 import androidx.preference.PreferenceFragmentCompat
@@ -30,9 +31,15 @@ import me.ranko.autodark.Constant
 import me.ranko.autodark.R
 import me.ranko.autodark.core.DarkPreferenceSupplier
 import me.ranko.autodark.core.DarkPreferenceType
+import me.ranko.autodark.core.SettingsStore
+import me.ranko.autodark.core.StartupTracer
 import me.ranko.autodark.receivers.BlockListReceiver
+import me.ranko.autodark.services.AmbientLightService
 import me.ranko.autodark.ui.Preference.DarkDisplayPreference
 import me.ranko.autodark.ui.Preference.DarkSwitchPreference
+import java.time.DayOfWeek
+import java.time.format.TextStyle
+import java.util.*
 
 class MainFragment : PreferenceFragmentCompat(), DarkPreferenceSupplier {
 
@@ -59,6 +66,8 @@ class MainFragment : PreferenceFragmentCompat(), DarkPreferenceSupplier {
     private lateinit var startPreference: DarkDisplayPreference
     private lateinit var endPreference: DarkDisplayPreference
     private lateinit var autoPreference: SwitchPreference
+    private lateinit var daysPreference: MultiSelectListPreference
+    private lateinit var skipTodayPreference: SwitchPreference
 
     private lateinit var forceDarkPreference: DarkSwitchPreference
     private var xposedPreference: Preference? = null
@@ -74,11 +83,15 @@ class MainFragment : PreferenceFragmentCompat(), DarkPreferenceSupplier {
         val PERMISSIONS_LOCATION = arrayOf(Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION)
 
         const val DARK_PREFERENCE_AUTO = "dark_mode_auto"
+        const val DARK_PREFERENCE_DAYS = "dark_mode_days"
+        const val DARK_PREFERENCE_SKIP_TODAY = "dark_mode_skip_today"
         const val DARK_PREFERENCE_START = "dark_mode_time_start"
         const val DARK_PREFERENCE_END = "dark_mode_time_end"
         const val DARK_PREFERENCE_FORCE_ROOT = "dark_mode_force"
         const val DARK_PREFERENCE_XPOSED = "dark_mode_xposed"
         const val DARK_PREFERENCE_WALLPAPER = "dark_mode_wallpaper"
+        const val DARK_PREFERENCE_AMBIENT = "dark_mode_ambient"
+        const val DARK_PREFERENCE_DIAGNOSTICS = "dark_mode_diagnostics"
 
         private const val XPOSED_ALIVE_TIME_OUT = 500L
     }
@@ -119,14 +132,19 @@ class MainFragment : PreferenceFragmentCompat(), DarkPreferenceSupplier {
     }
 
     override fun onCreatePreferences(savedInstanceState: Bundle?, rootKey: String?) {
-        addPreferencesFromResource(R.xml.preferences_main)
+        preferenceManager.preferenceDataStore = SettingsStore.getInstance(requireContext()).asPreferenceDataStore()
+        StartupTracer.trace("MainFragment.inflate") { addPreferencesFromResource(R.xml.preferences_main) }
         val darkTimeCategory = findPreference<PreferenceCategory>(getString(R.string.pref_key_time))!!
         startPreference = darkTimeCategory.findPreference(DARK_PREFERENCE_START)!!
         endPreference = darkTimeCategory.findPreference(DARK_PREFERENCE_END)!!
         autoPreference = darkTimeCategory.findPreference(DARK_PREFERENCE_AUTO)!!
+        daysPreference = darkTimeCategory.findPreference(DARK_PREFERENCE_DAYS)!!
+        skipTodayPreference = darkTimeCategory.findPreference(DARK_PREFERENCE_SKIP_TODAY)!!
+        initSchedulePreferences()
 
         forceDarkPreference = findPreference(DARK_PREFERENCE_FORCE_ROOT)!!
         xposedPreference = findPreference(DARK_PREFERENCE_XPOSED)!!
+        findPreference<Preference>(DARK_PREFERENCE_AMBIENT)!!.isEnabled = AmbientLightService.isAvailable(requireContext())
 
         if (isXposed) {
             initXposedPreference(true)
@@ -141,6 +159,30 @@ class MainFragment : PreferenceFragmentCompat(), DarkPreferenceSupplier {
         }
     }
 
+    /**
+     * Fill week days and load user schedule off main thread
+     *
+     * @see     DarkModeSettings.getUserSchedule
+     * */
+    private fun initSchedulePreferences() {
+        val days = DayOfWeek.values()
+        daysPreference.entries = Array(days.size) { days[it].getDisplayName(TextStyle.FULL, Locale.getDefault()) }
+        daysPreference.entryValues = Array(days.size) { days[it].value.toString() }
+        daysPreference.setOnPreferenceChangeListener { _, newValue ->
+            @Suppress("UNCHECKED_CAST")
+            val values = newValue as Set<String>
+            if (values.isEmpty()) return@setOnPreferenceChangeListener false
+            viewModel.onScheduleDaysChanged(values.mapTo(EnumSet.noneOf(DayOfWeek::class.java)) { DayOfWeek.of(it.toInt()) })
+            true
+        }
+
+        lifecycleScope.launch(Dispatchers.Main) {
+            val darkSettings = viewModel.darkSettings
+            daysPreference.values = darkSettings.getScheduleDays().mapTo(HashSet()) { it.value.toString() }
+            skipTodayPreference.isChecked = darkSettings.isTodaySkipped()
+        }
+    }
+
     private fun initXposedPreference(isXposed: Boolean) {
         xposedPreference!!.isEnabled = isXposed
         forceDarkPreference.isEnabled = isXposed.not()
@@ -203,6 +245,8 @@ class MainFragment : PreferenceFragmentCompat(), DarkPreferenceSupplier {
 
             DARK_PREFERENCE_AUTO -> onAutoPreferenceClick()
 
+            DARK_PREFERENCE_SKIP_TODAY -> viewModel.onSkipTodayClicked((preference as SwitchPreference).isChecked)
+
             DARK_PREFERENCE_XPOSED -> {
                 val activity = requireActivity() as MainActivity
                 val appBarView = activity.findViewById<View>(R.id.appbar)
@@ -214,6 +258,10 @@ class MainFragment : PreferenceFragmentCompat(), DarkPreferenceSupplier {
                 activity.startActivity(intent, options.toBundle())
             }
 
+            DARK_PREFERENCE_AMBIENT -> viewModel.darkSettings.setAmbientTrigger((preference as SwitchPreference).isChecked)
+
+            DARK_PREFERENCE_DIAGNOSTICS -> DiagnosticsFragment.replace(parentFragmentManager, R.id.container, "diagnostics")
+
             aboutPreference.key -> AboutFragment.replace(parentFragmentManager, R.id.container, "about")
 
             else -> return super.onPreferenceTreeClick(preference)
@@ -237,6 +285,7 @@ class MainFragment : PreferenceFragmentCompat(), DarkPreferenceSupplier {
         super.onDestroyView()
         viewModel.switch.removeOnPropertyChangedCallback(switchObserver)
         autoPreference.onPreferenceClickListener = null
+        daysPreference.onPreferenceChangeListener = null
     }
 
     override fun onDestroy() {
@@ -12,12 +12,12 @@ import androidx.annotation.StringRes
 import androidx.appcompat.app.AppCompatActivity
 import androidx.databinding.ObservableField
 import androidx.lifecycle.*
-import androidx.preference.PreferenceManager
 import androidx.preference.SwitchPreference
 import com.android.wallpaper.util.ScreenSizeCalculator
 import com.google.android.material.bottomsheet.BottomSheetBehavior
 import com.google.android.material.bottomsheet.BottomSheetDialog
 import kotlinx.coroutines.*
+import kotlinx.coroutines.flow.collect
 import me.ranko.autodark.AutoDarkApplication
 import me.ranko.autodark.AutoDarkApplication.isComponentEnabled
 import me.ranko.autodark.Constant.*
@@ -27,8 +27,11 @@ import me.ranko.autodark.Utils.DarkLocationUtil
 import me.ranko.autodark.Utils.DarkTimeUtil
 import me.ranko.autodark.Utils.ViewUtil
 import me.ranko.autodark.core.DarkModeSettings
+import me.ranko.autodark.core.Settings
+import me.ranko.autodark.core.SettingsStore
 import me.ranko.autodark.databinding.DialogBottomResstrictedBinding
 import timber.log.Timber
+import java.time.DayOfWeek
 
 enum class DarkSwitch(val id: Int) {
     ON(1),
@@ -42,7 +45,7 @@ class MainViewModel(application: Application) : AndroidViewModel(application), D
 
     val darkSettings = DarkModeSettings.getInstance(application)
 
-    private var sp = PreferenceManager.getDefaultSharedPreferences(application)
+    private val mStore = SettingsStore.getInstance(application)
 
     /**
      * Control the main switch on/off
@@ -51,7 +54,12 @@ class MainViewModel(application: Application) : AndroidViewModel(application), D
      * @see     triggerMasterSwitch
      * @see     DarkSwitch
      * */
-    val switch = ObservableField(getSwitchInSP())
+    val switch = ObservableField(DarkSwitch.OFF)
+
+    /**
+     * Latest stored master switch, kept by observing the store
+     * */
+    private var isSwitchOn = false
 
     private val _autoMode = MutableLiveData(darkSettings.isAutoMode())
     /**
@@ -79,8 +87,10 @@ class MainViewModel(application: Application) : AndroidViewModel(application), D
     private val summaryAction by lazy(LazyThreadSafetyMode.NONE) {
         View.OnClickListener {
             val isDarkMode = darkSettings.isDarkMode() ?: return@OnClickListener
-            if (!darkSettings.setDarkMode(isDarkMode.not()))
-                summaryText.set(newSummary(R.string.dark_mode_permission_denied))
+            viewModelScope.launch(Dispatchers.Main) {
+                if (!darkSettings.setDarkMode(isDarkMode.not()))
+                    summaryText.set(newSummary(R.string.dark_mode_permission_denied))
+            }
         }
     }
 
@@ -91,10 +101,22 @@ class MainViewModel(application: Application) : AndroidViewModel(application), D
     val requirePermission: LiveData<Boolean>
         get() = _requirePermission
 
-    val isRestricted:Boolean by lazy(LazyThreadSafetyMode.NONE) {!isComponentEnabled(application, DarkModeAlarmReceiver::class.java) }
+    /**
+     * Package manager query, evaluated off main thread in [getRestrictedDialog]
+     * */
+    val isRestricted:Boolean by lazy {!isComponentEnabled(application, DarkModeAlarmReceiver::class.java) }
 
     private var isDialogShowed = false
 
+    init {
+        viewModelScope.launch(Dispatchers.Main) {
+            mStore.observe(Settings.MASTER_SWITCH).collect { on ->
+                isSwitchOn = on
+                if (switch.get() != DarkSwitch.SHARE) switch.set(toDarkSwitch(on))
+            }
+        }
+    }
+
     /**
      * Called when fab on main activity has been clicked
      * */
@@ -195,7 +217,7 @@ class MainViewModel(application: Application) : AndroidViewModel(application), D
         if (isShowing) {
             switch.set(DarkSwitch.SHARE)
         } else {
-            switch.set(getSwitchInSP())
+            switch.set(toDarkSwitch(isSwitchOn))
         }
     }
 
@@ -228,6 +250,29 @@ class MainViewModel(application: Application) : AndroidViewModel(application), D
         _autoMode.value = darkSettings.isAutoMode()
     }
 
+    /**
+     * Called when user selected new active week days
+     *
+     * @see     DarkModeSettings.setScheduleDays
+     * */
+    fun onScheduleDaysChanged(days: Set<DayOfWeek>) = viewModelScope.launch(Dispatchers.Main) {
+        onScheduleChanged(darkSettings.setScheduleDays(days))
+    }
+
+    /**
+     * @see     DarkModeSettings.setTodaySkipped
+     * */
+    fun onSkipTodayClicked(skipped: Boolean) = viewModelScope.launch(Dispatchers.Main) {
+        onScheduleChanged(darkSettings.setTodaySkipped(skipped))
+    }
+
+    private fun onScheduleChanged(darkModeChanged: Boolean) {
+        if (darkModeChanged) {
+            DarkWallpaperHelper.getInstance(mContext, null).onAlarm(darkSettings.isDarkMode() == true)
+            delayedSummary = makeTriggeredSummary()
+        }
+    }
+
     fun onRequirePermissionConsumed() {
         _requirePermission.value = false
     }
@@ -244,7 +289,7 @@ class MainViewModel(application: Application) : AndroidViewModel(application), D
 
     fun onSecurePermissionResult() {
         if (AutoDarkApplication.checkSecurePermission(getApplication())) {
-            darkSettings.overrideIfNeeded()
+            viewModelScope.launch(Dispatchers.Main) { darkSettings.overrideIfNeeded() }
             showPermissionSummary(true)
         } else {
             showPermissionSummary(false)
@@ -278,8 +323,9 @@ class MainViewModel(application: Application) : AndroidViewModel(application), D
      * Notify user if this happened and disable __do not show again__ button.
      *
      * */
-    fun getRestrictedDialog(activity: AppCompatActivity): BottomSheetDialog? {
-        val silence = sp.getBoolean(SP_RESTRICTED_SILENCE, isDialogShowed)
+    suspend fun getRestrictedDialog(activity: AppCompatActivity): BottomSheetDialog? {
+        val isRestricted = withContext(Dispatchers.IO) { isRestricted }
+        val silence = mStore[Settings.RESTRICTED_SILENCE] ?: isDialogShowed
         if (silence && !isRestricted) return null
 
         // show only once on normal case
@@ -305,7 +351,7 @@ class MainViewModel(application: Application) : AndroidViewModel(application), D
             }
 
             binding.btnShutup.setOnClickListener {
-                sp.edit().putBoolean(SP_RESTRICTED_SILENCE, true).apply()
+                mStore.put(Settings.RESTRICTED_SILENCE, true)
                 dismiss()
             }
 
@@ -317,12 +363,10 @@ class MainViewModel(application: Application) : AndroidViewModel(application), D
         }
     }
 
-    private fun getSwitchInSP():DarkSwitch {
-        return if (sp.getBoolean(SP_KEY_MASTER_SWITCH, false)) DarkSwitch.ON else DarkSwitch.OFF
-    }
+    private fun toDarkSwitch(on: Boolean): DarkSwitch = if (on) DarkSwitch.ON else DarkSwitch.OFF
 
     private fun saveSwitch(status: Boolean) {
-        sp.edit().putBoolean(SP_KEY_MASTER_SWITCH, status).apply()
+        mStore.put(Settings.MASTER_SWITCH, status)
     }
 
     companion object {
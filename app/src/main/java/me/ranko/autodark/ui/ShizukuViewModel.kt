@@ -9,6 +9,7 @@ import androidx.activity.result.ActivityResultLauncher
 import androidx.activity.result.contract.ActivityResultContracts.RequestPermission
 import androidx.fragment.app.Fragment
 import androidx.lifecycle.*
+import kotlinx.coroutines.launch
 import me.ranko.autodark.core.ShizukuApi
 import me.ranko.autodark.core.ShizukuApi.REQUEST_CODE_SHIZUKU_PERMISSION
 import me.ranko.autodark.core.ShizukuStatus
@@ -25,7 +26,7 @@ import timber.log.Timber
 open class ShizukuViewModel(application: Application) : AndroidViewModel(application),
     DefaultLifecycleObserver, Shizuku.OnRequestPermissionResultListener {
 
-    private val _status = MutableLiveData(ShizukuApi.checkShizukuCompat(application))
+    private val _status = MutableLiveData(ShizukuApi.getStatus(application))
     val status: LiveData<ShizukuStatus>
         get() = _status
 
@@ -37,8 +38,6 @@ open class ShizukuViewModel(application: Application) : AndroidViewModel(applica
     val shizukuRequesting: LiveData<Boolean?>
         get() = _shizukuRequesting
 
-    private var mPermissionListener: Shizuku.OnRequestPermissionResultListener? = null
-
     private val permissionPre11Callback by lazy { ActivityResultCallback<Boolean> { result ->
         if (result) {
             onRequestPermissionResult(REQUEST_CODE_SHIZUKU_PERMISSION, PERMISSION_GRANTED)
@@ -49,21 +48,19 @@ open class ShizukuViewModel(application: Application) : AndroidViewModel(applica
 
     private lateinit var permissionPre11Launcher: ActivityResultLauncher<String>
 
-    private val mBinderReceiver = Shizuku.OnBinderReceivedListener {
-        _status.value = ShizukuApi.checkShizukuCompat(application, true)
-        if (_status.value == ShizukuStatus.UNAUTHORIZED && mPermissionListener == null) {
-            mPermissionListener = this
-            Shizuku.addRequestPermissionResultListener(mPermissionListener!!)
+    init {
+        // status listeners are managed by ShizukuApi
+        viewModelScope.launch {
+            ShizukuApi.observeStatus(application).collect { status ->
+                if (status != null) _status.value = status
+            }
         }
     }
 
-    private val mBinderDeadReceiver = Shizuku.OnBinderDeadListener {
-        Timber.i("Shizuku Binder dead ${hashCode()}.")
-        _status.value = ShizukuStatus.DEAD
-    }
-
     override fun onRequestPermissionResult(requestCode: Int, grantResult: Int) {
         if (requestCode != REQUEST_CODE_SHIZUKU_PERMISSION) return
+        Timber.d("Permission result: %s", grantResult)
+        if (ShizukuApi.isPre11()) ShizukuApi.notifyPermissionResult(grantResult)
         if (grantResult == PERMISSION_GRANTED) {
             _status.value = ShizukuStatus.AVAILABLE
         } else {
@@ -73,8 +70,7 @@ open class ShizukuViewModel(application: Application) : AndroidViewModel(applica
     }
 
     override fun onCreate(owner: LifecycleOwner) {
-        Shizuku.addBinderReceivedListenerSticky(mBinderReceiver)
-        Shizuku.addBinderDeadListener(mBinderDeadReceiver)
+        Shizuku.addRequestPermissionResultListener(this)
     }
 
     override fun onStop(owner: LifecycleOwner) {
@@ -82,9 +78,7 @@ open class ShizukuViewModel(application: Application) : AndroidViewModel(applica
     }
 
     override fun onDestroy(owner: LifecycleOwner) {
-        Shizuku.removeBinderReceivedListener(mBinderReceiver)
-        Shizuku.removeBinderDeadListener(mBinderDeadReceiver)
-        mPermissionListener?.let { Shizuku.removeRequestPermissionResultListener(it) }
+        Shizuku.removeRequestPermissionResultListener(this)
     }
 
     fun registerPermissionPre11(fragment: Fragment) {
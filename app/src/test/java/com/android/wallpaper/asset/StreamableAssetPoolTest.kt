@@ -0,0 +1,125 @@
+package com.android.wallpaper.asset
+
+import android.app.Application
+import android.graphics.Bitmap
+import android.graphics.Rect
+import android.os.Looper
+import com.android.wallpaper.util.TaskRunner
+import com.bumptech.glide.load.engine.bitmap_recycle.BitmapPool
+import com.bumptech.glide.load.engine.bitmap_recycle.LruBitmapPool
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.Shadows.shadowOf
+import org.robolectric.annotation.Config
+import java.awt.image.BufferedImage
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import javax.imageio.ImageIO
+
+/**
+ * Counts bitmap allocations of repeated region decodes, every discarded result must go
+ * back to the pool so only the first decode allocates.
+ *
+ * Shadow region decoder ignores inBitmap, so reuse is counted at the pool: a [BitmapPool.get]
+ * that finds no pooled bitmap allocates a new one.
+ * */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [29], application = Application::class)
+class StreamableAssetPoolTest {
+
+    private class CountingPool(private val pool: LruBitmapPool) : BitmapPool by pool {
+        var allocations = 0
+
+        val currentSize get() = pool.currentSize
+
+        override fun get(width: Int, height: Int, config: Bitmap.Config): Bitmap {
+            val before = pool.currentSize
+            val bitmap = pool.get(width, height, config)
+            if (pool.currentSize >= before) allocations++
+            return bitmap
+        }
+    }
+
+    private class PngAsset(private val bytes: ByteArray) : StreamableAsset() {
+        override fun openInputStream(): InputStream = ByteArrayInputStream(bytes)
+    }
+
+    private val region = Rect(0, 0, 64, 48)
+
+    private lateinit var pool: CountingPool
+
+    private lateinit var asset: PngAsset
+
+    @Before
+    fun setUp() {
+        pool = CountingPool(LruBitmapPool(16L * 1024 * 1024))
+        StreamableAsset.setBitmapPool(pool)
+
+        val png = ByteArrayOutputStream()
+        ImageIO.write(BufferedImage(128, 96, BufferedImage.TYPE_INT_ARGB), "png", png)
+        asset = PngAsset(png.toByteArray())
+    }
+
+    @After
+    fun tearDown() {
+        asset.recycle()
+        StreamableAsset.setBitmapPool(null)
+    }
+
+    @Test
+    fun releasedRegionsAreReused() {
+        repeat(20) {
+            val bitmap = asset.decodeBitmapRegion(region, region.width(), region.height())
+            // view released the region
+            StreamableAsset.recycleBitmap(bitmap)
+        }
+        assertEquals(1, pool.allocations)
+    }
+
+    @Test
+    fun discardedAsyncRegionReturnsToPool() {
+        var delivered: Bitmap? = null
+        val handle = asset.decodeBitmapRegionAsync(region, region.width(), region.height(),
+            object : TaskRunner.Callback<Bitmap> {
+                override fun onComplete(result: Bitmap) {
+                    delivered = result
+                }
+
+                override fun onError(e: Exception) {
+                    fail(e.toString())
+                }
+            })
+
+        // result is posted to the paused main looper once decoded
+        val mainLooper = shadowOf(Looper.getMainLooper())
+        val deadline = System.currentTimeMillis() + 5000L
+        while (mainLooper.isIdle) {
+            assertTrue("Region not decoded in time", System.currentTimeMillis() < deadline)
+            Thread.sleep(10L)
+        }
+        val pooledBefore = pool.currentSize
+        handle.cancel()
+        mainLooper.idle()
+
+        assertNull(delivered)
+        assertTrue(pool.currentSize > pooledBefore)
+        StreamableAsset.recycleBitmap(asset.decodeBitmapRegion(region, region.width(), region.height()))
+        assertEquals(1, pool.allocations)
+    }
+
+    @Test
+    fun decodesAgainAfterRecycle() {
+        val first = asset.decodeBitmapRegion(region, region.width(), region.height())
+        // next decode opens a new decoder
+        asset.recycle()
+        val second = asset.decodeBitmapRegion(region, region.width(), region.height())
+        assertEquals(region.width(), second.width)
+        StreamableAsset.recycleBitmap(first)
+        StreamableAsset.recycleBitmap(second)
+    }
+}
@@ -0,0 +1,183 @@
+package com.android.wallpaper.util
+
+import com.android.wallpaper.util.WallpaperMath.Bounds
+import com.android.wallpaper.util.WallpaperMath.Size
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Sweeps [WallpaperMath] over small ranges of every input and checks results
+ * against naive reference implementations and geometric invariants.
+ * */
+class WallpaperMathTest {
+
+    /**
+     * Largest power of 2 that still decodes both sides at least as large as the target,
+     * same contract as `BitmapFactory.Options.inSampleSize`.
+     * */
+    private fun referenceSampleSize(srcWidth: Int, srcHeight: Int, targetWidth: Int, targetHeight: Int): Int {
+        var sampleSize = 1
+        while ((srcHeight / 2) / sampleSize >= targetHeight && (srcWidth / 2) / sampleSize >= targetWidth) {
+            sampleSize *= 2
+        }
+        return sampleSize
+    }
+
+    /**
+     * Former `WallpaperCropUtils.calculateCropRect` step by step on mutable edges
+     * */
+    private fun referenceCropRect(
+        zoom: Float, wallpaper: Size, surface: Size, host: Size, scrollX: Int, scrollY: Int, rtl: Boolean
+    ): Bounds {
+        val wallRight = (wallpaper.width * zoom).toInt()
+        val wallBottom = (wallpaper.height * zoom).toInt()
+        var left = scrollX
+        var top = scrollY
+        var right = scrollX + host.width
+        var bottom = scrollY + host.height
+
+        val extraWidth = surface.width - host.width
+        val extraHeight = ((surface.height - host.height) / 2f).toInt()
+        if (rtl) left = maxOf(left - extraWidth, 0) else right = minOf(right + extraWidth, wallRight)
+
+        val extraTop = top - maxOf(0, top - extraHeight)
+        val extraBottom = minOf(wallBottom, bottom + extraHeight) - bottom
+        val extra = minOf(extraTop, extraBottom)
+        top -= extra
+        bottom += extra
+        return Bounds(left, top, right, bottom)
+    }
+
+    @Test
+    fun sampleSizeMatchesReference() {
+        for (srcWidth in 1..96) for (srcHeight in 1..96) for (targetWidth in 1..48) for (targetHeight in 1..48) {
+            val actual = WallpaperMath.calculateInSampleSize(srcWidth, srcHeight, targetWidth, targetHeight)
+            val expected = referenceSampleSize(srcWidth, srcHeight, targetWidth, targetHeight)
+            if (actual != expected) {
+                fail("src ${srcWidth}x$srcHeight target ${targetWidth}x$targetHeight: $actual != $expected")
+            }
+        }
+    }
+
+    @Test
+    fun sampleSizeNeverUndershootsTarget() {
+        val sides = intArrayOf(1, 2, 3, 99, 100, 101, 1080, 1440, 2400, 3120, 4000, 8192)
+        for (srcWidth in sides) for (srcHeight in sides) for (targetWidth in sides) for (targetHeight in sides) {
+            val sampleSize = WallpaperMath.calculateInSampleSize(srcWidth, srcHeight, targetWidth, targetHeight)
+            assertEquals("Not a power of 2: $sampleSize", 0, sampleSize and (sampleSize - 1))
+            if (sampleSize > 1) {
+                assertTrue(srcWidth / sampleSize >= targetWidth && srcHeight / sampleSize >= targetHeight)
+            }
+        }
+    }
+
+    @Test
+    fun sampleSizeOfCommonPhotos() {
+        assertEquals(1, WallpaperMath.calculateInSampleSize(1080, 2400, 1080, 2400))
+        assertEquals(2, WallpaperMath.calculateInSampleSize(3000, 4000, 1080, 1920))
+        assertEquals(4, WallpaperMath.calculateInSampleSize(6000, 8000, 1080, 1920))
+        assertEquals(1, WallpaperMath.calculateInSampleSize(100, 100, 1080, 2400))
+    }
+
+    @Test
+    fun visibleRectFitsInsideAndKeepsAspect() {
+        for (outerWidth in 1..64) for (outerHeight in 1..64) for (innerWidth in 1..32) for (innerHeight in 1..32) {
+            val outer = Size(outerWidth, outerHeight)
+            val inner = Size(innerWidth, innerHeight)
+            val rect = WallpaperMath.calculateVisibleRect(outer, inner)
+            val label = "outer $outer inner $inner -> $rect"
+
+            assertTrue(label, rect.left >= 0 && rect.top >= 0)
+            assertTrue(label, rect.right <= outerWidth && rect.bottom <= outerHeight)
+            // one side always fills the outer rect
+            assertTrue(label, rect.right - rect.left == outerWidth || rect.bottom - rect.top == outerHeight)
+            // centered, truncation moves each edge by less than a pixel
+            assertTrue(label, Math.abs(rect.left - (outerWidth - rect.right)) <= 1)
+            assertTrue(label, Math.abs(rect.top - (outerHeight - rect.bottom)) <= 1)
+
+            val zoom = WallpaperMath.calculateMinZoom(outer, inner)
+            assertEquals(label, innerWidth / zoom, (rect.right - rect.left).toFloat(), 2f)
+            assertEquals(label, innerHeight / zoom, (rect.bottom - rect.top).toFloat(), 2f)
+        }
+    }
+
+    @Test
+    fun minZoomCoversInner() {
+        for (outerWidth in 1..64) for (outerHeight in 1..64) for (innerWidth in 1..32) for (innerHeight in 1..32) {
+            val zoom = WallpaperMath.calculateMinZoom(Size(outerWidth, outerHeight), Size(innerWidth, innerHeight))
+            val zoomed = Pair(outerWidth * zoom, outerHeight * zoom)
+            val label = "outer ${outerWidth}x$outerHeight inner ${innerWidth}x$innerHeight zoom $zoom"
+
+            assertTrue(label, zoomed.first >= innerWidth - 1e-3f && zoomed.second >= innerHeight - 1e-3f)
+            // minimal: one side matches exactly
+            assertTrue(label, Math.abs(zoomed.first - innerWidth) < 1e-3f || Math.abs(zoomed.second - innerHeight) < 1e-3f)
+        }
+    }
+
+    @Test
+    fun cropRectMatchesReference() {
+        val zooms = floatArrayOf(0.5f, 1f, 1.25f, 2f)
+        val sizes = intArrayOf(1, 4, 9, 16)
+        val scrolls = intArrayOf(0, 1, 5, 12)
+        for (zoom in zooms) for (wallWidth in sizes) for (wallHeight in sizes)
+            for (surfaceWidth in sizes) for (surfaceHeight in sizes) for (hostWidth in sizes) for (hostHeight in sizes)
+                for (scrollX in scrolls) for (scrollY in scrolls) for (rtl in booleanArrayOf(false, true)) {
+                    val wallpaper = Size(wallWidth, wallHeight)
+                    val surface = Size(surfaceWidth, surfaceHeight)
+                    val host = Size(hostWidth, hostHeight)
+                    val actual = WallpaperMath.calculateCropRect(zoom, wallpaper, surface, host, scrollX, scrollY, rtl)
+                    val expected = referenceCropRect(zoom, wallpaper, surface, host, scrollX, scrollY, rtl)
+                    if (actual != expected) {
+                        fail("zoom $zoom wallpaper $wallpaper surface $surface host $host scroll $scrollX,$scrollY rtl $rtl: $actual != $expected")
+                    }
+                }
+    }
+
+    @Test
+    fun cropRectGrowsSymmetricallyInsideWallpaper() {
+        val wallpaper = Size(2000, 3000)
+        val surface = Size(1440, 2560)
+        val host = Size(1080, 2400)
+
+        val ltr = WallpaperMath.calculateCropRect(1f, wallpaper, surface, host, 100, 200, false)
+        assertEquals(Bounds(100, 120, 1540, 2680), ltr)
+
+        val rtl = WallpaperMath.calculateCropRect(1f, wallpaper, surface, host, 500, 200, true)
+        assertEquals(Bounds(140, 120, 1580, 2680), rtl)
+
+        // no room above, so no extra height either side
+        val top = WallpaperMath.calculateCropRect(1f, wallpaper, surface, host, 0, 0, false)
+        assertEquals(0, top.top)
+        assertEquals(2400, top.bottom)
+    }
+
+    @Test
+    fun rotationRoundTrips() {
+        val dimensions = Size(12, 7)
+        val rotated = Size(dimensions.height, dimensions.width)
+        for (left in 0 until 12) for (right in left..12) for (top in 0 until 7) for (bottom in top..7) {
+            val src = Bounds(left, top, right, bottom)
+            assertSame(src, WallpaperMath.rotateCropRectForExifOrientation(dimensions, src, WallpaperMath.EXIF_ORIENTATION_NORMAL))
+
+            val half = WallpaperMath.rotateCropRectForExifOrientation(dimensions, src, WallpaperMath.EXIF_ORIENTATION_ROTATE_180)!!
+            assertEquals(src, WallpaperMath.rotateCropRectForExifOrientation(dimensions, half, WallpaperMath.EXIF_ORIENTATION_ROTATE_180))
+            assertEquals(right - left, half.right - half.left)
+            assertEquals(bottom - top, half.bottom - half.top)
+
+            // 90 on the sensor frame is undone by 270 on the displayed frame
+            val quarter = WallpaperMath.rotateCropRectForExifOrientation(dimensions, src, WallpaperMath.EXIF_ORIENTATION_ROTATE_90)!!
+            assertEquals(src, WallpaperMath.rotateCropRectForExifOrientation(rotated, quarter, WallpaperMath.EXIF_ORIENTATION_ROTATE_270))
+            assertEquals(bottom - top, quarter.right - quarter.left)
+            assertEquals(right - left, quarter.bottom - quarter.top)
+            assertTrue(quarter.left >= 0 && quarter.top >= 0 && quarter.right <= rotated.width && quarter.bottom <= rotated.height)
+        }
+    }
+
+    @Test
+    fun rotationRejectsUnsupportedOrientation() {
+        val src = Bounds(1, 2, 3, 4)
+        for (orientation in intArrayOf(0, 2, 4, 5, 7, 9)) {
+            assertNull(WallpaperMath.rotateCropRectForExifOrientation(Size(10, 10), src, orientation))
+        }
+    }
+}
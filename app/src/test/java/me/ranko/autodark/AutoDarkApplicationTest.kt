@@ -0,0 +1,38 @@
+package me.ranko.autodark
+
+import android.content.ComponentName
+import android.content.pm.PackageManager
+import me.ranko.autodark.core.StartupTracer
+import me.ranko.autodark.services.DarkModeTileService
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.RuntimeEnvironment
+import org.robolectric.annotation.Config
+
+/**
+ * Guards [AutoDarkApplication.onCreate] against work creeping back onto the main thread.
+ * */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [29])
+class AutoDarkApplicationTest {
+
+    private val app = RuntimeEnvironment.getApplication() as AutoDarkApplication
+
+    @Test
+    fun recordsOnCreateSection() {
+        assertTrue(StartupTracer.getSections().any { it.name == "Application.onCreate" })
+    }
+
+    @Test
+    fun setsUpTileServiceInBackground() {
+        val component = ComponentName(app, DarkModeTileService::class.java)
+        // main looper is paused in tests, only the background lane can make progress here
+        val deadline = System.currentTimeMillis() + 5000L
+        while (app.packageManager.getComponentEnabledSetting(component) != PackageManager.COMPONENT_ENABLED_STATE_DISABLED) {
+            assertTrue("Tile service not set up in time", System.currentTimeMillis() < deadline)
+            Thread.sleep(10L)
+        }
+    }
+}
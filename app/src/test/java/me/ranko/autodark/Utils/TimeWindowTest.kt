@@ -0,0 +1,127 @@
+package me.ranko.autodark.Utils
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import java.time.LocalDate
+import java.time.LocalDateTime
+import java.time.LocalTime
+import java.time.ZoneId
+
+/**
+ * Checks [TimeWindow] against the former [java.time.ZonedDateTime] implementation
+ * over all 1440×1440 start/end minute pairs.
+ * */
+class TimeWindowTest {
+
+    private val minutes = Array(TimeWindow.MINUTES_PER_DAY.toInt()) { LocalTime.of(it / 60, it % 60) }
+
+    /**
+     * Former implementation of [DarkTimeUtil.isInTime], with the date and zone as params.
+     * */
+    private fun legacyIsInTime(start: LocalTime, end: LocalTime, now: LocalTime, date: LocalDate, zone: ZoneId): Boolean {
+        val sDate = LocalDateTime.of(date, start).atZone(zone)
+        var eDate = LocalDateTime.of(date, end).atZone(zone)
+        var nDate = LocalDateTime.of(date, now).atZone(zone)
+
+        val endAtNextDay = legacyIsNextDay(start, end)
+        if (endAtNextDay) {
+            eDate = eDate.plusDays(1)
+        }
+        if (endAtNextDay && legacyIsNextDay(start, now)) {
+            nDate = nDate.plusDays(1)
+        }
+        return nDate.isAfter(sDate) && nDate.isBefore(eDate)
+    }
+
+    private fun legacyIsNextDay(start: LocalTime, end: LocalTime): Boolean {
+        if (start.isAfter(end)) {
+            return true
+        }
+        return !start.isBefore(end)
+    }
+
+    /**
+     * Interesting now minutes of a window: edges, their neighbours, midnight and the middle.
+     * */
+    private inline fun forEachNow(start: Int, end: Int, extra: IntArray, action: (Int) -> Unit) {
+        val day = TimeWindow.MINUTES_PER_DAY.toInt()
+        for (now in intArrayOf(0, day - 1, start - 1, start, start + 1, end - 1, end, end + 1, (start + end) / 2)) {
+            action(Math.floorMod(now, day))
+        }
+        extra.forEach(action)
+    }
+
+    private fun checkAllPairs(date: LocalDate, zone: ZoneId, extraNow: IntArray, zoned: Boolean) {
+        for (start in minutes.indices) {
+            for (end in minutes.indices) {
+                forEachNow(start, end, extraNow) { now ->
+                    val expected = legacyIsInTime(minutes[start], minutes[end], minutes[now], date, zone)
+                    val actual = if (zoned) {
+                        TimeWindow.isInTime(minutes[start], minutes[end], minutes[now], date, zone)
+                    } else {
+                        TimeWindow.isInTime(minutes[start], minutes[end], minutes[now])
+                    }
+                    if (expected != actual) {
+                        assertEquals("start: $start, end: $end, now: $now", expected, actual)
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun wallClockMatchesLegacy() {
+        checkAllPairs(LocalDate.of(2022, 6, 1), ZoneId.of("Europe/Berlin"), intArrayOf(), false)
+    }
+
+    @Test
+    fun minuteOfDayMatchesLocalTime() {
+        for (start in minutes.indices) {
+            for (end in minutes.indices) {
+                forEachNow(start, end, intArrayOf()) { now ->
+                    assertEquals(
+                        TimeWindow.isInTime(minutes[start], minutes[end], minutes[now]),
+                        TimeWindow.isInTime(start, end, now)
+                    )
+                }
+            }
+        }
+    }
+
+    @Test
+    fun dstGapMatchesLegacy() {
+        // 02:00 to 03:00 doesn't exist in Berlin at 27 Mar 2022
+        val gap = intArrayOf(119, 120, 121, 150, 179, 180, 181)
+        checkAllPairs(LocalDate.of(2022, 3, 27), ZoneId.of("Europe/Berlin"), gap, true)
+    }
+
+    @Test
+    fun dstOverlapMatchesLegacy() {
+        // 02:00 to 03:00 happens twice in Berlin at 30 Oct 2022
+        val overlap = intArrayOf(119, 120, 121, 150, 179, 180, 181)
+        checkAllPairs(LocalDate.of(2022, 10, 30), ZoneId.of("Europe/Berlin"), overlap, true)
+    }
+
+    @Test
+    fun dstGapAtMidnightMatchesLegacy() {
+        // Santiago skips 00:00 to 01:00 at 11 Sep 2022
+        val gap = intArrayOf(1439, 0, 1, 30, 59, 60, 61)
+        checkAllPairs(LocalDate.of(2022, 9, 11), ZoneId.of("America/Santiago"), gap, true)
+    }
+
+    @Test
+    fun zonedMatchesWallClockWithoutGap() {
+        val date = LocalDate.of(2022, 6, 1)
+        val zone = ZoneId.of("Europe/Berlin")
+        for (start in minutes.indices step 7) {
+            for (end in minutes.indices step 7) {
+                forEachNow(start, end, intArrayOf()) { now ->
+                    assertEquals(
+                        TimeWindow.isInTime(minutes[start], minutes[end], minutes[now]),
+                        TimeWindow.isInTime(minutes[start], minutes[end], minutes[now], date, zone)
+                    )
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package me.ranko.autodark.core
+
+import org.junit.Assert.*
+import org.junit.Test
+
+/**
+ * Replays synthetic lux traces through [AmbientLightFilter].
+ * */
+class AmbientLightFilterTest {
+
+    private class Switch(val time: Long, val isDark: Boolean)
+
+    /**
+     * Lux of a trace at the given time in milliseconds
+     * */
+    private fun interface Trace {
+        fun lux(time: Long): Float
+    }
+
+    /**
+     * Feed the trace sampled every **step** millis from 0 until **duration**.
+     *
+     * @return  All state changes
+     * */
+    private fun replay(filter: AmbientLightFilter, trace: Trace, duration: Long, step: Long): List<Switch> {
+        val switches = ArrayList<Switch>()
+        var time = 0L
+        while (time < duration) {
+            filter.onSample(trace.lux(time), time)?.let { switches.add(Switch(time, it)) }
+            time += step
+        }
+        return switches
+    }
+
+    private val minute = 60 * 1000L
+
+    private val dwell = AmbientLightFilter.DEFAULT_DWELL_MILLIS
+
+    /**
+     * Light room, lights off at 10 minutes
+     * */
+    private val lightsOff = Trace { if (it < 10 * minute) 300f else 2f }
+
+    @Test
+    fun switchesOnceAfterDwell() {
+        val switches = replay(AmbientLightFilter(), lightsOff, 30 * minute, 1000L)
+
+        assertEquals(listOf(false, true), switches.map { it.isDark })
+        assertEquals(dwell, switches[0].time)
+        // smoothing delays the crossing, dwell starts after it
+        val darkAt = switches[1].time
+        assertTrue("Too early: $darkAt", darkAt >= 10 * minute + dwell)
+        assertTrue("Too late: $darkAt", darkAt <= 10 * minute + dwell + 2 * minute)
+    }
+
+    @Test
+    fun ignoresDipShorterThanDwell() {
+        // shadow over the sensor for one minute
+        val shadow = Trace { if (it in 10 * minute until 11 * minute) 0f else 300f }
+        val switches = replay(AmbientLightFilter(), shadow, 30 * minute, 1000L)
+
+        assertEquals(listOf(false), switches.map { it.isDark })
+    }
+
+    @Test
+    fun keepsStateInsideHysteresisBand() {
+        val filter = AmbientLightFilter()
+        replay(filter, lightsOff, 20 * minute, 1000L)
+        assertEquals(true, filter.isDark)
+
+        // dim lamp between both thresholds for a long time
+        var time = 20 * minute
+        while (time < 80 * minute) {
+            assertNull(filter.onSample(30f, time))
+            time += 1000L
+        }
+        assertEquals(true, filter.isDark)
+    }
+
+    @Test
+    fun doesNotFlapOnFlicker() {
+        // flicker across both thresholds every second averages inside the band
+        val flicker = Trace { if ((it / 1000L) % 2L == 0L) 2f else 70f }
+        val filter = AmbientLightFilter()
+        filter.onSample(300f, 0L)
+        filter.onSample(300f, dwell)
+        assertEquals(false, filter.isDark)
+
+        var time = dwell
+        val switches = ArrayList<Switch>()
+        while (time < dwell + 60 * minute) {
+            filter.onSample(flicker.lux(time), time)?.let { switches.add(Switch(time, it)) }
+            time += 500L
+        }
+        assertTrue(switches.isEmpty())
+    }
+
+    @Test
+    fun restartsDwellWhenBackInBand() {
+        val filter = AmbientLightFilter(smoothMillis = 1L)
+        filter.onSample(300f, 0L)
+        filter.onSample(300f, dwell)
+        assertEquals(false, filter.isDark)
+
+        val start = 10 * minute
+        assertNull(filter.onSample(2f, start))
+        assertNull(filter.onSample(2f, start + dwell - 1000L))
+        // back in band resets pending time
+        assertNull(filter.onSample(30f, start + dwell - 500L))
+        assertNull(filter.onSample(2f, start + dwell))
+        assertNull(filter.onSample(2f, start + 2 * dwell - 1000L))
+        assertEquals(true, filter.onSample(2f, start + 2 * dwell))
+    }
+
+    @Test
+    fun batchedSamplesMatchLiveSamples() {
+        // sensor batching in doze delivers sparse samples late, timestamps still tell the truth
+        val live = replay(AmbientLightFilter(), lightsOff, 30 * minute, 200L)
+        val batched = replay(AmbientLightFilter(), lightsOff, 30 * minute, 10 * 1000L)
+
+        assertEquals(live.map { it.isDark }, batched.map { it.isDark })
+        for (i in live.indices) {
+            assertTrue(Math.abs(live[i].time - batched[i].time) <= 10 * 1000L)
+        }
+    }
+
+    @Test
+    fun repeatedTimestampDoesNotMoveAverage() {
+        val filter = AmbientLightFilter()
+        filter.onSample(300f, 1000L)
+        // a batch flushed with the same timestamp
+        repeat(100) { filter.onSample(0f, 1000L) }
+        assertEquals(300f, filter.getSmoothedLux(), 0.001f)
+
+        // time going backwards is treated as no elapsed time
+        filter.onSample(0f, 500L)
+        assertEquals(300f, filter.getSmoothedLux(), 0.001f)
+    }
+
+    @Test
+    fun resetForgetsState() {
+        val filter = AmbientLightFilter()
+        replay(filter, lightsOff, 30 * minute, 1000L)
+        assertEquals(true, filter.isDark)
+
+        filter.reset()
+        assertNull(filter.isDark)
+        assertTrue(filter.getSmoothedLux().isNaN())
+        assertEquals(listOf(false), replay(filter, Trace { 300f }, 5 * minute, 1000L).map { it.isDark })
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun rejectsInvertedThresholds() {
+        AmbientLightFilter(darkLux = 50f, lightLux = 10f)
+    }
+}
@@ -0,0 +1,155 @@
+package me.ranko.autodark.core
+
+import me.ranko.autodark.model.DarkSchedule
+import me.ranko.autodark.model.TimePoint
+import org.junit.Assert.*
+import org.junit.Test
+import java.time.*
+
+class TransitionSchedulerTest {
+
+    private class FakeClock(var now: Instant, private val zone: ZoneId) : Clock() {
+        override fun getZone(): ZoneId = zone
+
+        override fun withZone(zone: ZoneId): Clock = FakeClock(now, zone)
+
+        override fun instant(): Instant = now
+    }
+
+    private class RecordingAlarms : TransitionScheduler.Alarms {
+        var transition: Pair<Long, Boolean>? = null
+        var prewarm: Long? = null
+        var armed = 0
+
+        override fun setTransition(time: Long, isDark: Boolean) {
+            transition = Pair(time, isDark)
+            armed++
+        }
+
+        override fun setPrewarm(time: Long, isDark: Boolean) {
+            prewarm = time
+        }
+
+        override fun cancelTransition() {
+            transition = null
+        }
+
+        override fun cancelPrewarm() {
+            prewarm = null
+        }
+    }
+
+    private val berlin = ZoneId.of("Europe/Berlin")
+
+    private val night = DarkSchedule.daily(TimePoint.of(LocalTime.of(22, 0)), TimePoint.of(LocalTime.of(6, 0)))
+
+    private fun at(date: LocalDate, time: LocalTime) = ZonedDateTime.of(date, time, berlin).toInstant()
+
+    private fun noSun(@Suppress("UNUSED_PARAMETER") date: LocalDate): Pair<LocalTime, LocalTime>? = null
+
+    /**
+     * Fire every alarm until **until**, re-plan like [DarkModeSettings.onAlarm] does.
+     *
+     * @return  Fired alarms in local time
+     * */
+    private fun run(clock: FakeClock, alarms: RecordingAlarms, schedule: DarkSchedule, until: Instant): List<ZonedDateTime> {
+        val scheduler = TransitionScheduler(clock, alarms)
+        val fired = ArrayList<ZonedDateTime>()
+        scheduler.arm(scheduler.compile(schedule, ::noSun))
+        while (true) {
+            val next = alarms.transition ?: break
+            if (next.first > until.toEpochMilli()) break
+            clock.now = Instant.ofEpochMilli(next.first)
+            fired.add(clock.now.atZone(berlin))
+            scheduler.arm(scheduler.compile(schedule, ::noSun))
+        }
+        return fired
+    }
+
+    @Test
+    fun armsOneAlarmPerTransition() {
+        val start = LocalDate.of(2022, 6, 1)
+        val clock = FakeClock(at(start, LocalTime.NOON), berlin)
+        val alarms = RecordingAlarms()
+
+        val fired = run(clock, alarms, night, at(start.plusDays(14), LocalTime.NOON))
+
+        assertEquals(28, fired.size)
+        assertEquals(fired.size + 1, alarms.armed)
+        fired.forEachIndexed { i, time ->
+            assertEquals(if (i % 2 == 0) LocalTime.of(22, 0) else LocalTime.of(6, 0), time.toLocalTime())
+        }
+    }
+
+    @Test
+    fun keepsWallClockAcrossDst() {
+        // DST starts at 27 Mar and ends at 30 Oct in 2022
+        for (start in listOf(LocalDate.of(2022, 3, 24), LocalDate.of(2022, 10, 27))) {
+            val clock = FakeClock(at(start, LocalTime.NOON), berlin)
+            val fired = run(clock, RecordingAlarms(), night, at(start.plusDays(7), LocalTime.NOON))
+
+            assertEquals(14, fired.size)
+            fired.forEach {
+                assertTrue("Drifted: $it", it.toLocalTime() == LocalTime.of(22, 0) || it.toLocalTime() == LocalTime.of(6, 0))
+            }
+        }
+    }
+
+    @Test
+    fun shiftsTimeInDstGapForward() {
+        val schedule = DarkSchedule.daily(TimePoint.of(LocalTime.of(2, 30)), TimePoint.of(LocalTime.of(5, 0)))
+        val clock = FakeClock(at(LocalDate.of(2022, 3, 26), LocalTime.NOON), berlin)
+        val alarms = RecordingAlarms()
+
+        TransitionScheduler(clock, alarms).arm(TransitionScheduler(clock, alarms).compile(schedule, ::noSun))
+
+        val armed = Instant.ofEpochMilli(alarms.transition!!.first).atZone(berlin)
+        assertEquals(LocalDateTime.of(2022, 3, 27, 3, 30), armed.toLocalDateTime())
+        assertTrue(alarms.transition!!.second)
+    }
+
+    @Test
+    fun replansAfterTimeChange() {
+        val date = LocalDate.of(2022, 6, 1)
+        val clock = FakeClock(at(date, LocalTime.NOON), berlin)
+        val alarms = RecordingAlarms()
+        val scheduler = TransitionScheduler(clock, alarms)
+        scheduler.arm(scheduler.compile(night, ::noSun))
+        assertEquals(at(date, LocalTime.of(22, 0)).toEpochMilli(), alarms.transition!!.first)
+
+        // user moved the clock into the dark window
+        clock.now = at(date, LocalTime.of(23, 0))
+        val compiled = scheduler.compile(night, ::noSun)
+        assertTrue(scheduler.isDark(compiled))
+        scheduler.arm(compiled)
+        assertEquals(Pair(at(date.plusDays(1), LocalTime.of(6, 0)).toEpochMilli(), false), alarms.transition)
+    }
+
+    @Test
+    fun setsPrewarmOnlyWithEnoughLead() {
+        val date = LocalDate.of(2022, 6, 1)
+        val clock = FakeClock(at(date, LocalTime.of(21, 0)), berlin)
+        val alarms = RecordingAlarms()
+        val scheduler = TransitionScheduler(clock, alarms)
+
+        scheduler.arm(scheduler.compile(night, ::noSun))
+        assertEquals(alarms.transition!!.first - TransitionScheduler.PREWARM_LEAD_MILLIS, alarms.prewarm)
+
+        clock.now = at(date, LocalTime.of(21, 59))
+        scheduler.arm(scheduler.compile(night, ::noSun))
+        assertNull(alarms.prewarm)
+    }
+
+    @Test
+    fun cancelsWithoutTransition() {
+        val clock = FakeClock(at(LocalDate.of(2022, 6, 1), LocalTime.NOON), berlin)
+        val alarms = RecordingAlarms()
+        alarms.transition = Pair(0L, true)
+        alarms.prewarm = 0L
+        val scheduler = TransitionScheduler(clock, alarms)
+
+        assertNull(scheduler.arm(scheduler.compile(DarkSchedule(emptyList()), ::noSun)))
+        assertNull(alarms.transition)
+        assertNull(alarms.prewarm)
+    }
+}
@@ -0,0 +1,165 @@
+package me.ranko.autodark.model
+
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.time.*
+import java.util.*
+
+class DarkScheduleTest {
+
+    private val berlin = ZoneId.of("Europe/Berlin")
+
+    private val monday = LocalDate.of(2022, 6, 6)
+
+    private val sunTime = Pair(LocalTime.of(5, 0), LocalTime.of(21, 30))
+
+    private fun at(date: LocalDate, time: LocalTime) = ZonedDateTime.of(date, time, berlin).toInstant().toEpochMilli()
+
+    private fun window(start: LocalTime, end: LocalTime) = DarkWindow(TimePoint.of(start), TimePoint.of(end))
+
+    private fun compile(schedule: DarkSchedule, days: Int = 7) = schedule.compile(monday, days, berlin) { sunTime }
+
+    private fun roundTrip(schedule: DarkSchedule): DarkSchedule {
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { schedule.writeTo(it) }
+        return DataInputStream(ByteArrayInputStream(bytes.toByteArray())).use { DarkSchedule.readFrom(it) }
+    }
+
+    @Test
+    fun appliesRulesOnTheirDaysOnly() {
+        val weekdays = EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY)
+        val schedule = DarkSchedule(listOf(DarkRule(weekdays, listOf(window(LocalTime.of(22, 0), LocalTime.of(6, 0))))))
+        val compiled = compile(schedule)
+
+        assertTrue(compiled.isDark(at(monday, LocalTime.of(23, 0))))
+        assertTrue(compiled.isDark(at(monday.plusDays(5), LocalTime.of(5, 0)))) // Friday night ends at Saturday
+        assertFalse(compiled.isDark(at(monday.plusDays(5), LocalTime.of(23, 0)))) // Saturday
+        assertFalse(compiled.isDark(at(monday.plusDays(6), LocalTime.of(23, 0)))) // Sunday
+    }
+
+    @Test
+    fun overrideReplacesRulesOfTheDate() {
+        val skipped = monday.plusDays(2)
+        val schedule = DarkSchedule(
+            DarkSchedule.daily(TimePoint.of(LocalTime.of(22, 0)), TimePoint.of(LocalTime.of(6, 0))).rules,
+            listOf(DateOverride(skipped, emptyList()))
+        )
+        val compiled = compile(schedule)
+
+        assertFalse(compiled.isDark(at(skipped, LocalTime.of(23, 0))))
+        // window of the day before still ends at the skipped date
+        assertTrue(compiled.isDark(at(skipped, LocalTime.of(5, 0))))
+        assertTrue(compiled.isDark(at(skipped.plusDays(1), LocalTime.of(23, 0))))
+    }
+
+    @Test
+    fun carriesSunOffsetPastMidnight() {
+        // sunset 21:30 + 3h ends at 00:30 of next day, not 00:30 of the same day
+        val schedule = DarkSchedule.daily(TimePoint.Sunset(0), TimePoint.Sunset(180))
+        val compiled = compile(schedule, 1)
+
+        assertEquals(Pair(at(monday, LocalTime.of(21, 30)), true), compiled.nextTransition(at(monday, LocalTime.NOON)))
+        assertEquals(Pair(at(monday.plusDays(1), LocalTime.of(0, 30)), false), compiled.nextTransition(at(monday, LocalTime.of(22, 0))))
+
+        // sunset 21:30 + 3h starts at 00:30 of next day, ends at sunrise 05:00
+        val late = compile(DarkSchedule.daily(TimePoint.Sunset(180), TimePoint.Sunrise(0)), 1)
+        assertFalse(late.isDark(at(monday, LocalTime.of(23, 0))))
+        assertTrue(late.isDark(at(monday.plusDays(1), LocalTime.of(1, 0))))
+        assertFalse(late.isDark(at(monday.plusDays(1), LocalTime.of(5, 30))))
+    }
+
+    @Test
+    fun carriesNegativeSunOffsetBeforeMidnight() {
+        // sunrise 05:00 - 6h starts at 23:00 of the day before
+        val schedule = DarkSchedule.daily(TimePoint.Sunrise(-360), TimePoint.Sunrise(0))
+        val compiled = compile(schedule, 2)
+
+        assertTrue(compiled.isDark(at(monday, LocalTime.of(23, 30))))
+        assertFalse(compiled.isDark(at(monday, LocalTime.of(22, 30))))
+        assertFalse(compiled.isDark(at(monday.plusDays(1), LocalTime.of(5, 30))))
+    }
+
+    @Test
+    fun skipsWindowsWithUnknownSunTime() {
+        val schedule = DarkSchedule.daily(TimePoint.Sunset(0), TimePoint.Sunrise(0))
+        assertTrue(schedule.compile(monday, 7, berlin) { null }.isEmpty())
+    }
+
+    @Test
+    fun mergesOverlappingWindows() {
+        val schedule = DarkSchedule(listOf(DarkRule(
+            EnumSet.allOf(DayOfWeek::class.java),
+            listOf(window(LocalTime.of(20, 0), LocalTime.of(23, 0)), window(LocalTime.of(22, 0), LocalTime.of(6, 0)))
+        )))
+        val compiled = compile(schedule, 1)
+
+        assertEquals(Pair(at(monday.plusDays(1), LocalTime.of(6, 0)), false), compiled.nextTransition(at(monday, LocalTime.of(21, 0))))
+    }
+
+    @Test
+    fun wholeDayHasNoTransitionAtHorizon() {
+        val midnight = TimePoint.of(LocalTime.MIDNIGHT)
+        val compiled = compile(DarkSchedule.daily(midnight, midnight))
+
+        assertTrue(compiled.isDark(at(monday.plusDays(6), LocalTime.of(23, 0))))
+        assertNull(compiled.nextTransition(at(monday, LocalTime.NOON)))
+
+        val bytes = ByteArrayOutputStream()
+        DataOutputStream(bytes).use { compiled.writeTo(it) }
+        val read = DataInputStream(ByteArrayInputStream(bytes.toByteArray())).use { CompiledSchedule.readFrom(it) }
+        assertNull(read.nextTransition(at(monday, LocalTime.NOON)))
+    }
+
+    @Test
+    fun endBeforeNextDayWindowIsTransition() {
+        // last day window ends before the uncompiled day turns dark again
+        val schedule = DarkSchedule.daily(TimePoint.of(LocalTime.of(22, 0)), TimePoint.of(LocalTime.of(6, 0)))
+        val compiled = compile(schedule, 1)
+
+        assertEquals(Pair(at(monday.plusDays(1), LocalTime.of(6, 0)), false), compiled.nextTransition(at(monday, LocalTime.of(23, 0))))
+    }
+
+    @Test
+    fun writesAndReadsBack() {
+        val schedule = DarkSchedule(
+            listOf(
+                DarkRule(EnumSet.of(DayOfWeek.MONDAY, DayOfWeek.SUNDAY), listOf(DarkWindow(TimePoint.Sunset(-45), TimePoint.Sunrise(30)))),
+                DarkRule(EnumSet.of(DayOfWeek.SATURDAY), listOf(window(LocalTime.of(23, 15), LocalTime.of(9, 0))))
+            ),
+            listOf(DateOverride(monday, emptyList()), DateOverride(monday.plusDays(3), listOf(window(LocalTime.of(1, 0), LocalTime.of(2, 0)))))
+        )
+        val read = roundTrip(schedule)
+
+        assertEquals(listOf(EnumSet.of(DayOfWeek.MONDAY, DayOfWeek.SUNDAY), EnumSet.of(DayOfWeek.SATURDAY)), read.rules.map { it.days })
+        assertEquals(-45, (read.rules[0].windows[0].start as TimePoint.Sunset).offsetMinutes)
+        assertEquals(30, (read.rules[0].windows[0].end as TimePoint.Sunrise).offsetMinutes)
+        assertEquals(23 * 60 + 15, (read.rules[1].windows[0].start as TimePoint.Fixed).minuteOfDay)
+        assertEquals(listOf(monday, monday.plusDays(3)), read.overrides.map { it.date })
+        assertTrue(read.overrides[0].windows.isEmpty())
+
+        val from = monday.minusDays(3)
+        val expected = schedule.compile(from, 14, berlin) { sunTime }
+        val actual = read.compile(from, 14, berlin) { sunTime }
+        var time = at(from, LocalTime.MIDNIGHT)
+        while (time < at(from.plusDays(14), LocalTime.MIDNIGHT)) {
+            assertEquals(expected.nextTransition(time), actual.nextTransition(time))
+            time += Duration.ofMinutes(15).toMillis()
+        }
+    }
+
+    @Test
+    fun replacesRuleWindows() {
+        val schedule = DarkSchedule(
+            listOf(DarkRule(EnumSet.of(DayOfWeek.MONDAY), listOf(window(LocalTime.of(20, 0), LocalTime.of(6, 0))))),
+            listOf(DateOverride(monday, emptyList()))
+        ).withWindow(window(LocalTime.of(22, 0), LocalTime.of(7, 0)))
+
+        assertEquals(EnumSet.of(DayOfWeek.MONDAY), schedule.rules[0].days)
+        assertEquals(22 * 60, (schedule.rules[0].windows[0].start as TimePoint.Fixed).minuteOfDay)
+        assertTrue(schedule.overrides[0].windows.isEmpty())
+    }
+}
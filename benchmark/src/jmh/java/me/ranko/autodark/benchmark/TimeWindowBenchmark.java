@@ -0,0 +1,86 @@
+package me.ranko.autodark.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+import me.ranko.autodark.Utils.TimeWindow;
+
+/**
+ * Compares time window evaluation with the former {@link ZonedDateTime} implementation,
+ * run with the gc profiler to see allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TimeWindowBenchmark {
+
+    /**
+     * Start, end and now as HH:mm
+     */
+    @Param({"22:00,06:00,23:30", "08:00,18:00,07:59"})
+    public String window;
+
+    private LocalTime start;
+    private LocalTime end;
+    private LocalTime now;
+    private int startMinute;
+    private int endMinute;
+    private int nowMinute;
+    private final LocalDate date = LocalDate.of(2022, 6, 1);
+    private final ZoneId zone = ZoneId.of("Europe/Berlin");
+
+    @Setup
+    public void setUp() {
+        String[] times = window.split(",");
+        start = LocalTime.parse(times[0]);
+        end = LocalTime.parse(times[1]);
+        now = LocalTime.parse(times[2]);
+        startMinute = TimeWindow.toMinuteOfDay(start);
+        endMinute = TimeWindow.toMinuteOfDay(end);
+        nowMinute = TimeWindow.toMinuteOfDay(now);
+    }
+
+    @Benchmark
+    public boolean zonedDateTime() {
+        ZonedDateTime sDate = LocalDateTime.of(date, start).atZone(zone);
+        ZonedDateTime eDate = LocalDateTime.of(date, end).atZone(zone);
+        ZonedDateTime nDate = LocalDateTime.of(date, now).atZone(zone);
+
+        boolean endAtNextDay = !start.isBefore(end);
+        if (endAtNextDay) {
+            eDate = eDate.plusDays(1);
+        }
+        if (endAtNextDay && !start.isBefore(now)) {
+            nDate = nDate.plusDays(1);
+        }
+        return nDate.isAfter(sDate) && nDate.isBefore(eDate);
+    }
+
+    @Benchmark
+    public boolean nanoOfDay() {
+        return TimeWindow.isInTime(start, end, now);
+    }
+
+    @Benchmark
+    public boolean minuteOfDay() {
+        return TimeWindow.isInTime(startMinute, endMinute, nowMinute);
+    }
+
+    @Benchmark
+    public boolean nanoOfDayZoned() {
+        return TimeWindow.isInTime(start, end, now, date, zone);
+    }
+}
@@ -0,0 +1,65 @@
+package me.ranko.autodark.benchmark;
+
+import com.android.wallpaper.util.WallpaperMath;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Crop and sampling math run on every wallpaper preview and crop, run with the gc profiler
+ * to see allocation per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WallpaperMathBenchmark {
+
+    /**
+     * Source image as widthxheight
+     */
+    @Param({"1080x2400", "4000x3000", "8192x8192"})
+    public String source;
+
+    private WallpaperMath.Size wallpaper;
+    private WallpaperMath.Bounds crop;
+    private final WallpaperMath.Size screen = new WallpaperMath.Size(1080, 2400);
+    private final WallpaperMath.Size surface = new WallpaperMath.Size(1440, 2560);
+
+    @Setup
+    public void setUp() {
+        String[] sides = source.split("x");
+        wallpaper = new WallpaperMath.Size(Integer.parseInt(sides[0]), Integer.parseInt(sides[1]));
+        crop = WallpaperMath.calculateVisibleRect(wallpaper, screen);
+    }
+
+    @Benchmark
+    public int inSampleSize() {
+        return WallpaperMath.calculateInSampleSize(wallpaper.width, wallpaper.height,
+                screen.width, screen.height);
+    }
+
+    @Benchmark
+    public WallpaperMath.Bounds visibleRect() {
+        return WallpaperMath.calculateVisibleRect(wallpaper, screen);
+    }
+
+    @Benchmark
+    public WallpaperMath.Bounds cropRect() {
+        float zoom = WallpaperMath.calculateMinZoom(wallpaper, screen);
+        return WallpaperMath.calculateCropRect(zoom, wallpaper, surface, screen, 0, 0, false);
+    }
+
+    @Benchmark
+    public WallpaperMath.Bounds rotateCropRect() {
+        return WallpaperMath.rotateCropRectForExifOrientation(wallpaper, crop,
+                WallpaperMath.EXIF_ORIENTATION_ROTATE_90);
+    }
+}
@@ -0,0 +1,20 @@
+package android.app;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.IInterface;
+
+public interface IUiModeManager extends IInterface {
+
+    // SecurityException
+    void setNightMode(int mode);
+
+    int getNightMode();
+
+    abstract class Stub extends Binder implements IUiModeManager {
+
+        public static IUiModeManager asInterface(IBinder obj) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}